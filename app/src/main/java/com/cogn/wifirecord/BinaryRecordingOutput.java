@@ -0,0 +1,196 @@
+package com.cogn.wifirecord;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes records in the binary recording format.
+ *
+ * The file starts with the 4 bytes "WRB1", a version byte, a flags byte and two zero bytes.
+ * The only flag so far is {@link #FLAG_DEFLATE}.  The records follow in blocks, each one a header of
+ * <pre>
+ *   payload length int, record count int, first scan offset long, last scan offset long
+ * </pre>
+ * (big endian, offsets -1 when the block holds no scan) and then the payload.  A reader can step
+ * over a block by its length, or skip it by its offsets when looking for a time.
+ *
+ * In the payload each record is a tag byte and then
+ * <pre>
+ *   scan  zigzag varint of the offset minus the previous offset in the block (0 before the first),
+ *         varint mac count, then per mac a zigzag varint id and the rssi as a signed byte
+ *   text  varint byte count, UTF-8 bytes
+ * </pre>
+ * so every block can be read without the ones before it.
+ *
+ * With {@link #FLAG_DEFLATE} set the payload is instead the uncompressed length as an int followed
+ * by the zlib stream of the payload.  Every block is compressed on its own, so they can still be
+ * skipped and read separately, and the payload length in the header is the compressed length.
+ */
+public class BinaryRecordingOutput extends RecordingOutput {
+    static final byte[] MAGIC = {'W', 'R', 'B', '1'};
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final int BLOCK_HEADER_BYTES = 24;
+    static final int TAG_SCAN = 1;
+    static final int TAG_TEXT = 2;
+    static final int FLAG_DEFLATE = 1;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BLOCK_BYTES = 16 * 1024;
+    private static final int BLOCK_RECORDS = 256;
+
+    private final DataOutputStream out;
+    private byte[] block = new byte[BLOCK_BYTES + 1024];
+    private int blockLength;
+    private int blockRecords;
+    private long firstOffset = -1;
+    private long lastOffset = -1;
+    private final Deflater deflater;
+    private byte[] compressed;
+
+    /**
+     * @param writeHeader true when starting a new file, false when appending to one
+     * @param compress deflate each block, must match the flags of the file when appending
+     */
+    public BinaryRecordingOutput(OutputStream out, boolean writeHeader, boolean compress) throws IOException {
+        this.out = new DataOutputStream(out);
+        if (compress) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            compressed = new byte[BLOCK_BYTES];
+        } else {
+            deflater = null;
+        }
+        if (writeHeader) {
+            this.out.write(MAGIC);
+            this.out.write(new byte[]{VERSION, (byte)(compress ? FLAG_DEFLATE : 0), 0, 0});
+        }
+    }
+
+    /**
+     * Reads the flags from the header of an existing binary recording.
+     */
+    static int readFlags(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        new DataInputStream(in).readFully(header);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i])
+                throw new IOException("Not a binary recording");
+        }
+        if (header[4] != VERSION)
+            throw new IOException("Unknown binary recording version " + header[4]);
+        return header[5];
+    }
+
+    @Override
+    public void write(ScanRecord record) throws IOException {
+        if (record.isText()) {
+            byte[] text = record.getText().getBytes(UTF8);
+            ensure(1 + 5 + text.length);
+            block[blockLength++] = TAG_TEXT;
+            putVarint(text.length);
+            System.arraycopy(text, 0, block, blockLength, text.length);
+            blockLength += text.length;
+        } else {
+            ensure(1 + 10 + 5 + record.size() * 6);
+            block[blockLength++] = TAG_SCAN;
+            putVarint(zigzag(record.getOffset() - (lastOffset < 0 ? 0 : lastOffset)));
+            putVarint(record.size());
+            for (int i = 0; i < record.size(); i++) {
+                putVarint(zigzag(record.getMacId(i)));
+                block[blockLength++] = (byte)Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, record.getLevel(i)));
+            }
+            if (firstOffset < 0) firstOffset = record.getOffset();
+            lastOffset = record.getOffset();
+        }
+        blockRecords++;
+        if (blockLength >= BLOCK_BYTES || blockRecords >= BLOCK_RECORDS) {
+            endBlock();
+        }
+    }
+
+    private void ensure(int extra) {
+        if (blockLength + extra > block.length) {
+            block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + extra));
+        }
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            block[blockLength++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        block[blockLength++] = (byte)value;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Writes out the records gathered so far as one block.
+     */
+    private void endBlock() throws IOException {
+        if (blockRecords == 0) return;
+        if (deflater != null) {
+            int length = deflate();
+            out.writeInt(4 + length);
+            out.writeInt(blockRecords);
+            out.writeLong(firstOffset);
+            out.writeLong(lastOffset);
+            out.writeInt(blockLength);
+            out.write(compressed, 0, length);
+        } else {
+            out.writeInt(blockLength);
+            out.writeInt(blockRecords);
+            out.writeLong(firstOffset);
+            out.writeLong(lastOffset);
+            out.write(block, 0, blockLength);
+        }
+        blockLength = 0;
+        blockRecords = 0;
+        firstOffset = -1;
+        lastOffset = -1;
+    }
+
+    /**
+     * Compresses the current block into compressed.
+     * @return the compressed length
+     */
+    private int deflate() {
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length;
+    }
+
+    /**
+     * Ends the current block and flushes it to the file, so a flush always leaves whole blocks.
+     */
+    @Override
+    public void flush() throws IOException {
+        endBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            out.close();
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.cogn.wifirecord;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a recording written by {@link BinaryRecordingOutput}, one block at a time.  Compressed
+ * blocks are inflated as they are reached, so only one block is ever held in memory.
+ */
+public class BinaryRecordingReader extends RecordingReader {
+    private final DataInputStream in;
+    private byte[] block = new byte[16 * 1024];
+    private int blockLength;
+    private int position;
+    private int recordsLeft;
+    private long lastOffset;
+    private final Inflater inflater;
+    private byte[] compressed;
+
+    public BinaryRecordingReader(InputStream stream) throws IOException {
+        this(new DataInputStream(stream), -1);
+    }
+
+    /**
+     * Reads blocks that start straight away, without the file header.
+     * @param flags the flags from the header of the file they came from
+     */
+    BinaryRecordingReader(InputStream blocks, int flags) throws IOException {
+        in = blocks instanceof DataInputStream ? (DataInputStream)blocks : new DataInputStream(blocks);
+        if (flags < 0) flags = BinaryRecordingOutput.readFlags(in);
+        if ((flags & BinaryRecordingOutput.FLAG_DEFLATE) != 0) {
+            inflater = new Inflater();
+            compressed = new byte[16 * 1024];
+        } else {
+            inflater = null;
+        }
+    }
+
+    @Override
+    public ScanRecord next() throws IOException {
+        while (recordsLeft == 0) {
+            if (!readBlock()) return null;
+        }
+        recordsLeft--;
+        int tag = block[position++];
+        if (tag == BinaryRecordingOutput.TAG_TEXT) {
+            int length = (int)getVarint();
+            String text = new String(block, position, length, BinaryRecordingOutput.UTF8);
+            position += length;
+            return ScanRecord.textLine(text);
+        } else if (tag == BinaryRecordingOutput.TAG_SCAN) {
+            long offset = lastOffset + unzigzag(getVarint());
+            lastOffset = offset;
+            int count = (int)getVarint();
+            int[] macIds = new int[count];
+            int[] levels = new int[count];
+            for (int i = 0; i < count; i++) {
+                macIds[i] = (int)unzigzag(getVarint());
+                levels[i] = block[position++];
+            }
+            return new ScanRecord(offset, macIds, levels);
+        } else {
+            throw new IOException("Unknown record type " + tag);
+        }
+    }
+
+    /**
+     * Reads the next block into memory.
+     * @return false at the end of the file
+     */
+    private boolean readBlock() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        recordsLeft = in.readInt();
+        in.readLong(); // first offset, only needed when skipping blocks
+        in.readLong();
+        if (inflater != null) {
+            blockLength = inflate(length);
+        } else {
+            if (length > block.length) {
+                block = new byte[Math.max(length, block.length * 2)];
+            }
+            in.readFully(block, 0, length);
+            blockLength = length;
+        }
+        position = 0;
+        lastOffset = 0;
+        return true;
+    }
+
+    /**
+     * Reads a compressed payload of the given length and inflates it into block.
+     * @return the uncompressed length
+     */
+    private int inflate(int length) throws IOException {
+        int rawLength = in.readInt();
+        length -= 4;
+        if (length < 0 || rawLength < 0) throw new IOException("Bad compressed block");
+        if (length > compressed.length) {
+            compressed = new byte[Math.max(length, compressed.length * 2)];
+        }
+        if (rawLength > block.length) {
+            block = new byte[Math.max(rawLength, block.length * 2)];
+        }
+        in.readFully(compressed, 0, length);
+        inflater.reset();
+        inflater.setInput(compressed, 0, length);
+        try {
+            int done = 0;
+            while (done < rawLength) {
+                int n = inflater.inflate(block, done, rawLength - done);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                done += n;
+            }
+            if (done != rawLength) throw new IOException("Compressed block is " + done + " bytes, expected " + rawLength);
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed block", e);
+        }
+        return rawLength;
+    }
+
+    private long getVarint() throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            if (position >= blockLength) throw new IOException("Record runs past the end of its block");
+            byte b = block[position++];
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+            if (shift > 63) throw new IOException("Bad varint");
+        }
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            if (inflater != null) inflater.end();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.cogn.wifirecord;
+
+/**
+ * Where the locator, the recorders and replay get the time from, so replay can run faster than
+ * real time and tests can control it.
+ *
+ * All clocks count ms on the same scale as System.currentTimeMillis(), but only {@link #SYSTEM}
+ * is sure to give today's date: the others are for offsets.  Waits between scans go through
+ * {@link #sleep(long)} so they run at the speed of the clock.
+ */
+public abstract class Clock {
+
+    /**
+     * The wall clock.  Can jump when the phone sets its time, so offsets are better taken from
+     * {@link #MONOTONIC}.
+     */
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Starts at the wall clock time when the app starts and only ever moves forwards.  It stops
+     * while the phone is in deep sleep, so it falls behind the wall clock and gives the wrong date.
+     */
+    public static final Clock MONOTONIC = new Scaled(1);
+
+    public abstract long millis();
+
+    /**
+     * Waits for the given time as measured by this clock.
+     */
+    public void sleep(long ms) throws InterruptedException {
+        if (ms > 0) Thread.sleep(ms);
+    }
+
+    /**
+     * Runs at a multiple of real time from the wall clock time when it was made.
+     */
+    public static class Scaled extends Clock {
+        private final long startMillis;
+        private final long startNanos;
+        private final double speed;
+
+        public Scaled(double speed) {
+            if (speed <= 0) throw new IllegalArgumentException("Clock speed must be positive, not " + speed);
+            this.speed = speed;
+            startMillis = System.currentTimeMillis();
+            startNanos = System.nanoTime();
+        }
+
+        @Override
+        public long millis() {
+            return startMillis + (long)((System.nanoTime() - startNanos) / 1e6 * speed);
+        }
+
+        @Override
+        public void sleep(long ms) throws InterruptedException {
+            if (ms <= 0) return;
+            long nanos = (long)(ms * 1e6 / speed);
+            Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+        }
+
+        public double getSpeed() {
+            return speed;
+        }
+    }
+
+    /**
+     * Only moves when told to, and a sleep moves it on at once.  Code run against it sees no time
+     * pass while it works, so it makes the same decisions however fast or slow the CPU is.
+     */
+    public static class Virtual extends Clock {
+        private volatile long now;
+
+        public Virtual(long startMillis) {
+            now = startMillis;
+        }
+
+        @Override
+        public long millis() {
+            return now;
+        }
+
+        @Override
+        public void sleep(long ms) {
+            if (ms > 0) advance(ms);
+        }
+
+        public synchronized void advance(long ms) {
+            now += ms;
+        }
+
+        public synchronized void set(long millis) {
+            now = millis;
+        }
+    }
+}
@@ -20,14 +20,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Date;
 import java.util.List;
 
 public class ContinuousRecordActivity extends Activity
@@ -36,6 +34,12 @@ public class ContinuousRecordActivity extends Activity
 {
 
     private static final String TAG = "CONTINUOUS RECORD";
+    private static final int WRITER_QUEUE_LENGTH = 256;
+    private static final long WRITER_FLUSH_MS = 2000;
+    private static final long UI_UPDATE_MS = 1000;
+    private static final int SUMMARY_STRONGEST = 5;
+    private final Clock clock = Clock.MONOTONIC;
+    private final Clock dateClock = Clock.SYSTEM;
     private long startTimeMillis;
     private int counter;
     private static boolean scanRunning;
@@ -43,6 +47,8 @@ public class ContinuousRecordActivity extends Activity
     private MacLookup macLookup;
     private String location;
     private String deviceName;
+    private boolean binaryRecording;
+    private boolean compressRecording;
 
     private static String filename;
     private static String macName;
@@ -64,6 +70,8 @@ public class ContinuousRecordActivity extends Activity
 
         wifiManager = (WifiManager) this.getSystemService(Context.WIFI_SERVICE);
         deviceName = PreferenceManager.getDefaultSharedPreferences(this).getString(getString(R.string.key_general_device_name), "");
+        binaryRecording = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(getString(R.string.key_general_binary_recordings), false);
+        compressRecording = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(getString(R.string.key_general_compress_recordings), false);
         if (deviceName.length() < 4) {
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
             builder.setPositiveButton("OK", null);
@@ -194,74 +202,96 @@ public class ContinuousRecordActivity extends Activity
     }
 
     private void startScanning() {
-        Calendar c = Calendar.getInstance();
+        long scanStartMillis = clock.millis();
         // Make the file and folders
         File folder = new File(Environment.getExternalStorageDirectory(), "WifiRecord/"+location);
         if (!folder.exists()) {
             folder.mkdirs();
         }
         File file = new File(folder, filename);
+        RecordingWriter writer;
         try {
-            file.createNewFile();
-            BufferedWriter filewriter = new BufferedWriter(new FileWriter(file, true));
-            filewriter.write("DEVICE," + android.os.Build.BRAND + "," + android.os.Build.MODEL + "\n");
-            String direction = forwardBackwardSwitch.isChecked()?"1":"-1";
-            filewriter.write("DESCRIPTION," + description + "\n");
-            filewriter.write("DIRECTION," + direction + "\n");
-            filewriter.close();
-
+            writer = new RecordingWriter(RecordingOutput.open(file, binaryRecording, compressRecording), WRITER_QUEUE_LENGTH, WRITER_FLUSH_MS, clock);
         } catch (IOException ioe)
         {
             Log.e(TAG, "could not make file", ioe);
+            scanRunning = false;
             return;
         }
+        writer.writeLine("DEVICE," + android.os.Build.BRAND + "," + android.os.Build.MODEL);
+        String direction = forwardBackwardSwitch.isChecked()?"1":"-1";
+        writer.writeLine("DESCRIPTION," + description);
+        writer.writeLine("DIRECTION," + direction);
 
         // Start recording
 
         ArrayList<Integer> oldScanned = null;
         List<ScanResult> scanned;
         long offset;
-        int macID;
+        int scanCount = 0;
+        long lastUIUpdate = 0;
         scanRunning = true;
-        startTimeMillis = c.getTimeInMillis();
+        startTimeMillis = scanStartMillis;
 
 
         while (!requestStop){
             scanned = wifiManager.getScanResults();
             if (haveChanged(oldScanned, scanned)) {
-                try {
-                    String results = "";
-                    BufferedWriter filewriter = new BufferedWriter(new FileWriter(file, true));
-                    offset = Calendar.getInstance().getTimeInMillis() - startTimeMillis;
-                    Log.d(TAG, "OFFSET," + offset + "\n");
-                    filewriter.write("OFFSET," + offset + "\n");
-                    results+="OFFSET," + offset + "\n";
-                    oldScanned = new ArrayList<Integer>();
-                    for (ScanResult scan : scanned) {
-                        macID = macLookup.getId(scan.BSSID, scan.SSID);
-                        Log.d(TAG, macID + "," + scan.level + "\n");
-                        filewriter.write(macID + "," + scan.level + "\n");
-                        results+=""  + macID + "," + scan.level + "\n";
-                        oldScanned.add(scan.level);
-                    }
-                    writeToUIThread(results);
-                    filewriter.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                offset = clock.millis() - startTimeMillis;
+                int[] macIDs = new int[scanned.size()];
+                int[] levels = new int[scanned.size()];
+                oldScanned = new ArrayList<Integer>();
+                for (int i = 0; i < scanned.size(); i++) {
+                    ScanResult scan = scanned.get(i);
+                    macIDs[i] = macLookup.getId(scan.BSSID, scan.SSID);
+                    levels[i] = scan.level;
+                    oldScanned.add(scan.level);
+                }
+                // the new macs are written before the scan that uses them
+                macLookup.endBatch();
+                writer.write(new ScanRecord(offset, macIDs, levels));
+                scanCount++;
+                if (offset - lastUIUpdate >= UI_UPDATE_MS) {
+                    lastUIUpdate = offset;
+                    writeToUIThread(summarise(scanCount, offset, macIDs, levels));
                 }
             }
             try {
                 long delayMS = 100;
-                Thread.sleep(delayMS); }
+                clock.sleep(delayMS); }
             catch (InterruptedException e) {
                 e.printStackTrace();
                 scanRunning = false;
             }
             wifiManager.startScan();
         }
+        writer.close();
+        if (writer.getError() != null) {
+            Log.e(TAG, "could not write recording", writer.getError());
+        }
+        macLookup.close();
         scanRunning = false;
     }
 
+    /**
+     * Short description of the recording so far for the screen, with the strongest macs of the latest scan.
+     */
+    private static String summarise(int scanCount, long offset, int[] macIDs, int[] levels) {
+        StringBuilder text = new StringBuilder();
+        text.append("Scans: ").append(scanCount).append("  Time: ").append(offset / 1000).append("s\n");
+        text.append("APs in latest scan: ").append(macIDs.length).append('\n');
+        boolean[] shown = new boolean[macIDs.length];
+        for (int n = 0; n < Math.min(SUMMARY_STRONGEST, macIDs.length); n++) {
+            int best = -1;
+            for (int i = 0; i < macIDs.length; i++) {
+                if (!shown[i] && (best < 0 || levels[i] > levels[best])) best = i;
+            }
+            shown[best] = true;
+            text.append(macIDs[best]).append(',').append(levels[best]).append('\n');
+        }
+        return text.toString();
+    }
+
     @Override
     public void onDismiss(DialogInterface dialog) {
         finish();
@@ -290,10 +320,10 @@ public class ContinuousRecordActivity extends Activity
             //View view = findViewById(R.id.continuous_record_description);
             //layout.removeView(view);
 
-            String scanStartTime = DataReadWrite.timeStampFormat.format(Calendar.getInstance().getTime());
-            filename = location.toLowerCase().trim() + "_" + scanStartTime + "_" + deviceName + "_path.txt";
+            String scanStartTime = DataReadWrite.timeStampFormat.format(new Date(dateClock.millis()));
+            filename = location.toLowerCase().trim() + "_" + scanStartTime + "_" + deviceName + "_path" + DataReadWrite.recordingExtension(binaryRecording);
             macName = location.toLowerCase().trim() + "_" + scanStartTime + "_" + deviceName + "_macs.txt";
-            macLookup = new MacLookup(location, macName);
+            macLookup = new MacLookup(location, macName, clock);
             start();
         } else if (v.getId()==R.id.btn_continuous_record_stop) {
             findViewById(R.id.continuous_record_path_name).setEnabled(true);
@@ -0,0 +1,642 @@
+package com.cogn.wifirecord;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Shortest routes on a {@link Graph} too big for a {@link RouteTable}, from searches that settle a
+ * few hundred nodes however big the graph gets.
+ *
+ * Building it takes the nodes out of the graph one at a time, least important first.  When a node
+ * goes, a shortcut is added between each pair of its neighbours whose shortest route ran through
+ * it, unless a search finds another way that is no longer.  Every edge then leads up the order the
+ * nodes went in, and a query searches up from both ends at once until the two searches meet.
+ * Shortcuts remember the node they skip, so the route can be filled back in with every node it
+ * passes.
+ *
+ * Queries are thread safe.
+ */
+public class ContractionHierarchy {
+    private static final int MAGIC = 0x31484357; // "WCH1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    // a search for another way gives up after settling this many nodes and the shortcut is kept,
+    // working out priorities only needs a rough count so gives up sooner
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+    private static final int SIMULATED_WITNESS_SETTLE_LIMIT = 50;
+
+    private final int nodeCount;
+    // Edges from node i to nodes later in the order are forwardTo[forwardStart[i]] ..
+    // forwardTo[forwardStart[i+1]-1].  Middle is the node a shortcut skips, -1 for a graph edge.
+    private int[] forwardStart;
+    private int[] forwardTo;
+    private double[] forwardLength;
+    private int[] forwardMiddle;
+    // Edges into node i from nodes later in the order, for searching back from the end
+    private int[] backwardStart;
+    private int[] backwardFrom;
+    private double[] backwardLength;
+    private int[] backwardMiddle;
+
+    // each thread keeps its query arrays, they are as long as the graph
+    private final ThreadLocal<Query> queries = new ThreadLocal<Query>() {
+        @Override
+        protected Query initialValue() {
+            return new Query();
+        }
+    };
+
+    private ContractionHierarchy(int nodeCount) {
+        this.nodeCount = nodeCount;
+    }
+
+    /**
+     * Builds the hierarchy for a graph in the compiled form of {@link Graph}.
+     */
+    static ContractionHierarchy build(int nodeCount, int[] edgeStart, int[] edgeTo, double[] edgeLength) {
+        return new Builder(nodeCount, edgeStart, edgeTo, edgeLength).build();
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @param ends the route goes to whichever of these is nearest
+     * @return the nodes along the shortest route, null if none of the ends can be reached
+     */
+    public int[] findPath(int start, int[] ends) {
+        Query query = queries.get();
+        int meet = query.run(start, ends);
+        if (meet < 0) return null;
+        // the edges up to the meeting node, in the order they are walked
+        int upCount = 0;
+        for (int node = meet; node != start; node = query.forwardPrevious[node]) {
+            upCount++;
+        }
+        int[] upFrom = new int[upCount];
+        int[] upTo = new int[upCount];
+        int[] upMiddle = new int[upCount];
+        for (int node = meet, i = upCount - 1; node != start; node = query.forwardPrevious[node], i--) {
+            upFrom[i] = query.forwardPrevious[node];
+            upTo[i] = node;
+            upMiddle[i] = forwardMiddle[query.forwardEdge[node]];
+        }
+
+        PathBuilder path = new PathBuilder();
+        path.add(start);
+        for (int i = 0; i < upCount; i++) {
+            unpack(upTo[i], upMiddle[i], path);
+        }
+        for (int node = meet; query.backwardNext[node] >= 0; node = query.backwardNext[node]) {
+            unpack(query.backwardNext[node], backwardMiddle[query.backwardEdge[node]], path);
+        }
+        return path.toArray();
+    }
+
+    /**
+     * @return the length of the shortest route to the nearest of the ends, Double.MAX_VALUE if
+     * none can be reached
+     */
+    public double getDistance(int start, int[] ends) {
+        Query query = queries.get();
+        int meet = query.run(start, ends);
+        return meet < 0 ? Double.MAX_VALUE : query.forwardDist[meet] + query.backwardDist[meet];
+    }
+
+    /**
+     * Adds the nodes of an edge from the last node of the path, filling in the nodes that
+     * shortcuts skip.
+     */
+    private void unpack(int to, int middle, PathBuilder path) {
+        // pairs of the end of an edge still to add and the node it skips
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = to;
+        stack[size++] = middle;
+        while (size > 0) {
+            int skipped = stack[--size];
+            int end = stack[--size];
+            if (skipped < 0) {
+                path.add(end);
+                continue;
+            }
+            if (size + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            // the skipped node went first, so both halves are stored with it
+            stack[size++] = end;
+            stack[size++] = forwardMiddle[findForward(skipped, end)];
+            stack[size++] = skipped;
+            stack[size++] = backwardMiddle[findBackward(skipped, path.last())];
+        }
+    }
+
+    private int findForward(int node, int to) {
+        for (int edge = forwardStart[node]; edge < forwardStart[node + 1]; edge++) {
+            if (forwardTo[edge] == to) return edge;
+        }
+        throw new IllegalStateException("No edge from " + node + " to " + to);
+    }
+
+    private int findBackward(int node, int from) {
+        for (int edge = backwardStart[node]; edge < backwardStart[node + 1]; edge++) {
+            if (backwardFrom[edge] == from) return edge;
+        }
+        throw new IllegalStateException("No edge from " + from + " to " + node);
+    }
+
+    /**
+     * The state of a query, searching up from the start and back up from the ends in turn.  The
+     * arrays are kept between queries and only the nodes the last one reached are reset.
+     */
+    private class Query {
+        final double[] forwardDist = new double[nodeCount];
+        final double[] backwardDist = new double[nodeCount];
+        final int[] forwardPrevious = new int[nodeCount];
+        final int[] forwardEdge = new int[nodeCount];
+        final int[] backwardNext = new int[nodeCount];
+        final int[] backwardEdge = new int[nodeCount];
+        final Graph.NodeHeap forwardHeap = new Graph.NodeHeap(nodeCount);
+        final Graph.NodeHeap backwardHeap = new Graph.NodeHeap(nodeCount);
+        // the nodes given a distance on either side
+        final int[] reached = new int[nodeCount];
+        int reachedCount;
+
+        Query() {
+            Arrays.fill(forwardDist, Double.MAX_VALUE);
+            Arrays.fill(backwardDist, Double.MAX_VALUE);
+            Arrays.fill(backwardNext, -1);
+        }
+
+        private void reach(int node) {
+            if (forwardDist[node] == Double.MAX_VALUE && backwardDist[node] == Double.MAX_VALUE) {
+                reached[reachedCount++] = node;
+            }
+        }
+
+        /**
+         * @return the node where the shortest route is highest in the order, -1 if there is no route
+         */
+        int run(int start, int[] ends) {
+            for (int i = 0; i < reachedCount; i++) {
+                int node = reached[i];
+                forwardDist[node] = Double.MAX_VALUE;
+                backwardDist[node] = Double.MAX_VALUE;
+                backwardNext[node] = -1;
+            }
+            reachedCount = 0;
+
+            reach(start);
+            forwardDist[start] = 0;
+            forwardHeap.update(start, 0);
+            double best = Double.MAX_VALUE;
+            int meet = -1;
+            for (int end : ends) {
+                reach(end);
+                backwardDist[end] = 0;
+                backwardHeap.update(end, 0);
+                if (end == start) {
+                    best = 0;
+                    meet = start;
+                }
+            }
+
+            boolean forwardTurn = true;
+            while (true) {
+                // nothing still to settle on a side can be on a shorter route than the best so far
+                boolean forwardLeft = !forwardHeap.isEmpty() && forwardHeap.minKey() < best;
+                boolean backwardLeft = !backwardHeap.isEmpty() && backwardHeap.minKey() < best;
+                if (!forwardLeft && !backwardLeft) break;
+                boolean forward = forwardLeft && (forwardTurn || !backwardLeft);
+                forwardTurn = !forwardTurn;
+                if (forward) {
+                    int current = forwardHeap.poll();
+                    if (forwardStalled(current)) continue;
+                    for (int edge = forwardStart[current]; edge < forwardStart[current + 1]; edge++) {
+                        int to = forwardTo[edge];
+                        double d = forwardDist[current] + forwardLength[edge];
+                        if (d < forwardDist[to]) {
+                            reach(to);
+                            forwardDist[to] = d;
+                            forwardPrevious[to] = current;
+                            forwardEdge[to] = edge;
+                            forwardHeap.update(to, d);
+                            if (backwardDist[to] < Double.MAX_VALUE && d + backwardDist[to] < best) {
+                                best = d + backwardDist[to];
+                                meet = to;
+                            }
+                        }
+                    }
+                } else {
+                    int current = backwardHeap.poll();
+                    if (backwardStalled(current)) continue;
+                    for (int edge = backwardStart[current]; edge < backwardStart[current + 1]; edge++) {
+                        int from = backwardFrom[edge];
+                        double d = backwardDist[current] + backwardLength[edge];
+                        if (d < backwardDist[from]) {
+                            reach(from);
+                            backwardDist[from] = d;
+                            backwardNext[from] = current;
+                            backwardEdge[from] = edge;
+                            backwardHeap.update(from, d);
+                            if (forwardDist[from] < Double.MAX_VALUE && d + forwardDist[from] < best) {
+                                best = d + forwardDist[from];
+                                meet = from;
+                            }
+                        }
+                    }
+                }
+            }
+            forwardHeap.clear();
+            backwardHeap.clear();
+            return meet;
+        }
+
+        /**
+         * A node is reached more cheaply from a node above it than the upward search got to it, so
+         * the search doesn't need to go on from it.  The distance is only too long, so the meeting
+         * node is still found.
+         */
+        private boolean forwardStalled(int node) {
+            // edges from higher nodes into this one are the backward edges stored with it
+            for (int edge = backwardStart[node]; edge < backwardStart[node + 1]; edge++) {
+                int from = backwardFrom[edge];
+                if (forwardDist[from] < Double.MAX_VALUE && forwardDist[from] + backwardLength[edge] < forwardDist[node]) return true;
+            }
+            return false;
+        }
+
+        private boolean backwardStalled(int node) {
+            for (int edge = forwardStart[node]; edge < forwardStart[node + 1]; edge++) {
+                int to = forwardTo[edge];
+                if (backwardDist[to] < Double.MAX_VALUE && backwardDist[to] + forwardLength[edge] < backwardDist[node]) return true;
+            }
+            return false;
+        }
+    }
+
+    private static class PathBuilder {
+        private int[] nodes = new int[32];
+        private int size;
+
+        void add(int node) {
+            if (size == nodes.length) nodes = Arrays.copyOf(nodes, size * 2);
+            nodes[size++] = node;
+        }
+
+        int last() {
+            return nodes[size - 1];
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(nodes, size);
+        }
+    }
+
+    /**
+     * Writes the hierarchy to a file that can be read with {@link #read(File, long, int)}.
+     * @param sourceKey identifies the graph the hierarchy was made from, so a stale file can be spotted
+     */
+    public void write(File file, long sourceKey) throws IOException {
+        int forwardCount = forwardTo.length;
+        int backwardCount = backwardFrom.length;
+        long bytes = fileSize(nodeCount, forwardCount, backwardCount);
+        // a file of its own, so writers of the same file never touch each other's partial copy
+        File partial = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        RandomAccessFile out = new RandomAccessFile(partial, "rw");
+        boolean written = false;
+        try {
+            out.setLength(bytes);
+            MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(sourceKey)
+                    .putInt(nodeCount).putInt(forwardCount).putInt(backwardCount).putInt(0);
+            // the lengths go first so they stay 8 byte aligned
+            put(buffer, forwardLength);
+            put(buffer, backwardLength);
+            put(buffer, forwardStart);
+            put(buffer, forwardTo);
+            put(buffer, forwardMiddle);
+            put(buffer, backwardStart);
+            put(buffer, backwardFrom);
+            put(buffer, backwardMiddle);
+            buffer.force();
+            written = true;
+        } finally {
+            out.close();
+            if (!written) partial.delete();
+        }
+        if (!partial.renameTo(file)) {
+            file.delete();
+            if (!partial.renameTo(file)) {
+                partial.delete();
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    private static void put(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    private static void put(ByteBuffer buffer, double[] values) {
+        buffer.asDoubleBuffer().put(values);
+        buffer.position(buffer.position() + 8 * values.length);
+    }
+
+    private static long fileSize(int nodeCount, int forwardCount, int backwardCount) {
+        return HEADER_BYTES + 8L * (forwardCount + backwardCount)
+                + 4L * (2L * (nodeCount + 1) + 2L * forwardCount + 2L * backwardCount);
+    }
+
+    /**
+     * Reads a hierarchy written by {@link #write(File, long)}.
+     * @param sourceKey the key the file must have been written with
+     * @param nodeCount the number of nodes the graph has now
+     * @return the hierarchy, or null if the file is missing, damaged or was written for another graph
+     */
+    public static ContractionHierarchy read(File file, long sourceKey, int nodeCount) {
+        if (!file.isFile() || file.length() < HEADER_BYTES) return null;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != sourceKey
+                        || buffer.getInt() != nodeCount) return null;
+                int forwardCount = buffer.getInt();
+                int backwardCount = buffer.getInt();
+                buffer.getInt();
+                if (forwardCount < 0 || backwardCount < 0
+                        || file.length() != fileSize(nodeCount, forwardCount, backwardCount)) return null;
+
+                // copied out of the mapping, queries read them too often to go through a buffer
+                ContractionHierarchy hierarchy = new ContractionHierarchy(nodeCount);
+                hierarchy.forwardLength = doubles(buffer, forwardCount);
+                hierarchy.backwardLength = doubles(buffer, backwardCount);
+                hierarchy.forwardStart = ints(buffer, nodeCount + 1);
+                hierarchy.forwardTo = ints(buffer, forwardCount);
+                hierarchy.forwardMiddle = ints(buffer, forwardCount);
+                hierarchy.backwardStart = ints(buffer, nodeCount + 1);
+                hierarchy.backwardFrom = ints(buffer, backwardCount);
+                hierarchy.backwardMiddle = ints(buffer, backwardCount);
+                return hierarchy;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static int[] ints(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * count);
+        return values;
+    }
+
+    private static double[] doubles(ByteBuffer buffer, int count) {
+        double[] values = new double[count];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + 8 * count);
+        return values;
+    }
+
+    /**
+     * The edges into or out of a node while the graph is being contracted, at most one to each
+     * other node.
+     */
+    private static class EdgeList {
+        int[] node = new int[4];
+        double[] length = new double[4];
+        int[] middle = new int[4];
+        int size;
+
+        /**
+         * Adds the edge, or shortens the one to the same node if the new one is shorter.
+         */
+        void lower(int to, double edgeLength, int skipped) {
+            for (int i = 0; i < size; i++) {
+                if (node[i] == to) {
+                    if (edgeLength < length[i]) {
+                        length[i] = edgeLength;
+                        middle[i] = skipped;
+                    }
+                    return;
+                }
+            }
+            if (size == node.length) {
+                node = Arrays.copyOf(node, size * 2);
+                length = Arrays.copyOf(length, size * 2);
+                middle = Arrays.copyOf(middle, size * 2);
+            }
+            node[size] = to;
+            length[size] = edgeLength;
+            middle[size] = skipped;
+            size++;
+        }
+
+        void remove(int to) {
+            for (int i = 0; i < size; i++) {
+                if (node[i] == to) {
+                    size--;
+                    node[i] = node[size];
+                    length[i] = length[size];
+                    middle[i] = middle[size];
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Builder {
+        private final int nodeCount;
+        // the edges between nodes that are still in the graph
+        private final EdgeList[] out;
+        private final EdgeList[] in;
+        private final int[] contractedNeighbours;
+        // how many nodes below this one in the hierarchy a route could go through
+        private final int[] depth;
+
+        // the search for another way round a node, reset after each one
+        private final double[] witnessDist;
+        private final int[] touched;
+        private int touchedCount;
+        private final Graph.NodeHeap witnessHeap;
+
+        Builder(int nodeCount, int[] edgeStart, int[] edgeTo, double[] edgeLength) {
+            this.nodeCount = nodeCount;
+            out = new EdgeList[nodeCount];
+            in = new EdgeList[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                out[i] = new EdgeList();
+                in[i] = new EdgeList();
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                for (int edge = edgeStart[i]; edge < edgeStart[i + 1]; edge++) {
+                    int to = edgeTo[edge];
+                    if (to == i) continue;
+                    out[i].lower(to, edgeLength[edge], -1);
+                    in[to].lower(i, edgeLength[edge], -1);
+                }
+            }
+            contractedNeighbours = new int[nodeCount];
+            depth = new int[nodeCount];
+            witnessDist = new double[nodeCount];
+            Arrays.fill(witnessDist, Double.MAX_VALUE);
+            touched = new int[nodeCount];
+            witnessHeap = new Graph.NodeHeap(nodeCount);
+        }
+
+        ContractionHierarchy build() {
+            // the edges each node had left when it went, which all lead to nodes that go later
+            EdgeList[] upOut = new EdgeList[nodeCount];
+            EdgeList[] upIn = new EdgeList[nodeCount];
+
+            Graph.NodeHeap queue = new Graph.NodeHeap(nodeCount);
+            for (int node = 0; node < nodeCount; node++) {
+                queue.update(node, priority(node));
+            }
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                // priorities go stale as neighbours go, so check again before taking the node out
+                double priority = priority(node);
+                if (!queue.isEmpty() && priority > queue.minKey()) {
+                    queue.update(node, priority);
+                    continue;
+                }
+                contract(node, false);
+                upOut[node] = out[node];
+                upIn[node] = in[node];
+                for (int i = 0; i < out[node].size; i++) {
+                    int to = out[node].node[i];
+                    in[to].remove(node);
+                    contractedNeighbours[to]++;
+                    depth[to] = Math.max(depth[to], depth[node] + 1);
+                }
+                for (int i = 0; i < in[node].size; i++) {
+                    int from = in[node].node[i];
+                    out[from].remove(node);
+                    contractedNeighbours[from]++;
+                    depth[from] = Math.max(depth[from], depth[node] + 1);
+                }
+            }
+
+            ContractionHierarchy hierarchy = new ContractionHierarchy(nodeCount);
+            hierarchy.forwardStart = new int[nodeCount + 1];
+            hierarchy.backwardStart = new int[nodeCount + 1];
+            int forwardCount = 0;
+            int backwardCount = 0;
+            for (int node = 0; node < nodeCount; node++) {
+                forwardCount += upOut[node].size;
+                backwardCount += upIn[node].size;
+            }
+            hierarchy.forwardTo = new int[forwardCount];
+            hierarchy.forwardLength = new double[forwardCount];
+            hierarchy.forwardMiddle = new int[forwardCount];
+            hierarchy.backwardFrom = new int[backwardCount];
+            hierarchy.backwardLength = new double[backwardCount];
+            hierarchy.backwardMiddle = new int[backwardCount];
+            int forward = 0;
+            int backward = 0;
+            for (int node = 0; node < nodeCount; node++) {
+                hierarchy.forwardStart[node] = forward;
+                EdgeList edges = upOut[node];
+                System.arraycopy(edges.node, 0, hierarchy.forwardTo, forward, edges.size);
+                System.arraycopy(edges.length, 0, hierarchy.forwardLength, forward, edges.size);
+                System.arraycopy(edges.middle, 0, hierarchy.forwardMiddle, forward, edges.size);
+                forward += edges.size;
+                hierarchy.backwardStart[node] = backward;
+                edges = upIn[node];
+                System.arraycopy(edges.node, 0, hierarchy.backwardFrom, backward, edges.size);
+                System.arraycopy(edges.length, 0, hierarchy.backwardLength, backward, edges.size);
+                System.arraycopy(edges.middle, 0, hierarchy.backwardMiddle, backward, edges.size);
+                backward += edges.size;
+            }
+            hierarchy.forwardStart[nodeCount] = forward;
+            hierarchy.backwardStart[nodeCount] = backward;
+            return hierarchy;
+        }
+
+        /**
+         * Nodes that need few shortcuts, and whose neighbours have not lost many nodes yet, go
+         * first, which keeps the number of shortcuts down and the hierarchy even and shallow.
+         */
+        private double priority(int node) {
+            int edgeDifference = contract(node, true) - out[node].size - in[node].size;
+            return 2 * edgeDifference + contractedNeighbours[node] + depth[node];
+        }
+
+        /**
+         * Adds the shortcuts needed to take the node out.
+         * @param simulate only count the shortcuts
+         * @return the number of shortcuts
+         */
+        private int contract(int node, boolean simulate) {
+            EdgeList into = in[node];
+            EdgeList outOf = out[node];
+            int shortcuts = 0;
+            for (int i = 0; i < into.size; i++) {
+                int from = into.node[i];
+                double maxLength = -1;
+                for (int j = 0; j < outOf.size; j++) {
+                    if (outOf.node[j] != from) maxLength = Math.max(maxLength, into.length[i] + outOf.length[j]);
+                }
+                if (maxLength < 0) continue;
+                witnessSearch(from, node, maxLength, simulate ? SIMULATED_WITNESS_SETTLE_LIMIT : WITNESS_SETTLE_LIMIT);
+                for (int j = 0; j < outOf.size; j++) {
+                    int to = outOf.node[j];
+                    if (to == from) continue;
+                    double viaNode = into.length[i] + outOf.length[j];
+                    if (witnessDist[to] <= viaNode) continue;
+                    shortcuts++;
+                    if (!simulate) {
+                        out[from].lower(to, viaNode, node);
+                        in[to].lower(from, viaNode, node);
+                    }
+                }
+                for (int j = 0; j < touchedCount; j++) {
+                    witnessDist[touched[j]] = Double.MAX_VALUE;
+                }
+                touchedCount = 0;
+            }
+            return shortcuts;
+        }
+
+        /**
+         * Searches from the start without going through the node being taken out, as far as the
+         * longest route through it.  Every distance it finds is the length of a real route, even
+         * for nodes it hasn't settled when it gives up.
+         */
+        private void witnessSearch(int start, int skip, double maxLength, int settleLimit) {
+            witnessDist[start] = 0;
+            touched[touchedCount++] = start;
+            witnessHeap.update(start, 0);
+            int settled = 0;
+            while (!witnessHeap.isEmpty() && witnessHeap.minKey() <= maxLength && settled++ < settleLimit) {
+                int current = witnessHeap.poll();
+                EdgeList edges = out[current];
+                for (int i = 0; i < edges.size; i++) {
+                    int to = edges.node[i];
+                    if (to == skip) continue;
+                    double d = witnessDist[current] + edges.length[i];
+                    if (d < witnessDist[to]) {
+                        if (witnessDist[to] == Double.MAX_VALUE) touched[touchedCount++] = to;
+                        witnessDist[to] = d;
+                        witnessHeap.update(to, d);
+                    }
+                }
+            }
+            witnessHeap.clear();
+        }
+    }
+}
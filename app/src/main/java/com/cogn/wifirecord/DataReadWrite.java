@@ -7,4 +7,13 @@ import java.text.SimpleDateFormat;
 public class DataReadWrite {
     public static final SimpleDateFormat timeStampFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
     public static final String BaseFolder = Environment.getExternalStorageDirectory() + "/WifiRecord";
+    public static final String TEXT_EXTENSION = ".txt";
+    public static final String BINARY_EXTENSION = ".bin";
+
+    /**
+     * Extension of a readings or path file.  Both are 4 characters, which the file listings rely on.
+     */
+    public static String recordingExtension(boolean binary) {
+        return binary ? BINARY_EXTENSION : TEXT_EXTENSION;
+    }
 }
@@ -0,0 +1,161 @@
+package com.cogn.wifirecord;
+
+import java.util.Arrays;
+
+/**
+ * The shop entrances close enough to each edge of a {@link Graph} to be mentioned in a route
+ * description, found once when the shops are attached.  Describing a route that follows the
+ * edges then only has to join up their lists.
+ *
+ * The landmarks of edge e are numbered landmarkStart[e] .. landmarkStart[e+1]-1, in order along
+ * the edge.  Entrances are numbered as in the {@link ShopDirectory} when the lists were made.
+ */
+public class EdgeLandmarks {
+    private final Shop[] entranceShops;
+    private final int[] entranceNumbers;
+
+    private final int[] landmarkStart;
+    private final int[] landmarkEntrance;
+    // the point on the edge closest to the entrance, how far the entrance is from it and how far
+    // it is along the edge, all in px
+    private final float[] landmarkX;
+    private final float[] landmarkY;
+    private final double[] landmarkDistance;
+    private final double[] landmarkOffset;
+
+    private EdgeLandmarks(Shop[] entranceShops, int[] entranceNumbers, int[] landmarkStart, int[] landmarkEntrance,
+                          float[] landmarkX, float[] landmarkY, double[] landmarkDistance, double[] landmarkOffset) {
+        this.entranceShops = entranceShops;
+        this.entranceNumbers = entranceNumbers;
+        this.landmarkStart = landmarkStart;
+        this.landmarkEntrance = landmarkEntrance;
+        this.landmarkX = landmarkX;
+        this.landmarkY = landmarkY;
+        this.landmarkDistance = landmarkDistance;
+        this.landmarkOffset = landmarkOffset;
+    }
+
+    /**
+     * Finds the entrances within the separation of each edge in the compiled form of
+     * {@link Graph}.  Edges between levels get none, as route descriptions skip them.
+     */
+    static EdgeLandmarks build(float[] nodeX, float[] nodeY, int[] nodeLevel, int[] edgeStart, int[] edgeTo,
+                               ShopDirectory shopDirectory, double separationPx) {
+        int edgeCount = edgeStart[nodeX.length];
+        int[] landmarkStart = new int[edgeCount + 1];
+        int capacity = 64;
+        int[] entrance = new int[capacity];
+        float[] x = new float[capacity];
+        float[] y = new float[capacity];
+        double[] distance = new double[capacity];
+        double[] offset = new double[capacity];
+        int count = 0;
+        float margin = (float)separationPx;
+        float[] closest = new float[2];
+        Shop[] entranceShops;
+        int[] entranceNumbers;
+
+        synchronized (shopDirectory) {
+            int entranceCount = shopDirectory.getEntranceCount();
+            entranceShops = new Shop[entranceCount];
+            entranceNumbers = new int[entranceCount];
+            for (int i = 0; i < entranceCount; i++) {
+                entranceShops[i] = shopDirectory.getEntranceShop(i);
+                entranceNumbers[i] = shopDirectory.getEntranceNumber(i);
+            }
+            for (int from = 0; from < nodeX.length; from++) {
+                for (int edge = edgeStart[from]; edge < edgeStart[from + 1]; edge++) {
+                    landmarkStart[edge] = count;
+                    int to = edgeTo[edge];
+                    if (nodeLevel[from] != nodeLevel[to]) continue;
+                    int found = shopDirectory.queryEntrances(nodeLevel[from],
+                            Math.min(nodeX[from], nodeX[to]) - margin, Math.min(nodeY[from], nodeY[to]) - margin,
+                            Math.max(nodeX[from], nodeX[to]) + margin, Math.max(nodeY[from], nodeY[to]) + margin);
+                    for (int r = 0; r < found; r++) {
+                        int e = shopDirectory.getEntranceResult(r);
+                        Position location = shopDirectory.getEntranceLocation(e);
+                        double d = Route.pointToSegment(location.x, location.y, nodeX[from], nodeY[from],
+                                nodeX[to], nodeY[to], closest);
+                        if (!(d <= separationPx)) continue;
+                        if (count == capacity) {
+                            capacity *= 2;
+                            entrance = Arrays.copyOf(entrance, capacity);
+                            x = Arrays.copyOf(x, capacity);
+                            y = Arrays.copyOf(y, capacity);
+                            distance = Arrays.copyOf(distance, capacity);
+                            offset = Arrays.copyOf(offset, capacity);
+                        }
+                        // measured as Route measures how far along a segment the closest point is
+                        float dx = closest[0] - nodeX[from];
+                        float dy = closest[1] - nodeY[from];
+                        // keep the edge's list in order along it, then by entrance
+                        double along = Math.sqrt(dx*dx + dy*dy);
+                        int i = count++;
+                        while (i > landmarkStart[edge] && (offset[i - 1] > along || (offset[i - 1] == along && entrance[i - 1] > e))) {
+                            entrance[i] = entrance[i - 1];
+                            x[i] = x[i - 1];
+                            y[i] = y[i - 1];
+                            distance[i] = distance[i - 1];
+                            offset[i] = offset[i - 1];
+                            i--;
+                        }
+                        entrance[i] = e;
+                        x[i] = closest[0];
+                        y[i] = closest[1];
+                        distance[i] = d;
+                        offset[i] = along;
+                    }
+                }
+            }
+        }
+        landmarkStart[edgeCount] = count;
+        return new EdgeLandmarks(entranceShops, entranceNumbers, landmarkStart, Arrays.copyOf(entrance, count),
+                Arrays.copyOf(x, count), Arrays.copyOf(y, count), Arrays.copyOf(distance, count), Arrays.copyOf(offset, count));
+    }
+
+    public int getEntranceCount() {
+        return entranceShops.length;
+    }
+
+    public Shop getEntranceShop(int entrance) {
+        return entranceShops[entrance];
+    }
+
+    /**
+     * @return which of its shop's entrances the entrance is
+     */
+    public int getEntranceNumber(int entrance) {
+        return entranceNumbers[entrance];
+    }
+
+    public int getFirstLandmark(int edge) {
+        return landmarkStart[edge];
+    }
+
+    /**
+     * @return one past the last landmark of the edge
+     */
+    public int getEndLandmark(int edge) {
+        return landmarkStart[edge + 1];
+    }
+
+    public int getEntrance(int landmark) {
+        return landmarkEntrance[landmark];
+    }
+
+    public float getX(int landmark) {
+        return landmarkX[landmark];
+    }
+
+    public float getY(int landmark) {
+        return landmarkY[landmark];
+    }
+
+    public double getDistance(int landmark) {
+        return landmarkDistance[landmark];
+    }
+
+    public double getOffset(int landmark) {
+        return landmarkOffset[landmark];
+    }
+}
@@ -0,0 +1,436 @@
+package com.cogn.wifirecord;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Compact storage of the averaged wifi readings for every location in a center.
+ *
+ * Locations are stored as rows of one sparse matrix.  The readings of a row are sorted by mac id
+ * and held in parallel primitive columns of p, mu and sigma, so scoring can walk a location and
+ * an observation together without any boxing or hash lookups.
+ *
+ * A finished store can be written to a compiled file with {@link #write(File, long)}.  Opening that
+ * file with {@link #map(File, long)} maps it into memory and bulk copies each column into an array,
+ * so nothing is parsed when a center is loaded.  The columns are always plain arrays, which keeps
+ * the scoring loops free of buffer calls.
+ *
+ * Compiled file, little endian, every section a whole number of 4 byte values:
+ * <pre>
+ *   header    magic, version, source key (long), location count L, reading count E, known mac count K, 0
+ *   locations x float[L], y float[L], level int[L], row start int[L+1]
+ *   readings  mac id int[E], p float[E], mu float[E], sigma float[E]
+ *   index     known macs int[K], column start int[K+1], column entries int[E], entry location int[E]
+ * </pre>
+ */
+public class FingerprintStore {
+    private static final int INITIAL_LOCATIONS = 64;
+    private static final int INITIAL_ENTRIES = 1024;
+    private static final int MAGIC = 0x31504657; // "WFP1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+
+    // Arrays the store is built in, only used until finish()
+    private int locationCount;
+    private float[] xBuild;
+    private float[] yBuild;
+    private int[] levelBuild;
+    private int[] rowStartBuild;
+    private int entryCount;
+    private int[] macIdBuild;
+    private float[] pBuild;
+    private float[] muBuild;
+    private float[] sigmaBuild;
+    private boolean finished;
+
+    // The finished store, either the trimmed build arrays or copied from a compiled file
+    private float[] x;
+    private float[] y;
+    private int[] level;
+    // readings of location i are in entries rowStart[i] to rowStart[i+1]-1
+    private int[] rowStart;
+    private int[] macIds;
+    private float[] p;
+    private float[] mu;
+    private float[] sigma;
+
+    // sorted distinct mac ids that appear at any location
+    private int[] knownMacs;
+    private int knownMacCount;
+
+    // Inverted index.  The readings of knownMacs[k] are columnEntries[columnStart[k]] to
+    // columnEntries[columnStart[k+1]-1], ordered from the highest p to the lowest.
+    private int[] columnStart;
+    private int[] columnEntries;
+    private int[] entryLocation;
+
+    public FingerprintStore() {
+        xBuild = new float[INITIAL_LOCATIONS];
+        yBuild = new float[INITIAL_LOCATIONS];
+        levelBuild = new int[INITIAL_LOCATIONS];
+        rowStartBuild = new int[INITIAL_LOCATIONS + 1];
+        macIdBuild = new int[INITIAL_ENTRIES];
+        pBuild = new float[INITIAL_ENTRIES];
+        muBuild = new float[INITIAL_ENTRIES];
+        sigmaBuild = new float[INITIAL_ENTRIES];
+    }
+
+    /**
+     * Reads a summary text file of LOCATION,level,x,y lines each followed by macId,p,mu,sigma lines.
+     * The returned store is finished.
+     */
+    public static FingerprintStore readSummary(InputStream summaryStream) {
+        FingerprintStore store = new FingerprintStore();
+        BufferedReader in = new BufferedReader(new InputStreamReader(summaryStream));
+        try {
+            String str;
+            while ((str = in.readLine()) != null) {
+                String[] cols = str.split(",");
+                if (cols[0].equalsIgnoreCase("LOCATION")) {
+                    float x = Float.parseFloat(cols[2]);
+                    float y = Float.parseFloat(cols[3]);
+                    int level = (int)Float.parseFloat(cols[1]);
+                    store.addLocation(x, y, level);
+                } else if (cols.length==4)  {
+                    int id = Integer.parseInt(cols[0]);
+                    float p = Float.parseFloat(cols[1]);
+                    float mu = Float.parseFloat(cols[2]);
+                    float sigma = Float.parseFloat(cols[3]);
+                    store.addReading(id, p, mu, sigma);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        store.finish();
+        return store;
+    }
+
+    /**
+     * Starts a new location.  Readings added afterwards belong to this location.
+     */
+    public void addLocation(float x, float y, int level) {
+        if (finished)
+            throw new IllegalStateException("Locations can't be added once the store is finished");
+        if (locationCount == xBuild.length) {
+            int capacity = locationCount * 2;
+            xBuild = Arrays.copyOf(xBuild, capacity);
+            yBuild = Arrays.copyOf(yBuild, capacity);
+            levelBuild = Arrays.copyOf(levelBuild, capacity);
+            rowStartBuild = Arrays.copyOf(rowStartBuild, capacity + 1);
+        }
+        xBuild[locationCount] = x;
+        yBuild[locationCount] = y;
+        levelBuild[locationCount] = level;
+        locationCount++;
+        rowStartBuild[locationCount] = entryCount;
+    }
+
+    /**
+     * Adds the summary of a mac to the latest location, keeping the row sorted by mac id.
+     * A mac that is already present at this location is overwritten.
+     */
+    public void addReading(int macId, float p, float mu, float sigma) {
+        if (locationCount == 0 || finished)
+            throw new IllegalStateException("A location must be added before its readings");
+        int start = rowStartBuild[locationCount - 1];
+        int pos = entryCount;
+        while (pos > start && macIdBuild[pos - 1] > macId) {
+            pos--;
+        }
+        if (pos > start && macIdBuild[pos - 1] == macId) {
+            pBuild[pos - 1] = p;
+            muBuild[pos - 1] = mu;
+            sigmaBuild[pos - 1] = sigma;
+            return;
+        }
+        if (entryCount == macIdBuild.length) {
+            int capacity = entryCount * 2;
+            macIdBuild = Arrays.copyOf(macIdBuild, capacity);
+            pBuild = Arrays.copyOf(pBuild, capacity);
+            muBuild = Arrays.copyOf(muBuild, capacity);
+            sigmaBuild = Arrays.copyOf(sigmaBuild, capacity);
+        }
+        int moved = entryCount - pos;
+        if (moved > 0) {
+            System.arraycopy(macIdBuild, pos, macIdBuild, pos + 1, moved);
+            System.arraycopy(pBuild, pos, pBuild, pos + 1, moved);
+            System.arraycopy(muBuild, pos, muBuild, pos + 1, moved);
+            System.arraycopy(sigmaBuild, pos, sigmaBuild, pos + 1, moved);
+        }
+        macIdBuild[pos] = macId;
+        pBuild[pos] = p;
+        muBuild[pos] = mu;
+        sigmaBuild[pos] = sigma;
+        entryCount++;
+        rowStartBuild[locationCount] = entryCount;
+    }
+
+    /**
+     * Call once all locations have been added.  Trims the storage and indexes the known macs.
+     */
+    public void finish() {
+        if (finished) return;
+        finished = true;
+        x = Arrays.copyOf(xBuild, locationCount);
+        y = Arrays.copyOf(yBuild, locationCount);
+        level = Arrays.copyOf(levelBuild, locationCount);
+        rowStart = Arrays.copyOf(rowStartBuild, locationCount + 1);
+        macIds = Arrays.copyOf(macIdBuild, entryCount);
+        p = Arrays.copyOf(pBuild, entryCount);
+        mu = Arrays.copyOf(muBuild, entryCount);
+        sigma = Arrays.copyOf(sigmaBuild, entryCount);
+        xBuild = null;
+        yBuild = null;
+        levelBuild = null;
+        rowStartBuild = null;
+        macIdBuild = null;
+        pBuild = null;
+        muBuild = null;
+        sigmaBuild = null;
+
+        int[] sorted = Arrays.copyOf(macIds, entryCount);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (distinct == 0 || sorted[distinct - 1] != sorted[i]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        knownMacs = Arrays.copyOf(sorted, distinct);
+        knownMacCount = distinct;
+        buildColumnIndex();
+    }
+
+    private void buildColumnIndex() {
+        int[] entryLocation = new int[entryCount];
+        for (int location = 0; location < locationCount; location++) {
+            for (int entry = rowStart[location]; entry < rowStart[location + 1]; entry++) {
+                entryLocation[entry] = location;
+            }
+        }
+
+        int[] columnStart = new int[knownMacs.length + 1];
+        for (int entry = 0; entry < entryCount; entry++) {
+            columnStart[Arrays.binarySearch(knownMacs, macIds[entry]) + 1]++;
+        }
+        for (int column = 0; column < knownMacs.length; column++) {
+            columnStart[column + 1] += columnStart[column];
+        }
+        int[] fill = Arrays.copyOf(columnStart, knownMacs.length);
+        int[] columnEntries = new int[entryCount];
+        for (int entry = 0; entry < entryCount; entry++) {
+            int column = Arrays.binarySearch(knownMacs, macIds[entry]);
+            // insertion keeps each column ordered by decreasing p
+            int pos = fill[column]++;
+            while (pos > columnStart[column] && p[columnEntries[pos - 1]] < p[entry]) {
+                columnEntries[pos] = columnEntries[pos - 1];
+                pos--;
+            }
+            columnEntries[pos] = entry;
+        }
+        this.entryLocation = entryLocation;
+        this.columnStart = columnStart;
+        this.columnEntries = columnEntries;
+    }
+
+    /**
+     * Writes the finished store to a compiled file that can be opened with {@link #map(File, long)}.
+     * @param sourceKey identifies the summary the store was read from, so a stale file can be spotted
+     */
+    public void write(File file, long sourceKey) throws IOException {
+        if (!finished)
+            throw new IllegalStateException("Only a finished store can be written");
+        long bytes = fileSize(locationCount, entryCount, knownMacCount);
+        File partial = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(partial, "rw");
+        try {
+            out.setLength(bytes);
+            MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(sourceKey)
+                    .putInt(locationCount).putInt(entryCount).putInt(knownMacCount).putInt(0);
+            put(buffer, x);
+            put(buffer, y);
+            put(buffer, level);
+            put(buffer, rowStart);
+            put(buffer, macIds);
+            put(buffer, p);
+            put(buffer, mu);
+            put(buffer, sigma);
+            put(buffer, knownMacs);
+            put(buffer, columnStart);
+            put(buffer, columnEntries);
+            put(buffer, entryLocation);
+            buffer.force();
+        } finally {
+            out.close();
+        }
+        if (!partial.renameTo(file)) {
+            file.delete();
+            if (!partial.renameTo(file))
+                throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static void put(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    private static void put(ByteBuffer buffer, float[] values) {
+        buffer.asFloatBuffer().put(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    private static long fileSize(int locations, int entries, int knownMacs) {
+        return HEADER_BYTES + 4L * (4L * locations + 1) + 4L * 4 * entries + 4L * (2L * knownMacs + 1) + 4L * 2 * entries;
+    }
+
+    /**
+     * Opens a compiled file written by {@link #write(File, long)}, copying its columns out of a
+     * mapping of the file.
+     * @param sourceKey the key the file must have been written with
+     * @return the store, or null if the file is missing, damaged or was written for another source
+     */
+    public static FingerprintStore map(File file, long sourceKey) {
+        if (!file.isFile() || file.length() < HEADER_BYTES) return null;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                // the mapping stays valid once the channel is closed
+                MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != sourceKey) return null;
+                int locations = buffer.getInt();
+                int entries = buffer.getInt();
+                int known = buffer.getInt();
+                buffer.getInt();
+                if (locations < 0 || entries < 0 || known < 0 || file.length() != fileSize(locations, entries, known)) return null;
+
+                FingerprintStore store = new FingerprintStore(locations, entries, known);
+                store.x = floats(buffer, locations);
+                store.y = floats(buffer, locations);
+                store.level = ints(buffer, locations);
+                store.rowStart = ints(buffer, locations + 1);
+                store.macIds = ints(buffer, entries);
+                store.p = floats(buffer, entries);
+                store.mu = floats(buffer, entries);
+                store.sigma = floats(buffer, entries);
+                store.knownMacs = ints(buffer, known);
+                store.columnStart = ints(buffer, known + 1);
+                store.columnEntries = ints(buffer, entries);
+                store.entryLocation = ints(buffer, entries);
+                return store;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private FingerprintStore(int locationCount, int entryCount, int knownMacCount) {
+        this.locationCount = locationCount;
+        this.entryCount = entryCount;
+        this.knownMacCount = knownMacCount;
+        finished = true;
+    }
+
+    private static int[] ints(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * count);
+        return values;
+    }
+
+    private static float[] floats(ByteBuffer buffer, int count) {
+        float[] values = new float[count];
+        buffer.asFloatBuffer().get(values);
+        buffer.position(buffer.position() + 4 * count);
+        return values;
+    }
+
+    /**
+     * @return true if the mac is part of the fingerprint at any location.
+     */
+    public boolean isKnownMac(int macId) {
+        return indexOfMac(macId) >= 0;
+    }
+
+    /**
+     * @return the column of a mac in the inverted index, negative if the mac is not known.
+     */
+    public int indexOfMac(int macId) {
+        int low = 0;
+        int high = knownMacCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midMac = knownMacs[mid];
+            if (midMac < macId) {
+                low = mid + 1;
+            } else if (midMac > macId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * First position in the inverted index for the mac at the given column.
+     */
+    public int getColumnStart(int column) { return columnStart[column]; }
+
+    /**
+     * One past the last position in the inverted index for the mac at the given column.
+     */
+    public int getColumnEnd(int column) { return columnStart[column + 1]; }
+
+    /**
+     * The reading stored at a position in the inverted index.
+     */
+    public int getColumnEntry(int position) { return columnEntries[position]; }
+
+    public int getLocationOfEntry(int entry) { return entryLocation[entry]; }
+
+    public int size() { return locationCount; }
+
+    public int getEntryCount() { return entryCount; }
+
+    public float getX(int location) { return x[location]; }
+
+    public float getY(int location) { return y[location]; }
+
+    public int getLevel(int location) { return level[location]; }
+
+    /**
+     * Index of the first reading of a location
+     */
+    public int getRowStart(int location) { return rowStart[location]; }
+
+    /**
+     * One past the index of the last reading of a location
+     */
+    public int getRowEnd(int location) { return rowStart[location + 1]; }
+
+    public int getMacId(int entry) { return macIds[entry]; }
+
+    public float getP(int entry) { return p[entry]; }
+
+    public float getMu(int entry) { return mu[entry]; }
+
+    public float getSigma(int entry) { return sigma[entry]; }
+}
@@ -16,6 +16,8 @@ public class GlobalDataFragment extends Fragment {
     public static RecordForLocation locator = null;
     public static boolean continuousLocate = false;
     public static Route latestRoute = null;
+    // the routes to the shop in latestRoute, kept so the route can follow the located position
+    public static RouteTree routeTree = null;
 
     // this method is only called once for this fragment
     @Override
@@ -1,7 +1,5 @@
 package com.cogn.wifirecord;
 
-import android.util.SparseArray;
-
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -11,14 +9,56 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 public class Graph {
 
-    private SparseArray<Graph.Node> nodes;
+    // in order of their keys, which is the order of the compiled nodes
+    private TreeMap<Integer, Graph.Node> nodes;
     private double pxPerM;
+    private boolean aStar = true;
+    // CRC32 of the file the graph was loaded from
+    private long sourceKey;
+    // set from the thread that loads or builds them, searches run without them until then
+    private volatile RouteTable routeTable;
+    private volatile ContractionHierarchy contractionHierarchy;
+    // the shops along each edge, once they are attached
+    private EdgeLandmarks edgeLandmarks;
+
+    // The graph compiled for searching.  Node i is the i-th of nodes, its edges go to
+    // edgeTo[edgeStart[i]] .. edgeTo[edgeStart[i+1]-1] and are edgeLength long.
+    private float[] nodeX;
+    private float[] nodeY;
+    private int[] nodeLevel;
+    private int[] edgeStart;
+    private int[] edgeFrom;
+    private int[] edgeTo;
+    private double[] edgeLength;
+    // the same edges stored at the node they go to, for searching back from a destination
+    private int[] reverseStart;
+    private int[] reverseFrom;
+    private double[] reverseLength;
+    // the nodes by position, queried from one thread at a time
+    private SpatialGrid nodeGrid;
+    // the edges of each level by position, one edge for each pair of nodes joined both ways,
+    // queried from one thread at a time
+    private SpatialGrid edgeGrid;
+
+    // one for each thread searching, made again if the graph is reloaded with another node count
+    private final ThreadLocal<SearchState> searchStates = new ThreadLocal<>();
 
     public Graph(){}
 
@@ -32,7 +72,8 @@ public class Graph {
      */
     public void loadFromFile(InputStream inputStream, double pxPerM){
         this.pxPerM = pxPerM;
-        BufferedReader in = new BufferedReader(new InputStreamReader(inputStream));
+        CheckedInputStream checked = new CheckedInputStream(inputStream, new CRC32());
+        BufferedReader in = new BufferedReader(new InputStreamReader(checked));
 
         StringBuilder jsonString = new StringBuilder();
         JSONObject jsonReader;
@@ -45,6 +86,7 @@ public class Graph {
             e.printStackTrace();
             return;
         }
+        sourceKey = checked.getChecksum().getValue();
 
         try {
             jsonReader = new JSONObject(jsonString.toString());
@@ -53,7 +95,7 @@ public class Graph {
             return;
         }
 
-        nodes = new SparseArray<>();
+        nodes = new TreeMap<>();
         Iterator<String> keyIter = jsonReader.keys();
         while (keyIter.hasNext())
         {
@@ -77,97 +119,576 @@ public class Graph {
                 e.printStackTrace();
             }
         }
+        compile();
     }
 
+    /**
+     * Packs the nodes and their edges into flat arrays, with the length of every edge worked out
+     * once.  Edges to nodes that are not in the file are left out.
+     */
+    private void compile() {
+        int n = nodes.size();
+        int[] keys = new int[n];
+        Node[] ordered = new Node[n];
+        int index = 0;
+        for (Map.Entry<Integer, Node> entry : nodes.entrySet()) {
+            keys[index] = entry.getKey();
+            ordered[index] = entry.getValue();
+            index++;
+        }
+        nodeX = new float[n];
+        nodeY = new float[n];
+        nodeLevel = new int[n];
+        edgeStart = new int[n + 1];
+        int edgeCount = 0;
+        for (int i = 0; i < n; i++) {
+            Node node = ordered[i];
+            nodeX[i] = node.pos.x;
+            nodeY[i] = node.pos.y;
+            nodeLevel[i] = node.pos.level;
+            edgeCount += node.connected.size();
+        }
+        edgeFrom = new int[edgeCount];
+        edgeTo = new int[edgeCount];
+        edgeLength = new double[edgeCount];
+        int edge = 0;
+        for (int i = 0; i < n; i++) {
+            edgeStart[i] = edge;
+            Node node = ordered[i];
+            for (int to : node.connected) {
+                int j = Arrays.binarySearch(keys, to);
+                if (j < 0) continue;
+                edgeFrom[edge] = i;
+                edgeTo[edge] = j;
+                edgeLength[edge] = node.pos.getDistanceTo(ordered[j].pos);
+                edge++;
+            }
+        }
+        edgeStart[n] = edge;
 
+        reverseStart = new int[n + 1];
+        for (int e = 0; e < edge; e++) {
+            reverseStart[edgeTo[e] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            reverseStart[i + 1] += reverseStart[i];
+        }
+        int[] fill = Arrays.copyOf(reverseStart, n);
+        reverseFrom = new int[edge];
+        reverseLength = new double[edge];
+        for (int i = 0; i < n; i++) {
+            for (int e = edgeStart[i]; e < edgeStart[i + 1]; e++) {
+                int slot = fill[edgeTo[e]]++;
+                reverseFrom[slot] = i;
+                reverseLength[slot] = edgeLength[e];
+            }
+        }
+        nodeGrid = buildNodeGrid();
+        edgeGrid = buildEdgeGrid();
+    }
+
+    private SpatialGrid buildNodeGrid() {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < nodeX.length; i++) {
+            minX = Math.min(minX, nodeX[i]);
+            minY = Math.min(minY, nodeY[i]);
+            maxX = Math.max(maxX, nodeX[i]);
+            maxY = Math.max(maxY, nodeY[i]);
+        }
+        SpatialGrid grid = new SpatialGrid(SpatialGrid.suggestCellSize(maxX - minX, maxY - minY, nodeX.length, 4));
+        for (int i = 0; i < nodeX.length; i++) {
+            grid.add(i, nodeLevel[i], nodeX[i], nodeY[i]);
+        }
+        grid.build();
+        return grid;
+    }
+
+    /**
+     * Only the edges along a level are walkable corridors, and edges of no length can't be
+     * matched to.
+     */
+    private SpatialGrid buildEdgeGrid() {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < nodeX.length; i++) {
+            minX = Math.min(minX, nodeX[i]);
+            minY = Math.min(minY, nodeY[i]);
+            maxX = Math.max(maxX, nodeX[i]);
+            maxY = Math.max(maxY, nodeY[i]);
+        }
+        SpatialGrid grid = new SpatialGrid(SpatialGrid.suggestCellSize(maxX - minX, maxY - minY, nodeX.length, 4));
+        for (int edge = 0; edge < edgeTo.length; edge++) {
+            int from = edgeFrom[edge];
+            int to = edgeTo[edge];
+            if (nodeLevel[from] != nodeLevel[to] || (nodeX[from] == nodeX[to] && nodeY[from] == nodeY[to])) continue;
+            if (from > to && findEdge(to, from) >= 0) continue;
+            grid.add(edge, nodeLevel[from], nodeX[from], nodeY[from], nodeX[to], nodeY[to]);
+        }
+        grid.build();
+        return grid;
+    }
+
+    /**
+     * A* search is on by default, it finds routes of the same length as plain Dijkstra but
+     * settles fewer nodes on the way.
+     */
+    public void setAStar(boolean aStar) {
+        this.aStar = aStar;
+    }
+
+    /**
+     * @return the index of the node nearest to the position, by the same measure as the edge lengths
+     */
+    int nearestNode(Position position) {
+        double minD = Double.MAX_VALUE;
+        int nearest = -1;
+        synchronized (nodeGrid) {
+            for (int level : nodeGrid.getLevels()) {
+                double levelD = 100.0 * Math.abs(position.level - level);
+                if (levelD > minD) continue;
+                // widen the circle until it holds a node nearer than anything outside it
+                for (float radius = nodeGrid.getCellSize(); ; radius *= 2) {
+                    int found = nodeGrid.queryRadius(level, position.x, position.y, radius);
+                    for (int r = 0; r < found; r++) {
+                        int i = nodeGrid.getResult(r);
+                        double d = distance(position.x, position.y, position.level, i);
+                        // the lowest index of equally near nodes, as when every node was measured
+                        if (d < minD || (d == minD && i < nearest)) {
+                            minD = d;
+                            nearest = i;
+                        }
+                    }
+                    if (minD - levelD <= radius) break;
+                }
+            }
+        }
+        return nearest < 0 ? 0 : nearest;
+    }
+
+    // same as Position.getDistanceTo
+    private double distance(float x, float y, int level, int node) {
+        double dx = x - nodeX[node];
+        double dy = y - nodeY[node];
+        return Math.sqrt(dx*dx + dy*dy) + 100.0 * Math.abs(level - nodeLevel[node]);
+    }
+
+
+
+    /**
+     * Matches a located position to the nearest point on a corridor of its level.
+     * @return the match, null if the level has no corridors
+     */
+    public MapMatch matchToEdge(Position position) {
+        double minD = Double.MAX_VALUE;
+        int nearest = -1;
+        float nearestX = 0;
+        float nearestY = 0;
+        float[] closest = new float[2];
+        synchronized (edgeGrid) {
+            if (Arrays.binarySearch(edgeGrid.getLevels(), position.level) < 0) return null;
+            // an edge within the radius is in a cell the query box covers
+            for (float radius = edgeGrid.getCellSize(); ; radius *= 2) {
+                int found = edgeGrid.queryRadius(position.level, position.x, position.y, radius);
+                for (int r = 0; r < found; r++) {
+                    int edge = edgeGrid.getResult(r);
+                    int from = edgeFrom[edge];
+                    int to = edgeTo[edge];
+                    double d = Route.pointToSegment(position.x, position.y, nodeX[from], nodeY[from], nodeX[to], nodeY[to], closest);
+                    if (d < minD || (d == minD && edge < nearest)) {
+                        minD = d;
+                        nearest = edge;
+                        nearestX = closest[0];
+                        nearestY = closest[1];
+                    }
+                }
+                if (minD <= radius) break;
+            }
+        }
+        int from = edgeFrom[nearest];
+        double dx = nearestX - nodeX[from];
+        double dy = nearestY - nodeY[from];
+        return new MapMatch(nearest, from, edgeTo[nearest], Math.sqrt(dx*dx + dy*dy), edgeLength[nearest],
+                new Position(nearestX, nearestY, position.level), minD);
+    }
+
+    public int getNodeCount() {
+        return nodeX.length;
+    }
+
+    public Position getNodePosition(int node) {
+        return new Position(nodeX[node], nodeY[node], nodeLevel[node]);
+    }
+
+    /**
+     * @return a hash of the file the graph was loaded from, which changes when the graph does
+     */
+    public long getSourceKey() {
+        return sourceKey;
+    }
+
+    /**
+     * Routes and distances are read from the table when there is one, rather than searched for.
+     * @param routeTable made for this graph, or null to search again
+     */
+    public void setRouteTable(RouteTable routeTable) {
+        if (routeTable != null && routeTable.getNodeCount() != nodeX.length)
+            throw new IllegalArgumentException("Route table is for another graph");
+        this.routeTable = routeTable;
+    }
+
+    /**
+     * Routes and distances come from the hierarchy when there is one and no route table.
+     * @param contractionHierarchy made for this graph, or null to search again
+     */
+    public void setContractionHierarchy(ContractionHierarchy contractionHierarchy) {
+        if (contractionHierarchy != null && contractionHierarchy.getNodeCount() != nodeX.length)
+            throw new IllegalArgumentException("Contraction hierarchy is for another graph");
+        this.contractionHierarchy = contractionHierarchy;
+    }
+
+    public ContractionHierarchy buildContractionHierarchy() {
+        return ContractionHierarchy.build(nodeX.length, edgeStart, edgeTo, edgeLength);
+    }
+
+    /**
+     * Works out the shortest route between every pair of nodes, searching from several nodes at
+     * once.  The searches run at the priority of the calling thread.
+     * @param threads how many searches to run at the same time
+     * @return the table, or null if the graph has too many nodes for one
+     */
+    public RouteTable buildRouteTable(int threads) throws InterruptedException {
+        final int n = nodeX.length;
+        if (n > RouteTable.MAX_NODES) return null;
+        final RouteTable table = new RouteTable(n);
+        final AtomicInteger nextStart = new AtomicInteger();
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    SearchState state = searchState();
+                    int[] next = new int[n];
+                    int start;
+                    while ((start = nextStart.getAndIncrement()) < n) {
+                        search(state, start, null);
+                        // with no end every node reached is settled, each after the one before it
+                        // on its path, so that one's first step is already known
+                        int[] previous = state.previous;
+                        Arrays.fill(next, -1);
+                        next[start] = start;
+                        for (int j = 1; j < state.settledCount; j++) {
+                            int node = state.order[j];
+                            next[node] = previous[node] == start ? node : next[previous[node]];
+                        }
+                        table.setRow(start, state.dist, next);
+                    }
+                    return null;
+                }
+            });
+        }
+        // the workers run at the caller's priority, the default factory would raise a background build to normal
+        final int priority = Thread.currentThread().getPriority();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "route-table");
+                thread.setPriority(priority);
+                return thread;
+            }
+        });
+        try {
+            for (Future<Void> result : executor.invokeAll(workers)) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not build the route table", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return table;
+    }
 
     /**
      * Finds the shortest distance on the graph between two points.
-     *
+     * The route runs between the nodes nearest to each point.  If the end can't be reached from
+     * the start the route is just the start node.
      */
     public Route getRoute(Position start, Position end)
     {
-        double minDStart = 1e9;
-        double minDEnd = 1e9;
-
-        int startInd = 0;
-        int endInd = 0;
-
-        for (int i = 0; i < nodes.size(); i++) {
-            nodes.valueAt(i).dist = 1e9f;
-            nodes.valueAt(i).route = new Route(pxPerM);
-            double ds = start.getDistanceTo(nodes.valueAt(i).pos);
-            double de = end.getDistanceTo(nodes.valueAt(i).pos);
-            if (ds<minDStart) {
-                minDStart = ds;
-                startInd = nodes.keyAt(i);
-            }
-            if (de<minDEnd) {
-                minDEnd = de;
-                endInd = nodes.keyAt(i);
-            }
-        }
-        nodes.get(startInd).dist = 0;
-        nodes.get(startInd).route.addPoint(nodes.get(startInd).pos);
-
-        HashSet<Integer> vertexSet = new HashSet<>();
-        for (int i = 0; i<nodes.size(); i++){
-            vertexSet.add(nodes.keyAt(i));
-        }
-
-        int current = startInd;
-        while (vertexSet.size()>0) {
-            double minDist = 1e9;
-            // Find the lowest dist node
-            for (Integer i : vertexSet) {
-                if (nodes.get(i).dist < minDist) {
-                    current = i;
-                    minDist = nodes.get(i).dist;
+        int startIndex = nearestNode(start);
+        int endIndex = nearestNode(end);
+        RouteTable routeTable = this.routeTable;
+        if (routeTable != null) {
+            Route route = tableRoute(routeTable, startIndex, endIndex);
+            if (route != null) return route;
+        }
+        ContractionHierarchy contractionHierarchy = this.contractionHierarchy;
+        if (contractionHierarchy != null) {
+            return hierarchyRoute(contractionHierarchy, startIndex, new int[]{endIndex});
+        }
+        SearchState state = searchState();
+        int reached = search(state, startIndex, new int[]{endIndex});
+        return buildRoute(state.previous, startIndex, reached < 0 ? startIndex : reached);
+    }
+
+    /**
+     * @return the length of the shortest route between the nodes nearest to each point, in px with
+     * the same allowance for changing level as the edges, Double.MAX_VALUE if there is no route
+     */
+    public double getRouteDistance(Position start, Position end) {
+        int startIndex = nearestNode(start);
+        int endIndex = nearestNode(end);
+        RouteTable routeTable = this.routeTable;
+        if (routeTable != null) {
+            float d = routeTable.getDistance(startIndex, endIndex);
+            return d == Float.MAX_VALUE ? Double.MAX_VALUE : d;
+        }
+        ContractionHierarchy contractionHierarchy = this.contractionHierarchy;
+        if (contractionHierarchy != null) {
+            return contractionHierarchy.getDistance(startIndex, new int[]{endIndex});
+        }
+        SearchState state = searchState();
+        search(state, startIndex, new int[]{endIndex});
+        return state.dist[endIndex];
+    }
+
+    /**
+     * @return this thread's search state, made the first time the thread searches
+     */
+    private SearchState searchState() {
+        SearchState state = searchStates.get();
+        if (state == null || state.dist.length != nodeX.length) {
+            state = new SearchState(nodeX.length);
+            searchStates.set(state);
+        }
+        return state;
+    }
+
+    /**
+     * Shortest paths from the start, stopping once the nearest of the ends is settled.  Leaves
+     * the distances, previous nodes and the order nodes were settled in the state.
+     * @param ends the nodes to stop at, null to find the paths to every node
+     * @return the end that was reached, -1 if none of them can be
+     */
+    private int search(SearchState state, int startIndex, int[] ends) {
+        state.clear();
+        double[] dist = state.dist;
+        int[] previous = state.previous;
+        boolean[] settled = state.settled;
+        NodeHeap heap = state.heap;
+
+        // with no end to head for A* is plain Dijkstra
+        boolean guided = aStar && ends != null;
+        state.reach(startIndex);
+        dist[startIndex] = 0;
+        heap.update(startIndex, guided ? nearestEnd(ends, startIndex) : 0);
+        while (!heap.isEmpty()) {
+            int current = heap.poll();
+            state.order[state.settledCount++] = current;
+            if (ends != null) {
+                for (int end : ends) {
+                    if (current == end) return end;
                 }
             }
-            if (current == endInd) {
-                break;
+            settled[current] = true;
+            for (int edge = edgeStart[current]; edge < edgeStart[current + 1]; edge++) {
+                int to = edgeTo[edge];
+                if (settled[to]) continue;
+                double d = dist[current] + edgeLength[edge];
+                if (d < dist[to]) {
+                    state.reach(to);
+                    dist[to] = d;
+                    previous[to] = current;
+                    // the straight line to the nearest end never overestimates, so A* still finds the shortest route
+                    heap.update(to, guided ? d + nearestEnd(ends, to) : d);
+                }
             }
+        }
+        return -1;
+    }
 
-            Node nodeA = nodes.get(current);
-            for (int to : nodes.get(current).connected) {
-                Node nodeB = nodes.get(to);
-                double d = nodeA.dist + nodeA.pos.getDistanceTo(nodeB.pos);
-                if (d<nodeB.dist) {
-                    nodeB.dist = d;
-                    Route newRoute = nodeA.route.copy();
-                    newRoute.addPoint(nodes.get(to).pos);
-                    nodeB.route = newRoute;
-                }
+    /**
+     * @return the straight line distance from the node to the nearest of the ends
+     */
+    private double nearestEnd(int[] ends, int node) {
+        double minD = Double.MAX_VALUE;
+        for (int end : ends) {
+            minD = Math.min(minD, distance(nodeX[end], nodeY[end], nodeLevel[end], node));
+        }
+        return minD;
+    }
+
+    /**
+     * Follows the previous nodes back from the end to make the route.
+     */
+    private Route buildRoute(int[] previous, int startIndex, int endIndex) {
+        int length = 1;
+        for (int node = endIndex; node != startIndex; node = previous[node]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int node = endIndex, i = length - 1; i >= 0; node = previous[node], i--) {
+            path[i] = node;
+        }
+        return makeRoute(path, length);
+    }
+
+    /**
+     * Follows the next nodes in the route table from the start to the end.
+     * @return the route, or null if the next nodes go round in a loop, which edges of no length
+     * can cause
+     */
+    private Route tableRoute(RouteTable routeTable, int startIndex, int endIndex) {
+        if (routeTable.getNextNode(startIndex, endIndex) < 0) endIndex = startIndex;
+        int length = 1;
+        for (int node = startIndex; node != endIndex; length++) {
+            if (length == nodeX.length) return null;
+            node = routeTable.getNextNode(node, endIndex);
+        }
+        int[] path = new int[length];
+        path[0] = startIndex;
+        for (int i = 1; i < length; i++) {
+            path[i] = routeTable.getNextNode(path[i - 1], endIndex);
+        }
+        return makeRoute(path, length);
+    }
+
+    /**
+     * @return the route found by the contraction hierarchy, just the start if none of the ends
+     * can be reached
+     */
+    private Route hierarchyRoute(ContractionHierarchy contractionHierarchy, int startIndex, int[] ends) {
+        int[] path = contractionHierarchy.findPath(startIndex, ends);
+        if (path == null) path = new int[]{startIndex};
+        return makeRoute(path, path.length);
+    }
+
+    Route makeRoute(int[] path, int length) {
+        Route route = new Route(pxPerM);
+        for (int i = 0; i < length; i++) {
+            int node = path[i];
+            route.addPoint(new Position(nodeX[node], nodeY[node], nodeLevel[node]));
+        }
+        route.finalizeConstruction();
+        if (edgeLandmarks != null) {
+            int[] pathEdges = new int[Math.max(length - 1, 0)];
+            for (int i = 0; i < pathEdges.length; i++) {
+                pathEdges[i] = findEdge(path[i], path[i + 1]);
             }
-            vertexSet.remove(current);
+            route.setEdges(edgeLandmarks, pathEdges);
+        }
+        return route;
+    }
+
+    /**
+     * @return the edge from one node to the other, -1 if there isn't one
+     */
+    private int findEdge(int from, int to) {
+        for (int edge = edgeStart[from]; edge < edgeStart[from + 1]; edge++) {
+            if (edgeTo[edge] == to) return edge;
         }
+        return -1;
+    }
+
 
-        nodes.get(endInd).route.finalizeConstruction();
-        return nodes.get(endInd).route;
+    /**
+     * Attaches the entrances of every shop to their nearest nodes, so routes to shops don't have
+     * to look for them, and to the edges they are close to, so route descriptions can be read
+     * off the edges.
+     */
+    public void attachEntrances(ShopDirectory shopDirectory) {
+        for (Shop shop : shopDirectory.getAllShops()) {
+            shop.setEntranceNodes(findEntranceNodes(shop));
+        }
+        edgeLandmarks = EdgeLandmarks.build(nodeX, nodeY, nodeLevel, edgeStart, edgeTo, shopDirectory,
+                Route.SEPARATION_M * pxPerM);
     }
 
+    private int[] findEntranceNodes(Shop shop) {
+        List<Position> entrances = shop.getEntranceLocations();
+        int[] entranceNodes = new int[entrances.size()];
+        for (int i = 0; i < entranceNodes.length; i++) {
+            entranceNodes[i] = nearestNode(entrances.get(i));
+        }
+        return entranceNodes;
+    }
 
+    /**
+     * Finds the shortest route to whichever entrance of the shop is nearest, in one search that
+     * stops at the first entrance it reaches.
+     */
     public Route getRoute(Position start, Shop endShop)
     {
-        double minD = 1e9;
+        int startIndex = nearestNode(start);
+        int[] ends = endShop.getEntranceNodes();
+        if (ends == null || ends.length != endShop.getEntranceLocations().size()) {
+            ends = findEntranceNodes(endShop);
+        }
 
         Route route = null;
-        for (Position entranceLocation : endShop.entranceLocations)
-        {
-            Route tempRoute = getRoute(start, entranceLocation);
-            if (tempRoute.getPathLength()<minD) {
-                route = tempRoute;
+        RouteTable routeTable = this.routeTable;
+        ContractionHierarchy contractionHierarchy = this.contractionHierarchy;
+        if (routeTable != null && ends.length > 0) {
+            int nearest = ends[0];
+            for (int end : ends) {
+                if (routeTable.getDistance(startIndex, end) < routeTable.getDistance(startIndex, nearest)) nearest = end;
             }
+            route = tableRoute(routeTable, startIndex, nearest);
+        }
+        if (route == null && contractionHierarchy != null) {
+            route = hierarchyRoute(contractionHierarchy, startIndex, ends);
+        }
+        if (route == null) {
+            SearchState state = searchState();
+            int reached = search(state, startIndex, ends);
+            route = buildRoute(state.previous, startIndex, reached < 0 ? startIndex : reached);
         }
         route.createDescription();
         return route;
     }
 
+    /**
+     * Finds the shortest route from every node to the nearest entrance of the shop, searching
+     * back from the entrances once, so the route can follow the located position cheaply.
+     */
+    public RouteTree getRouteTree(Shop endShop) {
+        int[] ends = endShop.getEntranceNodes();
+        if (ends == null || ends.length != endShop.getEntranceLocations().size()) {
+            ends = findEntranceNodes(endShop);
+        }
+        int n = nodeX.length;
+        double[] dist = new double[n];
+        int[] next = new int[n];
+        Arrays.fill(dist, Double.MAX_VALUE);
+        Arrays.fill(next, -1);
+        NodeHeap heap = new NodeHeap(n);
+        for (int end : ends) {
+            dist[end] = 0;
+            heap.update(end, 0);
+        }
+        while (!heap.isEmpty()) {
+            int current = heap.poll();
+            for (int edge = reverseStart[current]; edge < reverseStart[current + 1]; edge++) {
+                int from = reverseFrom[edge];
+                double d = dist[current] + reverseLength[edge];
+                if (d < dist[from]) {
+                    dist[from] = d;
+                    next[from] = current;
+                    heap.update(from, d);
+                }
+            }
+        }
+        return new RouteTree(this, next, dist);
+    }
+
     public ConnectionPointsNew getConnectionPoints() {
         ConnectionPointsNew connectionPoints = new ConnectionPointsNew();
-        for(int i = 0; i < nodes.size(); i++) {
-            Node node = nodes.valueAt(i);
+        for (Node node : nodes.values()) {
             for (Integer connectedIndex : node.connected) {
                 if (node.pos.level!=nodes.get(connectedIndex).pos.level)
                     connectionPoints.addConnection(node.pos, nodes.get(connectedIndex).pos);
@@ -180,12 +701,133 @@ public class Graph {
     public class Node {
         public Position pos;
         public List<Integer> connected;
-        public double dist;
-        public Route route;
         public Node(Position pos, List<Integer> connected)
         {
             this.connected = connected;
             this.pos = pos;
         }
     }
+
+    /**
+     * What a search keeps for every node.  It is kept for the next search, which only has to
+     * clear the nodes this one reached.
+     */
+    private static class SearchState {
+        final double[] dist;
+        // -1 where there is no previous node
+        final int[] previous;
+        final boolean[] settled;
+        final NodeHeap heap;
+        // the nodes in the order they were settled
+        final int[] order;
+        int settledCount;
+        // the nodes given a distance
+        final int[] reached;
+        int reachedCount;
+
+        SearchState(int nodeCount) {
+            dist = new double[nodeCount];
+            previous = new int[nodeCount];
+            settled = new boolean[nodeCount];
+            heap = new NodeHeap(nodeCount);
+            order = new int[nodeCount];
+            reached = new int[nodeCount];
+            Arrays.fill(dist, Double.MAX_VALUE);
+            Arrays.fill(previous, -1);
+        }
+
+        void reach(int node) {
+            if (dist[node] == Double.MAX_VALUE) reached[reachedCount++] = node;
+        }
+
+        void clear() {
+            for (int i = 0; i < reachedCount; i++) {
+                int node = reached[i];
+                dist[node] = Double.MAX_VALUE;
+                previous[node] = -1;
+                settled[node] = false;
+            }
+            reachedCount = 0;
+            settledCount = 0;
+            heap.clear();
+        }
+    }
+
+    /**
+     * Binary min heap of node indexes keyed by distance, which can lower the key of a node that
+     * is already in it.
+     */
+    static class NodeHeap {
+        private final int[] heap;
+        private final double[] key;
+        // where each node is in the heap, -1 if it isn't
+        private final int[] position;
+        private int size;
+
+        NodeHeap(int nodeCount) {
+            heap = new int[nodeCount];
+            key = new double[nodeCount];
+            position = new int[nodeCount];
+            Arrays.fill(position, -1);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double minKey() {
+            return key[heap[0]];
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                position[heap[i]] = -1;
+            }
+            size = 0;
+        }
+
+        /**
+         * Adds the node, or moves it up if it is already in the heap with a larger key.
+         */
+        void update(int node, double newKey) {
+            int i = position[node];
+            if (i < 0) {
+                i = size++;
+            } else if (newKey >= key[node]) {
+                return;
+            }
+            key[node] = newKey;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (key[heap[parent]] <= newKey) break;
+                heap[i] = heap[parent];
+                position[heap[i]] = i;
+                i = parent;
+            }
+            heap[i] = node;
+            position[node] = i;
+        }
+
+        int poll() {
+            int top = heap[0];
+            position[top] = -1;
+            int last = heap[--size];
+            if (size > 0) {
+                double lastKey = key[last];
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && key[heap[child + 1]] < key[heap[child]]) child++;
+                    if (key[heap[child]] >= lastKey) break;
+                    heap[i] = heap[child];
+                    position[heap[i]] = i;
+                    i = child;
+                }
+                heap[i] = last;
+                position[last] = i;
+            }
+            return top;
+        }
+    }
 }
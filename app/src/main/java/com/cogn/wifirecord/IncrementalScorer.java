@@ -0,0 +1,152 @@
+package com.cogn.wifirecord;
+
+/**
+ * Keeps the score of every location up to date as the observation changes, so only the macs
+ * whose p or mu changed since the previous observation are looked at.
+ *
+ * The penalty of a location is split into one term per stored reading plus the penalty of the
+ * observed macs that the location does not have.  The second part is written as the total over
+ * all observed macs minus the ones the location does have, which folds it into the per reading
+ * terms.  A changed mac then only touches the readings in its column of the inverted index.
+ *
+ * Create one per queue of scans, the scores follow whichever observation was passed to
+ * {@link #update(ObservationSummary)} last.  Not thread safe, but {@link #getScore(int)} may be
+ * called from several threads once an update is finished.
+ */
+public class IncrementalScorer {
+    // sums are rebuilt from scratch every so often so rounding errors can't build up
+    private static final int UPDATES_BETWEEN_REBUILDS = 500;
+
+    private final FingerprintStore store;
+    private final float[] totalWeighting;
+    // penalty of each reading when its mac is missing from the observation
+    private final float[] missingTerm;
+    private final double[] missingSum;
+    // sum of the reading terms of each location for the current observation
+    private final double[] readingSum;
+    // penalty over all known observed macs, as if no location had them
+    private double observedTotal;
+    private final ObservationSummary previous;
+    private int updatesSinceRebuild;
+    private int changedMacs;
+
+    public IncrementalScorer(FingerprintStore store, float[] totalWeighting) {
+        this.store = store;
+        this.totalWeighting = totalWeighting;
+        missingTerm = new float[store.getEntryCount()];
+        missingSum = new double[store.size()];
+        readingSum = new double[store.size()];
+        previous = new ObservationSummary();
+        for (int location = 0; location < store.size(); location++) {
+            for (int entry = store.getRowStart(location); entry < store.getRowEnd(location); entry++) {
+                float recordedMean = store.getMu(entry);
+                float p = store.getP(entry);
+                if ((recordedMean > -90) && (p >= WifiFingerprintInfo.P_CUT_OFF)) {
+                    float d = Math.max(0, Math.abs(-90 - recordedMean) - WifiFingerprintInfo.TOL);
+                    missingTerm[entry] = WifiFingerprintInfo.W2 * p * d;
+                }
+                missingSum[location] += missingTerm[entry];
+            }
+        }
+        rebuild(null);
+    }
+
+    public boolean isFor(FingerprintStore store) {
+        return this.store == store;
+    }
+
+    /**
+     * Moves the scores on to a new observation.
+     * Call {@link ObservationSummary#markKnown(FingerprintStore)} on it first.
+     */
+    public void update(ObservationSummary obs) {
+        if (++updatesSinceRebuild >= UPDATES_BETWEEN_REBUILDS) {
+            rebuild(obs);
+            return;
+        }
+        changedMacs = 0;
+        int i = 0;
+        int j = 0;
+        while (i < previous.size() || j < obs.size()) {
+            int oldMac = i < previous.size() ? previous.getMacId(i) : Integer.MAX_VALUE;
+            int newMac = j < obs.size() ? obs.getMacId(j) : Integer.MAX_VALUE;
+            if (oldMac == newMac) {
+                if (previous.getMu(i) != obs.getMu(j) || previous.getP(i) != obs.getP(j)) {
+                    change(obs.getColumn(j), true, previous.getP(i), previous.getMu(i), true, obs.getP(j), obs.getMu(j));
+                }
+                i++;
+                j++;
+            } else if (oldMac < newMac) {
+                change(previous.getColumn(i), true, previous.getP(i), previous.getMu(i), false, 0, 0);
+                i++;
+            } else {
+                change(obs.getColumn(j), false, 0, 0, true, obs.getP(j), obs.getMu(j));
+                j++;
+            }
+        }
+        previous.copyFrom(obs);
+    }
+
+    /**
+     * Starts again from the empty observation and adds every mac of obs, if given.
+     */
+    private void rebuild(ObservationSummary obs) {
+        System.arraycopy(missingSum, 0, readingSum, 0, readingSum.length);
+        observedTotal = 0;
+        previous.clear();
+        updatesSinceRebuild = 0;
+        changedMacs = 0;
+        if (obs != null) {
+            for (int j = 0; j < obs.size(); j++) {
+                change(obs.getColumn(j), false, 0, 0, true, obs.getP(j), obs.getMu(j));
+            }
+            previous.copyFrom(obs);
+        }
+    }
+
+    /**
+     * Applies the change of one mac to the locations that have it.
+     */
+    private void change(int column, boolean wasSeen, float oldP, float oldMu, boolean isSeen, float newP, float newMu) {
+        if (column < 0) return; // unknown macs don't count towards any score
+        changedMacs++;
+        float oldObserved = wasSeen ? observedTerm(oldP, oldMu) : 0;
+        float newObserved = isSeen ? observedTerm(newP, newMu) : 0;
+        observedTotal += newObserved - oldObserved;
+        for (int i = store.getColumnStart(column); i < store.getColumnEnd(column); i++) {
+            int entry = store.getColumnEntry(i);
+            float oldTerm = wasSeen ? matchTerm(entry, oldMu) - oldObserved : missingTerm[entry];
+            float newTerm = isSeen ? matchTerm(entry, newMu) - newObserved : missingTerm[entry];
+            readingSum[store.getLocationOfEntry(entry)] += newTerm - oldTerm;
+        }
+    }
+
+    // penalty for a mac in both the fingerprint and the observation
+    private float matchTerm(int entry, float obsMean) {
+        float d = Math.max(0, Math.abs(store.getMu(entry) - obsMean) - WifiFingerprintInfo.TOL);
+        return WifiFingerprintInfo.W1 * d * store.getP(entry);
+    }
+
+    // penalty for a mac in the observation but not the fingerprint
+    private static float observedTerm(float obsP, float obsMean) {
+        if (obsMean > -90) {
+            float d = Math.max(0, Math.abs(-90 - obsMean) - WifiFingerprintInfo.TOL);
+            return WifiFingerprintInfo.W3 * obsP * d;
+        }
+        return 0;
+    }
+
+    /**
+     * Same value as a full comparison of the location with the latest observation.
+     */
+    public float getScore(int location) {
+        return (float)(-WifiFingerprintInfo.MULT * (observedTotal + readingSum[location]) / totalWeighting[location]);
+    }
+
+    /**
+     * @return the number of known macs that had to be looked at in the latest update
+     */
+    public int getChangedMacCount() {
+        return changedMacs;
+    }
+}
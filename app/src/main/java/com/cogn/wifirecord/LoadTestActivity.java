@@ -10,10 +10,7 @@ import android.widget.Button;
 import android.widget.Spinner;
 import android.widget.TextView;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -72,23 +69,21 @@ implements AdapterView.OnItemSelectedListener, View.OnClickListener {
             String fname = file.getName();
             String[] parts = fname.substring(0, fname.length() - 4).split("_");
             if (parts.length == 5 && parts[4].equalsIgnoreCase("path")) {
-                BufferedReader bufReader = null;
-                try {
-                    bufReader = new BufferedReader(new FileReader(file));
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                }
                 String description = "";
-                String str;
+                ScanRecord record;
                 int count = 0;
                 try {
-                    while ((str = bufReader.readLine()) != null && count < 10) {
-                        String[] cols = str.split(",");
-                        if (cols[0].equalsIgnoreCase("DESCRIPTION")) {
-                            description = cols[1];
+                    RecordingReader reader = RecordingReader.open(file);
+                    while (count < 10 && (record = reader.next()) != null) {
+                        if (record.isText()) {
+                            String[] cols = record.getText().split(",");
+                            if (cols[0].equalsIgnoreCase("DESCRIPTION")) {
+                                description = cols[1];
+                            }
                         }
                         count++;
                     }
+                    reader.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
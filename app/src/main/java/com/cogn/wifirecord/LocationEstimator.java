@@ -0,0 +1,332 @@
+package com.cogn.wifirecord;
+
+/**
+ * Works out the most likely location from a stream of wifi scans.  Holds the queues of scans,
+ * the best fit so far and the sticky rules that decide when it moves, with no Android in it, so
+ * recorded paths can be replayed off the device.
+ *
+ * Time is whatever offset the caller passes in, in ms, so replay can run faster than real time.
+ * Whatever shows the results overrides the report methods, which do nothing here.
+ */
+public class LocationEstimator extends RecordForLocationPersistent {
+    private WifiFingerprintInfo fingerprints;
+    // each queue keeps its own incremental scores, they only need the macs that changed since its last summary
+    private ObservationSummary shortSummary = new ObservationSummary();
+    private ObservationSummary sinceMoveSummary = new ObservationSummary();
+    private IncrementalScorer shortScorer;
+    private IncrementalScorer sinceMoveScorer;
+    private MapMatch matchedLocation;
+
+    public LocationEstimator() {
+    }
+
+    /**
+     * @param fingerprints null if {@link #getFingerprints()} is overridden
+     */
+    public LocationEstimator(Parameters params, WifiFingerprintInfo fingerprints) {
+        this.params = params;
+        this.fingerprints = fingerprints;
+        pxPerDelay = params.walkingPace*params.pxPerM * delayMS/1000;
+        resetSinceMoveQueue = false;
+        m_shortQueue = new ReadingsQueue(params.lengthMovingObs);
+        m_sinceMoveQueue = new ReadingsQueue(params.maxLengthStationaryObs);
+        bestFitIndex = -1;
+    }
+
+    /**
+     * The fingerprints to locate against, looked up on every scan.
+     */
+    protected WifiFingerprintInfo getFingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * The graph whose corridors the marked location is matched to, looked up on every tick.
+     * Without one the marked location is only where the circle drifted to.
+     */
+    protected Graph getCorridors() {
+        return null;
+    }
+
+    /**
+     * The level currently on show, the circle jumps rather than drifts when the best fit is on
+     * another one.  Without a display it is the level of the previous best fit.
+     */
+    protected int getDisplayedLevel() {
+        return bestFitLevel;
+    }
+
+    protected void reportMovementStatus(String movementStatus) {
+    }
+
+    /**
+     * Called when the best fit moves to a level other than the displayed one.
+     */
+    protected void reportLevelChange(int level) {
+    }
+
+    /**
+     * Called whenever the best fit is updated, after {@link #reportLevelChange(int)}.
+     */
+    protected void reportBestFitMoved() {
+    }
+
+    /**
+     * Adds a new scan to the queues and moves the best fit if the rules allow.
+     * @param macIds the macs in the scan, in increasing order
+     * @param levels the reading of each mac
+     * @param count the number of macs in the scan
+     */
+    public void addScan(long offset, int[] macIds, float[] levels, int count) {
+        this.offset = offset;
+        m_shortQueue.addNew(offset);
+        if (resetSinceMoveQueue && bestFitIndex>=0) {
+            m_sinceMoveQueue.clear();
+            resetSinceMoveQueue = false;
+        }
+        m_sinceMoveQueue.addNew(offset);
+        for (int i = 0; i<count; i++) {
+            m_shortQueue.updateEnd(macIds[i], levels[i]);
+            m_sinceMoveQueue.updateEnd(macIds[i], levels[i]);
+        }
+
+        // Find the best fit location, sets bestFitX and bestFitY
+        updateBestFit();
+        // Check which direction the bestGuess should move
+        updateMarkedLocation(true);
+        matchMarkedLocation();
+    }
+
+    /**
+     * Moves time on without a new scan, the circle just drifts if required.
+     */
+    public void noNewScan(long offset) {
+        this.offset = offset;
+        updateMarkedLocation(false);
+        matchMarkedLocation();
+    }
+
+    public int getBestFitIndex() {
+        return bestFitIndex;
+    }
+
+    public float getBestFitX() {
+        return bestFitX;
+    }
+
+    public float getBestFitY() {
+        return bestFitY;
+    }
+
+    public int getBestFitLevel() {
+        return bestFitLevel;
+    }
+
+    public float getBestFitScore() {
+        return bestFitScore;
+    }
+
+    public long getBestFitTime() {
+        return bestFitTime;
+    }
+
+    public float getCurrentX() {
+        return currentX;
+    }
+
+    public float getCurrentY() {
+        return currentY;
+    }
+
+    /**
+     * @return the nearest point on a corridor to the marked location, null without corridors on
+     * the level of the best fit
+     */
+    public MapMatch getMatchedLocation() {
+        return matchedLocation;
+    }
+
+    /**
+     * @return the marked location on its corridor when it has been matched to one
+     */
+    public float getMarkedX() {
+        MapMatch match = matchedLocation;
+        return match == null ? currentX : match.position.x;
+    }
+
+    public float getMarkedY() {
+        MapMatch match = matchedLocation;
+        return match == null ? currentY : match.position.y;
+    }
+
+    /**
+     * @return radius of the circle around the best fit that could have been reached since it was found, in px
+     */
+    public float getRadius() {
+        return (((offset - bestFitTime)/1000.0f) * params.walkingPace + params.errorAccomodationM) * params.pxPerM;
+    }
+
+    /**
+     * Keeps the drifting circle on a corridor for whatever shows it.  The circle itself drifts on
+     * unmatched, so it can't get stuck heading into a wall.
+     */
+    private void matchMarkedLocation() {
+        Graph corridors = getCorridors();
+        if (corridors == null || bestFitIndex < 0) {
+            matchedLocation = null;
+        } else {
+            matchedLocation = corridors.matchToEdge(new Position(currentX, currentY, bestFitLevel));
+        }
+    }
+
+    private void updateMarkedLocation(boolean checkDirection)
+    {
+        if (prevTime==0){
+            prevTime = offset;
+            currentX = bestFitX;
+            currentY = bestFitY;
+            return;
+        }
+        if (checkDirection) {
+            if (Math.abs(bestFitX -currentX)<pxPerDelay/2 && Math.abs(bestFitY -currentY)<pxPerDelay/2) {
+                currentX = bestFitX;
+                currentY = bestFitY;
+                dx = 0;
+                dy = 0;
+            } else {
+                double theta = Math.atan((bestFitY -currentY)/(bestFitX -currentX));
+                if ((bestFitX -currentX)<0) theta+= Math.PI;
+                //TODO: check if I need to handle theta = +-pi/2
+                dx = pxPerDelay*(float)Math.cos(theta);
+                dy = pxPerDelay*(float)Math.sin(theta);
+            }
+        } else {
+            if (Math.abs(bestFitX - currentX) < pxPerDelay / 2 && Math.abs(bestFitY - currentY) < pxPerDelay / 2) {
+                currentX = bestFitX;
+                currentY = bestFitY;
+                dx = 0;
+                dy = 0;
+            } else {
+                currentX += dx;
+                currentY += dy;
+            }
+        }
+    }
+
+    private void updateBestFit() {
+        WifiFingerprintInfo info = getFingerprints();
+        //  nothing set yet.
+        if (bestFitIndex<0) {
+            reportMovementStatus("Initial scan " + Integer.toString(m_sinceMoveQueue.size()) + "/3");
+            if (m_sinceMoveQueue.size()>=3) {
+                checkScorers(info);
+                m_sinceMoveQueue.getSummary(sinceMoveSummary);
+                info.updateScores(sinceMoveSummary, sinceMoveScorer);
+                int maxIndex = info.getBestScoreIndex();
+                updateBestFit(info, maxIndex);
+                currentX = bestFitX; // Circle starts at best fit
+                currentY = bestFitY;
+            }
+        }
+        // device has not been moving.  Use the long queue.  Should be more accurate
+        else if (m_sinceMoveQueue.size()>params.minLengthStationaryObs) {
+            reportMovementStatus("Stationary");
+            updateBestFitFromQueue(info, m_sinceMoveQueue, "m_sinceMoveQueue");
+        }
+        // device has moved, use the short queue
+        else {
+            reportMovementStatus("Moving");
+            updateBestFitFromQueue(info, m_shortQueue, "m_shortQueue");
+        }
+    }
+
+    /**
+     * Checks if there are any points that offer better scores than the current.
+     * Only if score is good enough in absolute sense and offers a big enough improvement over the previous location
+     * @param queue which queue to use in makeing the summary.  shortQueue of recent recordings or long one since last move.
+     * @param description log which queue is being used
+     */
+    private void updateBestFitFromQueue(WifiFingerprintInfo info, ReadingsQueue queue, String description){
+        // Find the unconstrained best fit
+        double elapsedTime = (offset - bestFitTime);  // Time since the last time that the location was updated
+        checkScorers(info);
+        m_shortQueue.getSummary(shortSummary);
+        info.updateScores(shortSummary, shortScorer, elapsedTime, 1000*params.errorAccomodationM/params.walkingPace);
+        int maxIndex = info.getBestScoreIndex();
+        float maxScore = info.getScoreAt(maxIndex);
+
+        // Decide if the best fit is good enough to use
+        boolean updatePos = false;
+        // At the same place, only consider updating is the score has improved,
+        // otherwise we could be on our way to somewhere else and we anchor this point too strongly
+        if (bestFitIndex==maxIndex) {
+            if (maxScore > bestFitScore){
+                if (params.updateForSamePos) {
+                    updatePos = true;
+                    //Log.d(TAG, "Same place - update because score improved and settings allow");
+                } else {
+                    updatePos = false;
+                    //Log.d(TAG, "Same place - not update because improved but settings do not allow");
+                }
+            } else {
+                updatePos = false;
+                //Log.d(TAG, "Same place - not update because not improved score");
+            }
+        }
+        // Have not been at current location long and new location does not offer a significant
+        // improvement.  So don't update.
+        else if (maxScore<(bestFitScore + params.stickyMinImprovement) &&
+                (offset-bestFitTime)<=params.stickyMaxTime){
+            updatePos = false;
+            //Log.d(TAG, "Sticky time no update");
+        }
+        // Default case, there is a better score at a new location. Check whether it is reasonable
+        // that we could have walked there in the time since the current location was recorded.
+        else {
+            // Find the distance to the position with the best score
+            double timeToThere = info.getTimeToCurrent(maxIndex) - params.errorAccomodationM / params.walkingPace;
+
+            if (timeToThere < elapsedTime) {
+                updatePos = true;
+                //Log.d(TAG, "Updated because timeToThere=" + timeToThere + " and we have been here for " + (offset - bestFitTime));
+            }
+            else {
+                //Log.d(TAG, "Not updated because timeToThere=" + timeToThere + " and we have been here for " + (offset - bestFitTime));
+            }
+        }
+        // Criteria met for position to be updated.
+        if (updatePos) {
+            updateBestFit(info, maxIndex);
+        }
+    }
+
+    /**
+     * Incremental scorers belong to one set of fingerprints, so new ones are made when the center changes.
+     */
+    private void checkScorers(WifiFingerprintInfo info) {
+        if (!info.canUse(shortScorer)) shortScorer = info.newIncrementalScorer();
+        if (!info.canUse(sinceMoveScorer)) sinceMoveScorer = info.newIncrementalScorer();
+    }
+
+    private void updateBestFit(WifiFingerprintInfo info, int maxIndex)
+    {
+        int displayedLevel = getDisplayedLevel();
+        bestFitTime = offset;
+        //currentX = bestFitX; // Don't fall too far behind
+        //currentY = bestFitY;
+        bestFitX = info.getXAt(maxIndex);
+        bestFitY = info.getYAt(maxIndex);
+        bestFitIndex = maxIndex;
+        bestFitScore = info.getScoreAt(bestFitIndex);
+        info.setCurrent(bestFitIndex);
+        info.updateDistances(bestFitIndex, params.pxPerM, params.walkingPace);
+        bestFitLevel = info.getLevelAt(maxIndex);
+
+        if (displayedLevel != bestFitLevel) {
+            reportLevelChange(bestFitLevel);
+            currentX = bestFitX; // Circle does not need to drift accross levels.
+            currentY = bestFitY;
+        }
+        reportBestFitMoved();
+    }
+}
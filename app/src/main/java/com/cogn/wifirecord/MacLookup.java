@@ -14,15 +14,32 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Gives each mac a short integer id, its line in the macs file.
+ * Macs are looked up by their 48 bit value packed into a long, so a lookup is a single hash probe.
+ */
 public class MacLookup {
     private static final String TAG = "WIFI";
+    private static final int NOT_FOUND = -1;
     private List<String> macs;
-    private List<Integer> ids;
     private List<String> ssids;
+    private LongIntMap idOfMac;
+    // anything that does not parse as a mac is looked up by its text
+    private Map<String, Integer> idOfOther;
+    // number of macs read from the file, any later ones were only seen while locating
+    private int fileMacCount;
     private File file;
     private boolean updateFile;
+    // new macs are appended here and reach the file on flush()
+    private BufferedWriter macWriter;
+    private boolean macsPending;
+    private long flushIntervalMS;
+    private long lastFlushMillis;
+    private Clock clock = Clock.MONOTONIC;
 
     /**
      * Mac lookup for locating.  No new macs are added
@@ -31,21 +48,21 @@ public class MacLookup {
     {
         updateFile = false;
         macs = new ArrayList<>();
-        ids = new ArrayList<>();
         ssids = new ArrayList<>();
+        idOfMac = new LongIntMap(1024);
+        idOfOther = new HashMap<>();
 
         BufferedReader reader = new BufferedReader(new InputStreamReader(macInputStream));
         try {
             String str;
             while ((str = reader.readLine()) != null) {
                 String[] cols = str.split(",");
-                macs.add(cols[0]);
-                ssids.add(cols[1]);
-                ids.add(Integer.parseInt(cols[2]));
+                add(cols[0], cols[1]);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        fileMacCount = macs.size();
     }
 
 
@@ -54,14 +71,31 @@ public class MacLookup {
      */
     public MacLookup(String location, String filename)
     {
+        this(location, filename, Clock.MONOTONIC);
+    }
+
+    /**
+     * @param clock times the flush interval, the recorder's clock
+     */
+    public MacLookup(String location, String filename, Clock clock)
+    {
+        this(new File(new File(Environment.getExternalStorageDirectory(), "WifiRecord/"+location), filename), clock);
+    }
+
+    /**
+     * Mac lookup for recording into the given macs file, which is made if it doesn't exist.
+     */
+    MacLookup(File file, Clock clock)
+    {
+        this.clock = clock;
+        this.file = file;
         updateFile = true;
-        String folderName = "WifiRecord/"+location;
         macs = new ArrayList<>();
-        ids = new ArrayList<>();
         ssids = new ArrayList<>();
-        File folder = new File(Environment.getExternalStorageDirectory(), folderName);
-        file = new File(folder, filename);
-        if (!folder.exists()) {
+        idOfMac = new LongIntMap(1024);
+        idOfOther = new HashMap<>();
+        File folder = file.getParentFile();
+        if (folder != null && !folder.exists()) {
             folder.mkdirs();
         }
         if (!file.exists()) {
@@ -79,9 +113,7 @@ public class MacLookup {
             String str;
             while ((str = in.readLine()) != null) {
                 String[] cols = str.split(",");
-                macs.add(cols[0]);
-                ssids.add(cols[1]);
-                ids.add(Integer.parseInt(cols[2]));
+                add(cols[0], cols[1]);
             }
         } catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -90,9 +122,64 @@ public class MacLookup {
         }
     }
 
+    /**
+     * Packs a mac written as hex pairs, separated by ':' or '-', into the low 48 bits of a long.
+     * @return the packed mac, or -1 if the text is not a mac
+     */
+    public static long parseMac(String mac) {
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < mac.length(); i++) {
+            char c = mac.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                digit = c - 'A' + 10;
+            } else if (c == ':' || c == '-') {
+                continue;
+            } else {
+                return -1;
+            }
+            value = (value << 4) | digit;
+            digits++;
+        }
+        return digits == 12 ? value : -1;
+    }
+
+    /**
+     * Adds a mac to the end of the list.  Like a search of the list, a mac that is listed twice
+     * keeps the id of its first line.
+     */
+    private int add(String mac, String ssid) {
+        int id = macs.size();
+        macs.add(mac);
+        ssids.add(ssid);
+        long packed = parseMac(mac);
+        if (packed >= 0) {
+            if (!idOfMac.containsKey(packed)) idOfMac.put(packed, id);
+        } else if (!idOfOther.containsKey(mac)) {
+            idOfOther.put(mac, id);
+        }
+        return id;
+    }
+
+    private int find(String mac) {
+        long packed = parseMac(mac);
+        if (packed >= 0) return idOfMac.get(packed, NOT_FOUND);
+        Integer id = idOfOther.get(mac);
+        return id != null ? id : NOT_FOUND;
+    }
+
+    private int offsetIfUnknown(int pos) {
+        return pos < fileMacCount ? pos : 10000 + pos;
+    }
+
     public Integer getID(String mac)
     {
-        return macs.indexOf(mac);
+        return find(mac);
     }
 
     public String getMac(Integer id){
@@ -108,27 +195,79 @@ public class MacLookup {
      * @return the shorthand version/index of the provided mac
      */
     public Integer getId(String mac, String ssid){
-        int pos = macs.indexOf(mac);
+        int pos = find(mac);
         if (pos>=0) {
-            return pos;
+            // macs added while locating are not in the summary, keep them out of its range of ids
+            return updateFile ? pos : offsetIfUnknown(pos);
         } else {
-            macs.add(mac);
-            ssids.add(ssid);
+            pos = add(mac, ssid);
             if (updateFile) {
-                BufferedWriter filewriter;
                 try {
-                    filewriter = new BufferedWriter(new FileWriter(file, true));
-                    filewriter.write(mac + "," + ssid + "," + (macs.size() - 1) + "\n");
-                    filewriter.close();
+                    if (macWriter == null) {
+                        macWriter = new BufferedWriter(new FileWriter(file, true));
+                    }
+                    macWriter.write(mac + "," + ssid + "," + pos + "\n");
+                    macsPending = true;
                 } catch (IOException e) {
                     Log.e(TAG, "could not make file", e);
                     return -1;
                 }
-                return macs.size()-1;
+                return pos;
             }
             else  {
-                return 10000+macs.size()-1;
+                return offsetIfUnknown(pos);
+            }
+        }
+    }
+
+    /**
+     * Sets how often {@link #endBatch()} writes new macs to the file.
+     * @param flushIntervalMS 0 to write them at the end of every scan.  Longer intervals mean
+     *                        fewer writes, but after a crash the readings may use ids whose macs
+     *                        were never written.
+     */
+    public void setFlushInterval(long flushIntervalMS) {
+        this.flushIntervalMS = flushIntervalMS;
+    }
+
+    /**
+     * Call once all the macs of a scan have been looked up.  Writes the new ones to the file when
+     * the flush interval says so.
+     */
+    public void endBatch() {
+        if (!macsPending) return;
+        long now = clock.millis();
+        if (flushIntervalMS <= 0 || now - lastFlushMillis >= flushIntervalMS) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes any new macs to the file.  Call before writing out readings that use their ids.
+     */
+    public void flush() {
+        if (!macsPending) return;
+        try {
+            macWriter.flush();
+            macsPending = false;
+            lastFlushMillis = clock.millis();
+        } catch (IOException e) {
+            Log.e(TAG, "could not write macs", e);
+        }
+    }
+
+    /**
+     * Writes any new macs and closes the file.  Call when the recording session ends.
+     */
+    public void close() {
+        flush();
+        if (macWriter != null) {
+            try {
+                macWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "could not close macs file", e);
             }
+            macWriter = null;
         }
     }
 }
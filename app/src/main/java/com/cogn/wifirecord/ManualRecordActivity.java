@@ -11,7 +11,6 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
-import java.util.Calendar;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -60,7 +59,7 @@ public class ManualRecordActivity extends Activity implements View.OnClickListen
 
 
         ((TextView)view).setText("***********************************************************\nScan request started:" + result +"\n");
-        startTimeMillis = Calendar.getInstance().getTimeInMillis();
+        startTimeMillis = Clock.MONOTONIC.millis();
 
         new Timer().schedule(new LaunchScanTask(view.getContext()), 2000);
 
@@ -95,8 +94,8 @@ public class ManualRecordActivity extends Activity implements View.OnClickListen
         }
         @Override
         public void onReceive(Context context, Intent intent) {
-            Log.d("MANUAL", "Scan received after: " + (Calendar.getInstance().getTimeInMillis() - startTimeMillis) + "ms");
-            WriteToUIThread("\nScan received after: " + (Calendar.getInstance().getTimeInMillis() - startTimeMillis) + "ms\n\n");
+            Log.d("MANUAL", "Scan received after: " + (Clock.MONOTONIC.millis() - startTimeMillis) + "ms");
+            WriteToUIThread("\nScan received after: " + (Clock.MONOTONIC.millis() - startTimeMillis) + "ms\n\n");
             WifiManager wifiManager = (WifiManager)getSystemService(Context.WIFI_SERVICE);
             List<ScanResult> scanned = wifiManager.getScanResults();
 
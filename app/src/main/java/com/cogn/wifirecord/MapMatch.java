@@ -0,0 +1,35 @@
+package com.cogn.wifirecord;
+
+/**
+ * Where a located position falls on the corridors of a {@link Graph}: the nearest point on the
+ * nearest edge of its level, and how far along the edge that is.
+ */
+public class MapMatch {
+    // the edge in the graph's compiled numbering and the nodes it runs between
+    public final int edge;
+    public final int from;
+    public final int to;
+    // px from the from node to the matched point, and the whole edge
+    public final double offset;
+    public final double length;
+    public final Position position;
+    // how far the located position was from the corridor, in px
+    public final double distance;
+
+    MapMatch(int edge, int from, int to, double offset, double length, Position position, double distance) {
+        this.edge = edge;
+        this.from = from;
+        this.to = to;
+        this.offset = offset;
+        this.length = length;
+        this.position = position;
+        this.distance = distance;
+    }
+
+    /**
+     * @return how far the matched point is along the edge, 0 at the from node and 1 at the to node
+     */
+    public double getFraction() {
+        return length > 0 ? offset / length : 0;
+    }
+}
@@ -0,0 +1,128 @@
+package com.cogn.wifirecord;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The p, mu and sigma of each mac in a set of recent scans, sorted by mac id.
+ * Kept in primitive arrays so the same instance can be refilled on every scan without allocating.
+ */
+public class ObservationSummary {
+    private int size;
+    private int[] macIds;
+    private float[] p;
+    private float[] mu;
+    private float[] sigma;
+    // column of the mac in the inverted index of the fingerprints, negative if it is not part of them
+    private int[] column;
+
+    public ObservationSummary() {
+        this(64);
+    }
+
+    public ObservationSummary(int capacity) {
+        macIds = new int[capacity];
+        p = new float[capacity];
+        mu = new float[capacity];
+        sigma = new float[capacity];
+        column = new int[capacity];
+    }
+
+    public void clear() { size = 0; }
+
+    public int size() { return size; }
+
+    /**
+     * Adds a mac, keeping the summary sorted.  Adding in increasing mac order is cheapest.
+     */
+    public void add(int macId, float p, float mu, float sigma) {
+        int pos = size;
+        while (pos > 0 && macIds[pos - 1] > macId) {
+            pos--;
+        }
+        if (pos > 0 && macIds[pos - 1] == macId) {
+            this.p[pos - 1] = p;
+            this.mu[pos - 1] = mu;
+            this.sigma[pos - 1] = sigma;
+            return;
+        }
+        if (size == macIds.length) {
+            int capacity = Math.max(8, size * 2);
+            macIds = Arrays.copyOf(macIds, capacity);
+            this.p = Arrays.copyOf(this.p, capacity);
+            this.mu = Arrays.copyOf(this.mu, capacity);
+            this.sigma = Arrays.copyOf(this.sigma, capacity);
+            column = Arrays.copyOf(column, capacity);
+        }
+        int moved = size - pos;
+        if (moved > 0) {
+            System.arraycopy(column, pos, column, pos + 1, moved);
+            System.arraycopy(macIds, pos, macIds, pos + 1, moved);
+            System.arraycopy(this.p, pos, this.p, pos + 1, moved);
+            System.arraycopy(this.mu, pos, this.mu, pos + 1, moved);
+            System.arraycopy(this.sigma, pos, this.sigma, pos + 1, moved);
+        }
+        macIds[pos] = macId;
+        this.p[pos] = p;
+        this.mu[pos] = mu;
+        this.sigma[pos] = sigma;
+        column[pos] = -1;
+        size++;
+    }
+
+    /**
+     * Replaces the contents with a map of macId to [p, mu, sigma]
+     */
+    public void set(Map<Integer, List<Float>> summary) {
+        clear();
+        for (Map.Entry<Integer, List<Float>> entry : summary.entrySet()) {
+            List<Float> stats = entry.getValue();
+            add(entry.getKey(), stats.get(0), stats.get(1), stats.get(2));
+        }
+    }
+
+    /**
+     * Makes this summary a copy of another one, reusing the arrays where they are big enough.
+     */
+    public void copyFrom(ObservationSummary other) {
+        if (macIds.length < other.size) {
+            macIds = new int[other.macIds.length];
+            p = new float[other.macIds.length];
+            mu = new float[other.macIds.length];
+            sigma = new float[other.macIds.length];
+            column = new int[other.macIds.length];
+        }
+        System.arraycopy(other.macIds, 0, macIds, 0, other.size);
+        System.arraycopy(other.p, 0, p, 0, other.size);
+        System.arraycopy(other.mu, 0, mu, 0, other.size);
+        System.arraycopy(other.sigma, 0, sigma, 0, other.size);
+        System.arraycopy(other.column, 0, column, 0, other.size);
+        size = other.size;
+    }
+
+    /**
+     * Flags which of the observed macs are part of the stored fingerprints.
+     */
+    public void markKnown(FingerprintStore store) {
+        for (int i = 0; i < size; i++) {
+            column[i] = store.indexOfMac(macIds[i]);
+        }
+    }
+
+    public int getMacId(int index) { return macIds[index]; }
+
+    public float getP(int index) { return p[index]; }
+
+    public float getMu(int index) { return mu[index]; }
+
+    public float getSigma(int index) { return sigma[index]; }
+
+    public boolean isKnown(int index) { return column[index] >= 0; }
+
+    /**
+     * Column of the mac in the inverted index of the fingerprints, only valid after
+     * {@link #markKnown(FingerprintStore)}
+     */
+    public int getColumn(int index) { return column[index]; }
+}
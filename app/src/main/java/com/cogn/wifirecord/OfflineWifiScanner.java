@@ -4,30 +4,39 @@ import android.os.Environment;
 import android.util.Log;
 import android.util.SparseArray;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Calendar;
-import java.util.List;
 
+/**
+ * Replays the scans of a path file as if they were coming in now.  Only an index of the file is
+ * kept in memory and scans are decoded as replay reaches them, so long paths can be replayed.
+ */
 public class OfflineWifiScanner implements ProvidesWifiScan {
+    private static final String TAG = "OfflineWifiScanner";
 
-    private List<SparseArray<Float>> wifiReadings;
-    private Long[] times;
+    private RecordingIndex recording;
     private MacLookup summaryMacs = null;
     private MacLookup pathMacs = null;
     private long startTime;
+    private Clock clock = Clock.MONOTONIC;
+    // the scan last handed out, which is asked for again until the next one is due
+    private int lastIndex = -1;
+    private SparseArray<Float> lastReading;
 
 
     public OfflineWifiScanner(String filename, String location, MacLookup summaryMacs, MacLookup pathMacs, long startTime)
     {
+        this(filename, location, summaryMacs, pathMacs, startTime, Clock.MONOTONIC);
+    }
+
+    /**
+     * @param startTime time on the clock at which replay starts
+     * @param clock runs replay, a fast clock replays the path faster than it was recorded
+     */
+    public OfflineWifiScanner(String filename, String location, MacLookup summaryMacs, MacLookup pathMacs, long startTime, Clock clock)
+    {
+        this.clock = clock;
         this.summaryMacs = summaryMacs;
         this.pathMacs = pathMacs;
         this.startTime = startTime;
@@ -35,81 +44,64 @@ public class OfflineWifiScanner implements ProvidesWifiScan {
         File folder = new File(Environment.getExternalStorageDirectory(), folderName);
         File file = new File(folder, filename);
         try {
-            Reader reader = new FileReader(file);
-            loadFile(reader);
-        } catch (FileNotFoundException e) {
+            recording = RecordingIndex.open(file);
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
     }
 
     public OfflineWifiScanner(InputStream inputStream){
-        loadFile(new InputStreamReader(inputStream));
+        try {
+            recording = RecordingIndex.open(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public SparseArray<Float> getScanResults(long atAbsTime){
         long atRelTime = atAbsTime - startTime;
-        if (atRelTime>times[times.length-1]+1000){
-            startTime = Calendar.getInstance().getTimeInMillis();
+        if (atRelTime>getTotalRecordingTime()+1000){
+            startTime = clock.millis();
         }
-        int index = Arrays.binarySearch(times, atRelTime);
-        if (index>0) {
-            if (index>=wifiReadings.size()) {
-                return wifiReadings.get(wifiReadings.size()-1);
-            } else {
-                return wifiReadings.get(index);
-            }
-        } else {
+        int index = recording.search(atRelTime);
+        if (index<=0) {
             index = -index;
-            if (index>=wifiReadings.size()) {
-                return wifiReadings.get(wifiReadings.size()-1);
-            } else {
-                return wifiReadings.get(index);
-            }
         }
+        return getReading(Math.min(index, recording.size()-1));
     }
 
-    public long getTotalRecordingTime(){
-        return times[times.length-1];
+    @Override
+    public Clock getClock() {
+        return clock;
     }
 
-    private void loadFile(Reader reader){
-        BufferedReader in = new BufferedReader(reader);
-        wifiReadings = new ArrayList<>();
-        ArrayList<Long> timesArrayList = new ArrayList<>();
+    public long getTotalRecordingTime(){
+        return recording.getTime(recording.size()-1);
+    }
 
+    private SparseArray<Float> getReading(int index) {
+        if (index == lastIndex) return lastReading;
+        ScanRecord record;
         try {
-            //in = new BufferedReader(new FileReader(file));
-            String str;
-            SparseArray<Float> reading = null;
-            while ((str = in.readLine()) != null) {
-                String[] cols = str.split(",");
-                if (cols[0].equalsIgnoreCase("OFFSET")){
-                    timesArrayList.add(Long.parseLong(cols[1]));
-                    reading = new SparseArray<>();
-                    wifiReadings.add(reading);
-                } else if (cols.length==2) {
-                    Integer macID;
-                    Float level;
-                    try {
-                        macID = Integer.parseInt(cols[0]);
-                        level = Float.parseFloat(cols[1]);
-                        if (summaryMacs!=null) {
-                            macID = summaryMacs.getID(pathMacs.getMac(macID));
-                        }
-                        reading.put(macID, level);
-                    }
-                    catch (NumberFormatException nfe) {}
-                    catch (NullPointerException npe) {}
+            record = recording.getScan(index);
+        } catch (IOException e) {
+            Log.e(TAG, "could not read scan " + index, e);
+            return lastReading != null ? lastReading : new SparseArray<Float>();
+        }
+        SparseArray<Float> reading = new SparseArray<>(record.size());
+        for (int i = 0; i < record.size(); i++) {
+            Integer macID = record.getMacId(i);
+            try {
+                if (summaryMacs!=null) {
+                    macID = summaryMacs.getID(pathMacs.getMac(macID));
                 }
+                reading.put(macID, (float) record.getLevel(i));
             }
-            in.close();
-            times = new Long[timesArrayList.size()];
-            times = timesArrayList.toArray(times);
-        //} catch (FileNotFoundException e) {
-        //    e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            catch (NullPointerException npe) {}
         }
+        lastIndex = index;
+        lastReading = reading;
+        return reading;
     }
 }
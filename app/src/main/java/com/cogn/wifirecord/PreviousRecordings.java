@@ -3,10 +3,7 @@ package com.cogn.wifirecord;
 import android.os.Environment;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -75,12 +72,13 @@ public class PreviousRecordings {
 
     private void ParseFile(File file, Map<Integer, ListPair> levelsAndPoints)
     {
-        BufferedReader in = null;
+        RecordingReader in = null;
         try {
-            in = new BufferedReader(new FileReader(file));
-            String str;
-            while ((str = in.readLine()) != null) {
-                String[] cols = str.split(",");
+            in = RecordingReader.open(file);
+            ScanRecord record;
+            while ((record = in.next()) != null) {
+                if (!record.isText()) continue;
+                String[] cols = record.getText().split(",");
                 if (cols[0].equalsIgnoreCase("NEW")){
                     float x = Float.parseFloat(cols[1]);
                     float y = Float.parseFloat(cols[2]);
@@ -92,8 +90,7 @@ public class PreviousRecordings {
                     levelsAndPoints.get(level).yList.add(y);
                 }
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            in.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
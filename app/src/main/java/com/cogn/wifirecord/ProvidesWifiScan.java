@@ -4,4 +4,9 @@ import android.util.SparseArray;
 
 public interface ProvidesWifiScan {
     SparseArray<Float> getScanResults(long atTime);
+
+    /**
+     * The clock the scans follow, the locator takes its time from it too.
+     */
+    Clock getClock();
 }
@@ -110,8 +110,8 @@ public class RecordActivity extends Activity
             ShoppingCenter.populateGlobalCenterList();
             GlobalDataFragment.currentCenter = new ShoppingCenter(getResources(), "Greenstone");
             GlobalDataFragment.offlineWifiScanner = null;
-            GlobalDataFragment.wifiFingerprintInfo = new WifiFingerprintInfo(GlobalDataFragment.currentCenter.getConnectionPoints(),
-                    GlobalDataFragment.currentCenter.getWifiFingerPrints(getResources()));
+            GlobalDataFragment.wifiFingerprintInfo = GlobalDataFragment.currentCenter.loadWifiFingerPrints(this);
+            GlobalDataFragment.currentCenter.loadRouting(this);
         }
 
         //Add floormap view
@@ -215,6 +215,11 @@ public class RecordActivity extends Activity
         floorMapView.updateLocateProgress(scores, currentX, currentY, bestGuessX, bestGuessY, bestGuessRadius, centerViewOnCurrent);
     }
 
+    public void updateRoute(Route route) {
+        GlobalDataFragment.latestRoute = route;
+        floorMapView.invalidate();
+    }
+
     public void updateMovementStatus(String movementStatus) {
         floorMapView.updateMovementStatus(movementStatus);
     }
@@ -299,7 +304,7 @@ public class RecordActivity extends Activity
         // as you specify a parent activity in AndroidManifest.xml.
         switch (item.getItemId()) {
             case R.id.menu_locate: {
-                long clickDelay = (Calendar.getInstance().getTimeInMillis() - lastLocationClickTime);
+                long clickDelay = (Clock.MONOTONIC.millis() - lastLocationClickTime);
                 Log.d(TAG,""+clickDelay);
                 if (clickDelay<600){
                     secondClickTookPlace = true;
@@ -325,7 +330,7 @@ public class RecordActivity extends Activity
                     };
                     timer.schedule(resetLocationIfNoSecondClick, 600);
                 }
-                lastLocationClickTime = Calendar.getInstance().getTimeInMillis();
+                lastLocationClickTime = Clock.MONOTONIC.millis();
 
                 // Start the locating thread
                 //startLocating(new WifiScanner(wifiManager, getMacInputStream()));
@@ -360,6 +365,7 @@ public class RecordActivity extends Activity
             }
             case R.id.menu_clear_route: {
                 GlobalDataFragment.latestRoute = null;
+                GlobalDataFragment.routeTree = null;
                 floorMapView.invalidate();
                 return true;
             }
@@ -430,7 +436,8 @@ public class RecordActivity extends Activity
             }
                 else {
 
-                GlobalDataFragment.latestRoute = GlobalDataFragment.currentCenter.getMallGraph().getRoute(floorMapView.getCurrentPosition(), shop);
+                GlobalDataFragment.routeTree = GlobalDataFragment.currentCenter.getMallGraph().getRouteTree(shop);
+                GlobalDataFragment.latestRoute = GlobalDataFragment.routeTree.getRoute(floorMapView.getCurrentPosition());
                 floorMapView.invalidate();
             }
         }
@@ -446,7 +453,8 @@ public class RecordActivity extends Activity
      */
     private void runSimulatedPath(String centerName, String pathFilename) {
         Log.d(TAG,"Getting summary macs");
-        String macFilename = pathFilename.replace("path", "macs");
+        // the macs file is text whichever format the path was recorded in
+        String macFilename = pathFilename.substring(0, pathFilename.length() - 4).replace("path", "macs") + DataReadWrite.TEXT_EXTENSION;
         floorMapView.updateMovementStatus("Getting summary macs");
         MacLookup summaryMacs = new MacLookup(GlobalDataFragment.currentCenter.getMacInputStream(getResources()));
         Log.d(TAG,"Getting path macs");
@@ -455,8 +463,10 @@ public class RecordActivity extends Activity
 
         Log.d(TAG,"Processing path");
         floorMapView.updateMovementStatus("Processing path");
+        float replaySpeed = Float.parseFloat(mPrefs.getString(getString(R.string.key_location_replay_speed), "1"));
+        Clock clock = replaySpeed == 1 ? Clock.MONOTONIC : new Clock.Scaled(replaySpeed);
         GlobalDataFragment.offlineWifiScanner = new OfflineWifiScanner(pathFilename, centerName , summaryMacs, pathMacs,
-                Calendar.getInstance().getTimeInMillis());
+                clock.millis(), clock);
 
         Log.d(TAG,"Starting simulation");
         floorMapView.updateMovementStatus("Starting simulation");
@@ -497,10 +507,12 @@ public class RecordActivity extends Activity
 
     public void setCurrentShoppingCenter(String centerName) {
         GlobalDataFragment.currentCenter = new ShoppingCenter(getResources(), centerName);
-        // TODO: If this ends up being slow do it on another thread.
-        GlobalDataFragment.wifiFingerprintInfo = new WifiFingerprintInfo(
-                GlobalDataFragment.currentCenter.getConnectionPoints(),
-                GlobalDataFragment.currentCenter.getWifiFingerPrints(getResources()));
+        // routes belong to the graph of the old center
+        GlobalDataFragment.latestRoute = null;
+        GlobalDataFragment.routeTree = null;
+        // TODO: The first load of a center still parses its summary, do it on another thread if that is slow.
+        GlobalDataFragment.wifiFingerprintInfo = GlobalDataFragment.currentCenter.loadWifiFingerPrints(this);
+        GlobalDataFragment.currentCenter.loadRouting(this);
 
         SharedPreferences.Editor ed = mPrefs.edit();
         ed.putString(SAVED_SHOPPING_CENTER_NAME, GlobalDataFragment.currentCenter.getPathName());
@@ -7,42 +7,91 @@ import android.hardware.SensorManager;
 import android.util.Log;
 import android.util.SparseArray;
 
-import java.util.Calendar;
-import java.util.HashMap;
 import java.util.List;
 
 /**
- * Class to estimate location of user based on Wifi readings.
+ * Class to estimate location of user based on Wifi readings.  Polls the scanner, feeds new scans
+ * to the {@link LocationEstimator} and shows the results.
  */
-public class RecordForLocation extends RecordForLocationPersistent implements SensorEventListener {
+public class RecordForLocation extends LocationEstimator implements SensorEventListener {
     private RecordActivity callingActivity;
     private ProvidesWifiScan wifiScanner;
 
     private SparseArray<Float> oldResults;
     private SparseArray<Float> results;
     private List<String> scores;
+    private Clock clock;
     private long startTimeMillis;
+    private int[] scanMacs = new int[64];
+    private float[] scanLevels = new float[64];
 
     public RecordForLocation(){
     }
 
     public RecordForLocation(Parameters params, RecordActivity callingActivity, ProvidesWifiScan wifiScanner) {
-        this.params = params;
-        pxPerDelay = params.walkingPace*params.pxPerM * delayMS/1000;
+        super(params, null);
         this.callingActivity = callingActivity;
         this.wifiScanner = wifiScanner;
         mAccel = 0.00f;
         mAccelCurrent = SensorManager.GRAVITY_EARTH;
         mAccelLast = SensorManager.GRAVITY_EARTH;
-        resetSinceMoveQueue = false;
-        startTimeMillis = Calendar.getInstance().getTimeInMillis();
-        m_shortQueue = new ReadingsQueue(params.lengthMovingObs);
-        m_sinceMoveQueue = new ReadingsQueue(params.maxLengthStationaryObs);
+        clock = wifiScanner.getClock();
+        startTimeMillis = clock.millis();
         scores = null;
-        bestFitIndex = -1;
         oldResults = null;
     }
 
+    @Override
+    protected WifiFingerprintInfo getFingerprints() {
+        return GlobalDataFragment.wifiFingerprintInfo;
+    }
+
+    @Override
+    protected Graph getCorridors() {
+        ShoppingCenter center = GlobalDataFragment.currentCenter;
+        return center == null ? null : center.getMallGraph();
+    }
+
+    @Override
+    protected int getDisplayedLevel() {
+        return callingActivity.getLevelID();
+    }
+
+    @Override
+    protected void reportMovementStatus(String movementStatus) {
+        setMovementStatusOnUIThread(movementStatus);
+    }
+
+    @Override
+    protected void reportLevelChange(int level) {
+        if (GlobalDataFragment.continuousLocate) {
+            setLevelOnUIThread(level);
+        }
+    }
+
+    /**
+     * Moves the start of the route to the shop along with the best fit.
+     */
+    @Override
+    protected void reportBestFitMoved() {
+        final RouteTree routeTree = GlobalDataFragment.routeTree;
+        if (!GlobalDataFragment.continuousLocate || routeTree == null || callingActivity == null) return;
+        // start from the corridor the best fit is on rather than the node nearest it
+        MapMatch match = routeTree.getGraph().matchToEdge(new Position(bestFitX, bestFitY, bestFitLevel));
+        final Route route = match == null ? routeTree.getRoute(new Position(bestFitX, bestFitY, bestFitLevel))
+                : routeTree.getRoute(match);
+        if (route == GlobalDataFragment.latestRoute) return;
+        callingActivity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // the route may have been cleared or replaced while this one was found
+                if (GlobalDataFragment.routeTree == routeTree) {
+                    callingActivity.updateRoute(route);
+                }
+            }
+        });
+    }
+
     public void resetReferences(RecordActivity callingActivity, ProvidesWifiScan wifiScanner) {
         this.callingActivity = callingActivity;
         this.wifiScanner = wifiScanner;
@@ -99,42 +148,6 @@ public class RecordForLocation extends RecordForLocationPersistent implements Se
         return false;
     }
 
-    private void updateMarkedLocation(boolean checkDirection)
-    {
-        if (prevTime==0){
-            prevTime = offset;
-            currentX = bestFitX;
-            currentY = bestFitY;
-            return;
-        }
-        if (checkDirection) {
-            if (Math.abs(bestFitX -currentX)<pxPerDelay/2 && Math.abs(bestFitY -currentY)<pxPerDelay/2) {
-                currentX = bestFitX;
-                currentY = bestFitY;
-                dx = 0;
-                dy = 0;
-            } else {
-                double theta = Math.atan((bestFitY -currentY)/(bestFitX -currentX));
-                if ((bestFitX -currentX)<0) theta+= Math.PI;
-                //TODO: check if I need to handle theta = +-pi/2
-                dx = pxPerDelay*(float)Math.cos(theta);
-                dy = pxPerDelay*(float)Math.sin(theta);
-            }
-        } else {
-            if (Math.abs(bestFitX - currentX) < pxPerDelay / 2 && Math.abs(bestFitY - currentY) < pxPerDelay / 2) {
-                currentX = bestFitX;
-                currentY = bestFitY;
-                dx = 0;
-                dy = 0;
-            } else {
-                currentX += dx;
-                currentY += dy;
-            }
-        }
-    }
-
-
-
     private void startScanning(){
         if (scanRunning) {
             Log.d(TAG, "There is already a scan running, scan not started");
@@ -144,42 +157,37 @@ public class RecordForLocation extends RecordForLocationPersistent implements Se
         Log.d(TAG, "Scan started");
 
         while (!requestStop){
-            offset = Calendar.getInstance().getTimeInMillis() - startTimeMillis;
-            results = wifiScanner.getScanResults(Calendar.getInstance().getTimeInMillis());
+            long now = clock.millis();
+            offset = now - startTimeMillis;
+            results = wifiScanner.getScanResults(now);
             if (haveChanged(oldResults, results)) {
-                // Add the scan to the Queues
-                m_shortQueue.addNew(offset);
-                if (resetSinceMoveQueue && bestFitIndex>=0) {
-                    m_sinceMoveQueue.clear();
-                    resetSinceMoveQueue = false;
-                }
-                m_sinceMoveQueue.addNew(offset);
                 oldResults = results.clone();
+                if (results.size() > scanMacs.length) {
+                    scanMacs = new int[results.size()];
+                    scanLevels = new float[results.size()];
+                }
                 for (int i = 0; i<results.size(); i++) {
-                    m_shortQueue.updateEnd(results.keyAt(i), results.valueAt(i));
-                    m_sinceMoveQueue.updateEnd(results.keyAt(i), results.valueAt(i));
+                    scanMacs[i] = results.keyAt(i);
+                    scanLevels[i] = results.valueAt(i);
                 }
-
-                // Find the best fit location, sets bestFitX and bestFitY
-                updateBestFit();
-                // Check which direction the bestGuess should move
-                updateMarkedLocation(true);
+                // Add the scan to the queues and find the best fit location
+                addScan(offset, scanMacs, scanLevels, results.size());
                 // Get the scores to display on the floorMap
                 scores = GlobalDataFragment.wifiFingerprintInfo.getScores(callingActivity.getLevelID()).scores;
             } else {
-                updateMarkedLocation(false); // No new reading, just drift the circle if required.
+                noNewScan(offset); // No new reading, just drift the circle if required.
             }
 
 
             if (scores!=null && !(bestFitIndex<0))
             {
-                float radius = (((offset - bestFitTime)/1000.0f) * params.walkingPace + params.errorAccomodationM) * params.pxPerM;
+                float radius = getRadius();
                 if (GlobalDataFragment.continuousLocate) {
-                    setPositionOnUIThread(scores, currentX, currentY, bestFitX, bestFitY, radius, false);
+                    setPositionOnUIThread(scores, getMarkedX(), getMarkedY(), bestFitX, bestFitY, radius, false);
                 }
             }
 
-            try { Thread.sleep(delayMS); }
+            try { clock.sleep(delayMS); }
             catch (InterruptedException e) {
                 e.printStackTrace();
             }
@@ -188,114 +196,6 @@ public class RecordForLocation extends RecordForLocationPersistent implements Se
         Log.d(TAG, "SCAN STOPPED");
     }
 
-    private void updateBestFit() {
-        //  nothing set yet.
-        if (bestFitIndex<0) {
-            setMovementStatusOnUIThread("Initial scan " + Integer.toString(m_sinceMoveQueue.size()) + "/3" );
-            if (m_sinceMoveQueue.size()>=3) {
-                GlobalDataFragment.wifiFingerprintInfo.updateScores(m_sinceMoveQueue.getSummary());
-                int maxIndex = GlobalDataFragment.wifiFingerprintInfo.getBestScoreIndex();
-                updateBestFit(maxIndex);
-                currentX = bestFitX; // Circle starts at best fit
-                currentY = bestFitY;
-            }
-        }
-        // device has not been moving.  Use the long queue.  Should be more accurate
-        else if (m_sinceMoveQueue.size()>params.minLengthStationaryObs) {
-            setMovementStatusOnUIThread("Stationary");
-            updateBestFitFromQueue(m_sinceMoveQueue, "m_sinceMoveQueue");
-        }
-        // device has moved, use the short queue
-        else {
-            setMovementStatusOnUIThread("Moving");
-            updateBestFitFromQueue(m_shortQueue, "m_shortQueue");
-        }
-    }
-
-    /**
-     * Checks if there are any points that offer better scores than the current.
-     * Only if score is good enough in absolute sense and offers a big enough improvement over the previous location
-     * @param queue which queue to use in makeing the summary.  shortQueue of recent recordings or long one since last move.
-     * @param description log which queue is being used
-     */
-    private void updateBestFitFromQueue(ReadingsQueue queue, String description){
-        HashMap<Integer, List<Float>> observationSummary;
-        WifiFingerprintInfo.ReadingSummary locationSummary;
-
-        // Find the unconstrained best fit
-        observationSummary = queue.getSummary();
-        double elapsedTime = (offset - bestFitTime);  // Time since the last time that the location was updated
-        GlobalDataFragment.wifiFingerprintInfo.updateScores(m_shortQueue.getSummary(), elapsedTime, 1000*params.errorAccomodationM/params.walkingPace);
-        int maxIndex = GlobalDataFragment.wifiFingerprintInfo.getBestScoreIndex();
-        float maxScore = GlobalDataFragment.wifiFingerprintInfo.getScoreAt(maxIndex);
-
-        // Decide if the best fit is good enough to use
-        boolean updatePos = false;
-        // At the same place, only consider updating is the score has improved,
-        // otherwise we could be on our way to somewhere else and we anchor this point too strongly
-        if (bestFitIndex==maxIndex) {
-            if (maxScore > bestFitScore){
-                if (params.updateForSamePos) {
-                    updatePos = true;
-                    //Log.d(TAG, "Same place - update because score improved and settings allow");
-                } else {
-                    updatePos = false;
-                    //Log.d(TAG, "Same place - not update because improved but settings do not allow");
-                }
-            } else {
-                updatePos = false;
-                //Log.d(TAG, "Same place - not update because not improved score");
-            }
-        }
-        // Have not been at current location long and new location does not offer a significant
-        // improvement.  So don't update.
-        else if (maxScore<(bestFitScore + params.stickyMinImprovement) &&
-                (offset-bestFitTime)<=params.stickyMaxTime){
-            updatePos = false;
-            //Log.d(TAG, "Sticky time no update");
-        }
-        // Default case, there is a better score at a new location. Check whether it is reasonable
-        // that we could have walked there in the time since the current location was recorded.
-        else {
-            // Find the distance to the position with the best score
-            double timeToThere = GlobalDataFragment.wifiFingerprintInfo.getTimeToCurrent(maxIndex) - params.errorAccomodationM / params.walkingPace;
-
-            if (timeToThere < elapsedTime) {
-                updatePos = true;
-                //Log.d(TAG, "Updated because timeToThere=" + timeToThere + " and we have been here for " + (offset - bestFitTime));
-            }
-            else {
-                //Log.d(TAG, "Not updated because timeToThere=" + timeToThere + " and we have been here for " + (offset - bestFitTime));
-            }
-        }
-        // Criteria met for position to be updated.
-        if (updatePos) {
-            updateBestFit(maxIndex);
-        }
-    }
-
-    private void updateBestFit(int maxIndex)
-    {
-        bestFitTime = offset;
-        //currentX = bestFitX; // Don't fall too far behind
-        //currentY = bestFitY;
-        bestFitX = GlobalDataFragment.wifiFingerprintInfo.getXAt(maxIndex);
-        bestFitY = GlobalDataFragment.wifiFingerprintInfo.getYAt(maxIndex);
-        bestFitIndex = maxIndex;
-        bestFitScore = GlobalDataFragment.wifiFingerprintInfo.getScoreAt(bestFitIndex);
-        GlobalDataFragment.wifiFingerprintInfo.setCurrent(bestFitIndex);
-        GlobalDataFragment.wifiFingerprintInfo.updateDistances(bestFitIndex, params.pxPerM, params.walkingPace);
-        bestFitLevel = GlobalDataFragment.wifiFingerprintInfo.getLevelAt(maxIndex);
-
-        if (callingActivity.getLevelID()!= GlobalDataFragment.wifiFingerprintInfo.getLevelAt(maxIndex)) {
-            if (GlobalDataFragment.continuousLocate) {
-                setLevelOnUIThread(bestFitLevel);
-            }
-            currentX = bestFitX; // Circle does not need to drift accross levels.
-            currentY = bestFitY;
-        }
-    }
-
     private void setMovementStatusOnUIThread(final String movementStatus) {
         callingActivity.runOnUiThread(new Runnable() {
             @Override
@@ -344,9 +244,9 @@ public class RecordForLocation extends RecordForLocationPersistent implements Se
 
     public void sendLocation() {
         setLevelOnUIThread(bestFitLevel);
-        float radius = (((offset - bestFitTime)/1000.0f) * params.walkingPace + params.errorAccomodationM) * params.pxPerM;
+        float radius = getRadius();
         List<String> scores = GlobalDataFragment.wifiFingerprintInfo.getScores(callingActivity.getLevelID()).scores;
-        setPositionOnUIThread(scores, currentX, currentY, bestFitX, bestFitY, radius, true);
+        setPositionOnUIThread(scores, getMarkedX(), getMarkedY(), bestFitX, bestFitY, radius, true);
 
     }
 
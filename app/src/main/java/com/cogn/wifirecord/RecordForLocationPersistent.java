@@ -1,13 +1,6 @@
 package com.cogn.wifirecord;
 
-import android.util.SparseArray;
-
-import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 public class RecordForLocationPersistent {
     protected static final String TAG = "WIFI_LOCATE";
@@ -70,27 +63,84 @@ public class RecordForLocationPersistent {
     public RecordForLocationPersistent() {
     }
 
+    /**
+     * The latest scans in a ring buffer, with running per mac totals so the summary never has to
+     * go back over the stored scans.  Adding a reading, dropping the oldest scan and reading the
+     * summary only touch the macs involved, and nothing is allocated once the buffers have grown.
+     */
     protected class ReadingsQueue{
+        private static final int INITIAL_MACS = 64;
+
+        private int maxLength;
+        // scans, oldest at first.  Scan i holds scanCount[slot] readings in scanMacs[slot] and scanReadings[slot]
+        private int[][] scanMacs;
+        private float[][] scanReadings;
+        private int[] scanCount;
+        private int first;
+        private int length;
+        private int scanNumber;
 
-        ArrayDeque<SparseArray<Float>> values;
-        int maxLength;
+        // running totals of each mac in the window, sorted by mac id
+        private int statCount;
+        private int[] statMacs;
+        private int[] count;
+        private double[] sum;
+        private double[] sumSquares;
+        // number of the latest scan each mac was added to, to spot a reading being replaced
+        private int[] lastScan;
+        // exponentially weighted mean and variance of the closed scans, NaN before the first,
+        // only kept when ewmaAlpha > 0
+        private float ewmaAlpha;
+        private double[] ewmaMean;
+        private double[] ewmaVariance;
+        // reading of each mac in the latest scan, which is folded into the ewma when it is closed
+        private float[] latestReading;
 
         public ReadingsQueue(int maxLength)
         {
-            this.maxLength = maxLength;
-            values = new ArrayDeque<>();
+            this.maxLength = Math.max(1, maxLength);
+            scanMacs = new int[this.maxLength][];
+            scanReadings = new float[this.maxLength][];
+            scanCount = new int[this.maxLength];
+            for (int i = 0; i < this.maxLength; i++) {
+                scanMacs[i] = new int[16];
+                scanReadings[i] = new float[16];
+            }
+            statMacs = new int[INITIAL_MACS];
+            count = new int[INITIAL_MACS];
+            sum = new double[INITIAL_MACS];
+            sumSquares = new double[INITIAL_MACS];
+            lastScan = new int[INITIAL_MACS];
+            ewmaMean = new double[INITIAL_MACS];
+            ewmaVariance = new double[INITIAL_MACS];
+            latestReading = new float[INITIAL_MACS];
+        }
 
+        /**
+         * Makes the summary use an exponentially weighted mean and standard deviation, so recent
+         * scans count for more.  p is still the share of scans in the window that saw the mac.
+         * The weighted values are not windowed: each scan is folded in once, when the next one is
+         * added, and stays in after it leaves the window.  They are only forgotten when no scan in
+         * the window has the mac.
+         * @param alpha weight of the newest reading, 0 for the plain window average
+         */
+        public void setEwmaAlpha(float alpha) {
+            ewmaAlpha = Math.max(0, Math.min(1, alpha));
         }
 
         /**
          * Returns the number of elements in this deque.
          */
-        public int size(){ return values.size(); }
+        public int size(){ return length; }
 
         /**
          * Clears the contents of the Queue
          */
-        public void clear() { values.clear(); }
+        public void clear() {
+            first = 0;
+            length = 0;
+            statCount = 0;
+        }
 
         /**
          * Adds a new empty record to the end of the queue and removes any records from the start
@@ -99,61 +149,175 @@ public class RecordForLocationPersistent {
          */
         public void addNew(long latestTime)
         {
-            values.addLast(new SparseArray<Float>());
-            if (values.size()>maxLength) {
-                values.removeFirst();
+            if (ewmaAlpha > 0 && length > 0) {
+                closeEwma((first + length - 1) % maxLength);
+            }
+            if (length == maxLength) {
+                int slot = first;
+                for (int i = 0; i < scanCount[slot]; i++) {
+                    remove(scanMacs[slot][i], scanReadings[slot][i]);
+                }
+                first = (first + 1) % maxLength;
+                length--;
             }
+            scanCount[(first + length) % maxLength] = 0;
+            length++;
+            scanNumber++;
         }
 
-        public void updateEnd(Integer macID, Float reading)
+        public void updateEnd(int macID, float reading)
         {
-            values.peekLast().put(macID, reading);
-        }
-
-        private float getMean(List<Float> values) {
-            double total = 0.0;
-            for (Float value : values)
-                total += value;
-            return (float)(total/values.size());
+            int slot = (first + length - 1) % maxLength;
+            int index = find(macID);
+            if (index >= 0 && lastScan[index] == scanNumber) {
+                // replaces a reading of the same mac in this scan
+                for (int i = 0; i < scanCount[slot]; i++) {
+                    if (scanMacs[slot][i] == macID) {
+                        remove(macID, scanReadings[slot][i]);
+                        scanReadings[slot][i] = reading;
+                        break;
+                    }
+                }
+                index = find(macID);
+            } else {
+                if (scanCount[slot] == scanMacs[slot].length) {
+                    scanMacs[slot] = Arrays.copyOf(scanMacs[slot], scanCount[slot] * 2);
+                    scanReadings[slot] = Arrays.copyOf(scanReadings[slot], scanCount[slot] * 2);
+                }
+                scanMacs[slot][scanCount[slot]] = macID;
+                scanReadings[slot][scanCount[slot]] = reading;
+                scanCount[slot]++;
+            }
+            if (index < 0) index = insert(-(index + 1), macID);
+            latestReading[index] = reading;
+            count[index]++;
+            sum[index] += reading;
+            sumSquares[index] += (double)reading * reading;
+            lastScan[index] = scanNumber;
         }
 
         /**
-         * Population standard deviation in case there is only one entry point
+         * Folds the final reading of each mac in a scan into the weighted mean and variance.
          */
-        private float getStd(List<Float> values) {
-            double total = 0.0;
-            float mean = getMean(values);
-            for (Float value : values)
-                total += (value-mean)*(value-mean);
-            return (float)Math.sqrt(total/values.size());
+        private void closeEwma(int slot) {
+            for (int i = 0; i < scanCount[slot]; i++) {
+                int index = find(scanMacs[slot][i]);
+                double mean = ewmaMean[index];
+                double variance = ewmaVariance[index];
+                float reading = scanReadings[slot][i];
+                if (Double.isNaN(mean)) {
+                    ewmaMean[index] = reading;
+                    ewmaVariance[index] = 0;
+                } else {
+                    double diff = reading - mean;
+                    ewmaMean[index] = mean + ewmaAlpha * diff;
+                    ewmaVariance[index] = (1 - ewmaAlpha) * (variance + ewmaAlpha * diff * diff);
+                }
+            }
         }
 
+        private void remove(int macID, float reading) {
+            int index = find(macID);
+            count[index]--;
+            if (count[index] == 0) {
+                // start again from zero so rounding errors don't carry over
+                sum[index] = 0;
+                sumSquares[index] = 0;
+            } else {
+                sum[index] -= reading;
+                sumSquares[index] -= (double)reading * reading;
+            }
+        }
 
-        public HashMap<Integer, List<Float>> getSummary() {
-            HashMap<Integer, ArrayList<Float>> aggregate = new HashMap<>();
-            for (SparseArray<Float> value : values)
-            {
-                for (int i=0; i<value.size(); i++) {
-                    //for (Map.Entry<Integer, Float> entry : value. value.entrySet()) {
-                    if (!aggregate.containsKey(value.keyAt(i))) {
-                        aggregate.put(value.keyAt(i), new ArrayList<>(Arrays.asList(value.valueAt(i))));
-                    }
-                    else {
-                        aggregate.get(value.keyAt(i)).add(value.valueAt(i));
+        private int find(int macID) {
+            return Arrays.binarySearch(statMacs, 0, statCount, macID);
+        }
+
+        private int insert(int pos, int macID) {
+            if (statCount == statMacs.length) {
+                int capacity = statCount * 2;
+                statMacs = Arrays.copyOf(statMacs, capacity);
+                count = Arrays.copyOf(count, capacity);
+                sum = Arrays.copyOf(sum, capacity);
+                sumSquares = Arrays.copyOf(sumSquares, capacity);
+                lastScan = Arrays.copyOf(lastScan, capacity);
+                ewmaMean = Arrays.copyOf(ewmaMean, capacity);
+                ewmaVariance = Arrays.copyOf(ewmaVariance, capacity);
+                latestReading = Arrays.copyOf(latestReading, capacity);
+            }
+            int moved = statCount - pos;
+            if (moved > 0) {
+                System.arraycopy(statMacs, pos, statMacs, pos + 1, moved);
+                System.arraycopy(count, pos, count, pos + 1, moved);
+                System.arraycopy(sum, pos, sum, pos + 1, moved);
+                System.arraycopy(sumSquares, pos, sumSquares, pos + 1, moved);
+                System.arraycopy(lastScan, pos, lastScan, pos + 1, moved);
+                System.arraycopy(ewmaMean, pos, ewmaMean, pos + 1, moved);
+                System.arraycopy(ewmaVariance, pos, ewmaVariance, pos + 1, moved);
+                System.arraycopy(latestReading, pos, latestReading, pos + 1, moved);
+            }
+            statMacs[pos] = macID;
+            count[pos] = 0;
+            sum[pos] = 0;
+            sumSquares[pos] = 0;
+            lastScan[pos] = 0;
+            ewmaMean[pos] = Double.NaN;
+            ewmaVariance[pos] = 0;
+            statCount++;
+            return pos;
+        }
+
+        /**
+         * Fills the summary with the p, mu and sigma of every mac seen in the window.
+         * p is the share of the scans that saw the mac, sigma the population standard deviation.
+         * With an ewma the latest scan is included as if it had been closed.
+         * Macs that have dropped out of the window are forgotten at the same time.
+         */
+        public void getSummary(ObservationSummary summary) {
+            summary.clear();
+            int kept = 0;
+            for (int i = 0; i < statCount; i++) {
+                if (count[i] == 0) continue;
+                if (kept != i) {
+                    statMacs[kept] = statMacs[i];
+                    count[kept] = count[i];
+                    sum[kept] = sum[i];
+                    sumSquares[kept] = sumSquares[i];
+                    lastScan[kept] = lastScan[i];
+                    ewmaMean[kept] = ewmaMean[i];
+                    ewmaVariance[kept] = ewmaVariance[i];
+                    latestReading[kept] = latestReading[i];
+                }
+                float p = (float)count[kept] / length;
+                float mu = Float.NaN;
+                float sigma = 0;
+                if (ewmaAlpha > 0) {
+                    double mean = ewmaMean[kept];
+                    double variance = ewmaVariance[kept];
+                    if (lastScan[kept] == scanNumber) {
+                        float reading = latestReading[kept];
+                        if (Double.isNaN(mean)) {
+                            mean = reading;
+                            variance = 0;
+                        } else {
+                            double diff = reading - mean;
+                            mean += ewmaAlpha * diff;
+                            variance = (1 - ewmaAlpha) * (variance + ewmaAlpha * diff * diff);
+                        }
                     }
+                    mu = (float)mean;
+                    sigma = (float)Math.sqrt(variance);
                 }
+                if (Float.isNaN(mu)) {
+                    // also for macs whose scans were closed before the ewma was turned on
+                    double mean = sum[kept] / count[kept];
+                    mu = (float)mean;
+                    sigma = (float)Math.sqrt(Math.max(0, sumSquares[kept] / count[kept] - mean * mean));
+                }
+                summary.add(statMacs[kept], p, mu, sigma);
+                kept++;
             }
-            HashMap<Integer, List<Float>> summary = new HashMap<>();
-            float p;
-            float mu;
-            float sigma;
-            for (Map.Entry<Integer, ArrayList<Float>> aggregateEntry : aggregate.entrySet()) {
-                p = aggregateEntry.getValue().size()/values.size();
-                mu = getMean(aggregateEntry.getValue());
-                sigma = getStd(aggregateEntry.getValue());
-                summary.put(aggregateEntry.getKey(), new ArrayList<>(Arrays.asList(p, mu, sigma)));
-            }
-            return summary;
+            statCount = kept;
         }
     }
 
@@ -0,0 +1,318 @@
+package com.cogn.wifirecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The times of every scan in a recording and where to find them, so scans can be read from any
+ * point without holding the whole recording in memory.
+ *
+ * The file is split into chunks that can each be decoded on their own: a block of a binary file,
+ * or an OFFSET line and the lines after it in a text file.  Building the index reads the file once
+ * but only keeps a time per scan and a position per chunk.  {@link #getScan(int)} then decodes a
+ * window of chunks at a time, starting at the one that holds the scan and reading ahead by at
+ * least {@link #READ_AHEAD_SCANS}, so replaying forwards only touches the file now and then.
+ *
+ * Not thread safe.
+ */
+public class RecordingIndex {
+    private static final int READ_AHEAD_SCANS = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Source source;
+    private final boolean binary;
+    private final int flags;
+    // how much of the file was indexed, a recording still being written may have grown since
+    private long indexedLength;
+
+    private long[] times = new long[256];
+    private int scanCount;
+    // chunk c covers bytes chunkStart[c] to chunkStart[c+1] and holds scans chunkFirstScan[c] onwards
+    private long[] chunkStart = new long[64];
+    private int[] chunkFirstScan = new int[64];
+    private int chunkCount;
+
+    // the decoded scans of the current window
+    private final List<ScanRecord> window = new ArrayList<>();
+    private int windowFirstScan;
+
+    private RecordingIndex(Source source) throws IOException {
+        this.source = source;
+        byte[] start = new byte[BinaryRecordingOutput.HEADER_BYTES];
+        boolean isBinary = source.length() >= start.length;
+        if (isBinary) {
+            source.read(0, start, 0, start.length);
+            for (int i = 0; i < BinaryRecordingOutput.MAGIC.length; i++) {
+                isBinary &= start[i] == BinaryRecordingOutput.MAGIC[i];
+            }
+        }
+        binary = isBinary;
+        if (binary) {
+            flags = BinaryRecordingOutput.readFlags(new ByteArrayInputStream(start));
+            indexBinary();
+        } else {
+            flags = 0;
+            indexText();
+        }
+        times = Arrays.copyOf(times, scanCount);
+        chunkStart = Arrays.copyOf(chunkStart, chunkCount + 1);
+        chunkFirstScan = Arrays.copyOf(chunkFirstScan, chunkCount + 1);
+        chunkStart[chunkCount] = indexedLength;
+        chunkFirstScan[chunkCount] = scanCount;
+    }
+
+    /**
+     * Indexes a recording file, which is read again as scans are asked for.
+     */
+    public static RecordingIndex open(File file) throws IOException {
+        return new RecordingIndex(new FileSource(file));
+    }
+
+    /**
+     * Indexes a recording from a stream.  The stream can't be read twice so its bytes are kept in
+     * memory, which is meant for the small recordings bundled with the app.
+     */
+    public static RecordingIndex open(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        try {
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return new RecordingIndex(new ArraySource(bytes.toByteArray()));
+    }
+
+    private void addChunk(long position) {
+        if (chunkCount + 1 >= chunkStart.length) {
+            chunkStart = Arrays.copyOf(chunkStart, chunkStart.length * 2);
+            chunkFirstScan = Arrays.copyOf(chunkFirstScan, chunkFirstScan.length * 2);
+        }
+        chunkStart[chunkCount] = position;
+        chunkFirstScan[chunkCount] = scanCount;
+        chunkCount++;
+    }
+
+    private void addScan(long time) {
+        if (scanCount == times.length) {
+            times = Arrays.copyOf(times, times.length * 2);
+        }
+        times[scanCount++] = time;
+    }
+
+    /**
+     * Steps through the block headers, decoding each block once for the times of its scans.
+     */
+    private void indexBinary() throws IOException {
+        long position = BinaryRecordingOutput.HEADER_BYTES;
+        long length = source.length();
+        byte[] header = new byte[BinaryRecordingOutput.BLOCK_HEADER_BYTES];
+        while (position + header.length <= length) {
+            source.read(position, header, 0, header.length);
+            int payload = new DataInputStream(new ByteArrayInputStream(header)).readInt();
+            long end = position + header.length + payload;
+            if (payload < 0 || end > length) break; // a block cut short when recording stopped
+            addChunk(position);
+            RecordingReader reader = decode(position, end);
+            ScanRecord record;
+            while ((record = reader.next()) != null) {
+                if (!record.isText()) addScan(record.getOffset());
+            }
+            reader.close();
+            position = end;
+        }
+        indexedLength = position;
+    }
+
+    /**
+     * Finds the OFFSET lines, each one starting a chunk.  Like the reader, OFFSET is matched in any case.
+     */
+    private void indexText() throws IOException {
+        long length = source.length();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] prefix = "OFFSET,".getBytes(BinaryRecordingOutput.UTF8);
+        StringBuilder number = new StringBuilder();
+        long lineStart = 0;
+        int matched = 0; // how much of the prefix the current line has matched, -1 if it can't
+        boolean inNumber = false;
+        for (long position = 0; position < length; ) {
+            int n = (int)Math.min(buffer.length, length - position);
+            source.read(position, buffer, 0, n);
+            for (int i = 0; i < n; i++) {
+                byte b = buffer[i];
+                if (b == '\n') {
+                    if (inNumber) endOffsetLine(lineStart, number);
+                    inNumber = false;
+                    matched = 0;
+                    lineStart = position + i + 1;
+                } else if (inNumber) {
+                    number.append((char)b);
+                } else if (matched >= 0) {
+                    if (b >= 'a' && b <= 'z') b -= 'a' - 'A';
+                    if (b == prefix[matched]) {
+                        matched++;
+                        if (matched == prefix.length) {
+                            inNumber = true;
+                            number.setLength(0);
+                        }
+                    } else {
+                        matched = -1;
+                    }
+                }
+            }
+            position += n;
+        }
+        if (inNumber) endOffsetLine(lineStart, number);
+        indexedLength = length;
+    }
+
+    private void endOffsetLine(long lineStart, StringBuilder number) throws IOException {
+        long time;
+        try {
+            time = Long.parseLong(number.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad OFFSET line at byte " + lineStart, e);
+        }
+        addChunk(lineStart);
+        addScan(time);
+    }
+
+    /**
+     * @return a reader of the chunks between the two file positions
+     */
+    private RecordingReader decode(long start, long end) throws IOException {
+        byte[] bytes = new byte[(int)(end - start)];
+        source.read(start, bytes, 0, bytes.length);
+        if (binary) {
+            return new BinaryRecordingReader(new ByteArrayInputStream(bytes), flags);
+        } else {
+            return new TextRecordingReader(new InputStreamReader(new ByteArrayInputStream(bytes), BinaryRecordingOutput.UTF8));
+        }
+    }
+
+    public int size() {
+        return scanCount;
+    }
+
+    /**
+     * @return the time of the scan, as the offset from the start of the recording in ms
+     */
+    public long getTime(int scan) {
+        return times[scan];
+    }
+
+    /**
+     * @return the index of the time, as from {@link Arrays#binarySearch(long[], long)}
+     */
+    public int search(long time) {
+        return Arrays.binarySearch(times, time);
+    }
+
+    public ScanRecord getScan(int scan) throws IOException {
+        if (scan < 0 || scan >= scanCount) throw new IndexOutOfBoundsException("No scan " + scan);
+        if (scan < windowFirstScan || scan >= windowFirstScan + window.size()) {
+            fillWindow(scan);
+        }
+        return window.get(scan - windowFirstScan);
+    }
+
+    /**
+     * Decodes the chunk holding the scan and enough of the ones after it for the read ahead.
+     */
+    private void fillWindow(int scan) throws IOException {
+        int first = chunkOf(scan);
+        int last = first + 1;
+        while (last < chunkCount && chunkFirstScan[last] < scan + READ_AHEAD_SCANS) {
+            last++;
+        }
+        window.clear();
+        windowFirstScan = chunkFirstScan[first];
+        RecordingReader reader = decode(chunkStart[first], chunkStart[last]);
+        int expected = chunkFirstScan[last] - windowFirstScan;
+        ScanRecord record;
+        while (window.size() < expected && (record = reader.next()) != null) {
+            if (!record.isText()) window.add(record);
+        }
+        reader.close();
+        if (window.size() != expected)
+            throw new IOException("Recording changed since it was indexed");
+    }
+
+    private int chunkOf(int scan) {
+        int low = 0;
+        int high = chunkCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (chunkFirstScan[mid] <= scan) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static abstract class Source {
+        abstract long length() throws IOException;
+
+        abstract void read(long position, byte[] dst, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Opens the file for each read, so nothing is left open between windows.
+     */
+    private static class FileSource extends Source {
+        private final File file;
+
+        FileSource(File file) throws IOException {
+            if (!file.isFile()) throw new IOException("No recording at " + file);
+            this.file = file;
+        }
+
+        @Override
+        long length() {
+            return file.length();
+        }
+
+        @Override
+        void read(long position, byte[] dst, int offset, int length) throws IOException {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                in.seek(position);
+                in.readFully(dst, offset, length);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static class ArraySource extends Source {
+        private final byte[] bytes;
+
+        ArraySource(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        long length() {
+            return bytes.length;
+        }
+
+        @Override
+        void read(long position, byte[] dst, int offset, int length) {
+            System.arraycopy(bytes, (int)position, dst, offset, length);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.cogn.wifirecord;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * Where the records of a readings or path file are written, in either the text or the binary format.
+ */
+public abstract class RecordingOutput {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public abstract void write(ScanRecord record) throws IOException;
+
+    public abstract void flush() throws IOException;
+
+    public abstract void close() throws IOException;
+
+    public static RecordingOutput open(File file, boolean binary) throws IOException {
+        return open(file, binary, false);
+    }
+
+    /**
+     * Opens a recording for appending, creating it if needed.
+     * @param binary true for the binary format, which should go in a file ending in {@link DataReadWrite#BINARY_EXTENSION}
+     * @param compress deflate the blocks of a new binary file, an existing one keeps the setting it was made with
+     */
+    public static RecordingOutput open(File file, boolean binary, boolean compress) throws IOException {
+        if (binary) {
+            boolean isNew = !file.exists() || file.length() == 0;
+            if (!isNew) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    compress = (BinaryRecordingOutput.readFlags(in) & BinaryRecordingOutput.FLAG_DEFLATE) != 0;
+                } finally {
+                    in.close();
+                }
+            }
+            return new BinaryRecordingOutput(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE), isNew, compress);
+        } else {
+            return new TextRecordingOutput(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true)), BUFFER_SIZE));
+        }
+    }
+}
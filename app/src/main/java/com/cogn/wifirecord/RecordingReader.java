@@ -0,0 +1,49 @@
+package com.cogn.wifirecord;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Reads the records of a readings or path file one at a time, whichever format it is in.
+ */
+public abstract class RecordingReader implements Closeable {
+
+    /**
+     * @return the next record, or null at the end of the file
+     */
+    public abstract ScanRecord next() throws IOException;
+
+    public static RecordingReader open(File file) throws IOException {
+        return open(new FileInputStream(file));
+    }
+
+    /**
+     * Looks at the start of the stream to tell a binary recording from a text one.
+     */
+    public static RecordingReader open(InputStream stream) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(stream, 64 * 1024);
+        byte[] start = new byte[BinaryRecordingOutput.MAGIC.length];
+        in.mark(start.length);
+        int read = 0;
+        while (read < start.length) {
+            int n = in.read(start, read, start.length - read);
+            if (n < 0) break;
+            read += n;
+        }
+        in.reset();
+        boolean binary = read == start.length;
+        for (int i = 0; binary && i < start.length; i++) {
+            binary = start[i] == BinaryRecordingOutput.MAGIC[i];
+        }
+        if (binary) {
+            return new BinaryRecordingReader(in);
+        } else {
+            return new TextRecordingReader(new InputStreamReader(in));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.cogn.wifirecord;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends scan records to a recording file from a background thread, so the scan loop only has
+ * to hand each record over.  The file stays open for the whole session and is flushed every
+ * flush interval, and once more on {@link #close()}.
+ *
+ * If the writer falls behind the queue fills up and {@link #write(ScanRecord)} waits, so no
+ * record is ever dropped.
+ */
+public class RecordingWriter {
+    private static final ScanRecord END = ScanRecord.textLine("");
+
+    private final BlockingQueue<ScanRecord> queue;
+    private final long flushIntervalMS;
+    private final Clock clock;
+    private final RecordingOutput out;
+    private final Thread thread;
+    private volatile IOException error;
+    private volatile int written;
+
+    /**
+     * Starts the writer thread.
+     * @param out an open recording, from {@link RecordingOutput#open(java.io.File, boolean)}
+     * @param queueCapacity the most records that can wait to be written
+     * @param flushIntervalMS the longest a written record waits in the buffer
+     */
+    public RecordingWriter(RecordingOutput out, int queueCapacity, long flushIntervalMS) {
+        this(out, queueCapacity, flushIntervalMS, Clock.MONOTONIC);
+    }
+
+    /**
+     * @param clock times the flush interval, the recorder's clock.  The writer still waits for
+     *              records in real time, so a virtual clock only flushes when it has moved on.
+     */
+    public RecordingWriter(RecordingOutput out, int queueCapacity, long flushIntervalMS, Clock clock) {
+        this.flushIntervalMS = flushIntervalMS;
+        this.clock = clock;
+        this.out = out;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "recording-writer");
+        thread.start();
+    }
+
+    /**
+     * Queues a record, waiting if the queue is full.
+     */
+    public void write(ScanRecord record) {
+        if (thread.getState() == Thread.State.TERMINATED)
+            throw new IllegalStateException("The writer has been closed");
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(record);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    public void writeLine(String line) {
+        write(ScanRecord.textLine(line));
+    }
+
+    /**
+     * Writes everything still queued, closes the file and stops the thread.
+     */
+    public void close() {
+        write(END);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return the first error the writer thread hit, or null.  Records after an error are lost.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * @return the number of scan records written so far, not counting text lines
+     */
+    public int getWrittenCount() {
+        return written;
+    }
+
+    private void writeRecords() {
+        long lastFlush = clock.millis();
+        boolean dirty = false;
+        try {
+            while (true) {
+                long wait = dirty ? lastFlush + flushIntervalMS - clock.millis() : flushIntervalMS;
+                ScanRecord record = queue.poll(Math.max(1, wait), TimeUnit.MILLISECONDS);
+                if (record == END) break;
+                // after an error the queue is still emptied so the scan loop never blocks
+                if (record != null && error == null) {
+                    writeRecord(record);
+                    dirty = true;
+                }
+                if (dirty && clock.millis() - lastFlush >= flushIntervalMS) {
+                    flush();
+                    lastFlush = clock.millis();
+                    dirty = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            // fall through and close what has been written
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (error == null) error = e;
+        }
+    }
+
+    private void flush() {
+        if (error != null) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    private void writeRecord(ScanRecord record) {
+        try {
+            out.write(record);
+            if (!record.isText()) written++;
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.cogn.wifirecord;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -8,14 +9,23 @@ import java.util.List;
  * A route through a shopping center
  */
 public class Route {
+    // shops this close to the path are mentioned in its description
+    static final double SEPARATION_M = 5;
+
     List<Position> pathPoints;
-    List<Double> pathFractions;
+    // how far along the path each point is, in px
+    double[] pathDistances;
 
     double pathLength;
     double pxPerM;
 
     public ArrayList<Description> descriptions;
 
+    // set when the route follows the edges of a graph, which know the shops along them
+    private EdgeLandmarks landmarks;
+    // the edge each segment follows, -1 if it doesn't follow one
+    private int[] pathEdges;
+
     public Route(double pxPerM){
         this.pxPerM = pxPerM;
         pathPoints = new ArrayList<>();
@@ -36,42 +46,84 @@ public class Route {
             cloned.addPoint(new Position(position.x, position.y, position.level));
         }
         cloned.finalizeConstruction();
+        cloned.setEdges(landmarks, pathEdges);
         return cloned;
     }
 
     public void finalizeConstruction(){
-        pathFractions = new ArrayList<>(pathPoints.size());
-        pathFractions.add(0, 0.0);
+        pathDistances = new double[pathPoints.size()];
         for (int i = 0; i < pathPoints.size()-1; i++) {
             double dx = pathPoints.get(i+1).x - pathPoints.get(i).x;
             double dy = pathPoints.get(i+1).y - pathPoints.get(i).y;
-            double frac = pathFractions.get(i) + Math.sqrt(dx*dx + dy*dy);
-            pathFractions.add(i+1, frac);
-        }
-        pathLength = pathFractions.get(pathFractions.size()-1);
-        for (int i = 0; i < pathFractions.size(); i++) {
-            pathFractions.set(i, pathFractions.get(i)/pathLength);
+            pathDistances[i+1] = pathDistances[i] + Math.sqrt(dx*dx + dy*dy);
         }
+        pathLength = pathDistances[pathDistances.length-1];
     }
 
+    /**
+     * @param pathEdges the edge of the graph the landmarks were made for that each segment follows
+     */
+    void setEdges(EdgeLandmarks landmarks, int[] pathEdges) {
+        this.landmarks = landmarks;
+        this.pathEdges = pathEdges;
+    }
+
+    /**
+     * Lists the shop entrances within 5 m of the path, in the order they are passed.  A route on
+     * the edges of a graph joins up the lists of its edges, any other route has each segment look
+     * at the entrances near it, found through the directory's entrance grid.
+     */
     public void createDescription()
     {
         descriptions = new ArrayList<>();
+        // already there, nothing to pass on the way
+        if (pathPoints.size() < 2) return;
+        if (landmarks != null) {
+            describeFromLandmarks();
+            return;
+        }
 
-        double separationM = 5;
-        double separationPx = separationM*pxPerM;
-        List<Shop> shops = GlobalDataFragment.currentCenter.getShopDirectory().getAllShops();
-        for (Shop shop : shops) {
-            for (int i = 0; i < shop.entranceLocations.size(); i++) {
-                Double[] dFracXAndY = closest(shop.entranceLocations.get(i));
-                if (dFracXAndY[0] <= separationPx) {
-                    double d = dFracXAndY[0];
-                    double frac= dFracXAndY[1];
-                    float x = dFracXAndY[2].floatValue();
-                    float y = dFracXAndY[3].floatValue();
-                    descriptions.add(new Description(shop, i, x, y, d, frac));
+        double separationPx = SEPARATION_M*pxPerM;
+        float margin = (float)separationPx;
+        ShopDirectory shopDirectory = GlobalDataFragment.currentCenter.getShopDirectory();
+        synchronized (shopDirectory) {
+            int entranceCount = shopDirectory.getEntranceCount();
+            // the first of the nearest segments to each entrance, -1 if none is close enough
+            int[] nearestSegment = new int[entranceCount];
+            double[] nearestD = new double[entranceCount];
+            float[] nearestX = new float[entranceCount];
+            float[] nearestY = new float[entranceCount];
+            Arrays.fill(nearestSegment, -1);
+            float[] closest = new float[2];
+            for (int i = 0; i < pathPoints.size()-1; i++) {
+                Position start = pathPoints.get(i);
+                Position end = pathPoints.get(i+1);
+                if (start.level != end.level) continue;
+                int found = shopDirectory.queryEntrances(start.level,
+                        Math.min(start.x, end.x) - margin, Math.min(start.y, end.y) - margin,
+                        Math.max(start.x, end.x) + margin, Math.max(start.y, end.y) + margin);
+                for (int r = 0; r < found; r++) {
+                    int entrance = shopDirectory.getEntranceResult(r);
+                    Position location = shopDirectory.getEntranceLocation(entrance);
+                    double d = pointToSegment(location.x, location.y, start.x, start.y, end.x, end.y, closest);
+                    if (d <= separationPx && (nearestSegment[entrance] < 0 || d < nearestD[entrance])) {
+                        nearestSegment[entrance] = i;
+                        nearestD[entrance] = d;
+                        nearestX[entrance] = closest[0];
+                        nearestY[entrance] = closest[1];
+                    }
                 }
             }
+            for (int entrance = 0; entrance < entranceCount; entrance++) {
+                int i = nearestSegment[entrance];
+                if (i < 0) continue;
+                // the fraction comes from how far along its segment the closest point is
+                float dx = nearestX[entrance] - pathPoints.get(i).x;
+                float dy = nearestY[entrance] - pathPoints.get(i).y;
+                double frac = (pathDistances[i] + Math.sqrt(dx*dx + dy*dy))/pathLength;
+                descriptions.add(new Description(shopDirectory.getEntranceShop(entrance), shopDirectory.getEntranceNumber(entrance),
+                        nearestX[entrance], nearestY[entrance], nearestD[entrance], frac));
+            }
         }
         Collections.sort(descriptions);
 
@@ -89,63 +141,49 @@ public class Route {
 
 
     /**
-     *
-     * @param referencePoint the point being compared to the path
-     * @return a vector with elements:
-     *              0 - minimum distance to path
-     *              1 - the fraction along the path at which the closest point
-     *              2 - the closest point, x value
-     *              3 - the closest point, y value
+     * The same description as createDescription finds, read from the landmarks of the edges the
+     * route follows.  An entrance near several of them goes with the first of the nearest.
      */
-    private Double[] closest(Position referencePoint)
-    {
-        Double minD = 1e9;
-        Double closestX = (double) pathPoints.get(0).x;
-        Double closestY = (double) pathPoints.get(0).y;
-        for (int i = 0; i < pathPoints.size()-1; i++) {
-            if((pathPoints.get(i).level ==  pathPoints.get(i+1).level) && pathPoints.get(i).level == referencePoint.level) {
-                Double[] dxy = pointToSegment(referencePoint, pathPoints.get(i), pathPoints.get(i + 1));
-
-                if (dxy[0] < minD) {
-                    minD = dxy[0];
-                    closestX = dxy[1];
-                    closestY = dxy[2];
+    private void describeFromLandmarks() {
+        int entranceCount = landmarks.getEntranceCount();
+        int[] nearestSegment = new int[entranceCount];
+        int[] nearestLandmark = new int[entranceCount];
+        Arrays.fill(nearestSegment, -1);
+        for (int i = 0; i < pathEdges.length; i++) {
+            int edge = pathEdges[i];
+            if (edge < 0) continue;
+            for (int landmark = landmarks.getFirstLandmark(edge); landmark < landmarks.getEndLandmark(edge); landmark++) {
+                int entrance = landmarks.getEntrance(landmark);
+                if (nearestSegment[entrance] < 0 || landmarks.getDistance(landmark) < landmarks.getDistance(nearestLandmark[entrance])) {
+                    nearestSegment[entrance] = i;
+                    nearestLandmark[entrance] = landmark;
                 }
             }
         }
-        Double frac = reverseInterp(new Position(closestX.floatValue(), closestY.floatValue(), referencePoint.level));
-        return new Double[]{minD, frac, closestX, closestY};
-    }
-
-    /**
-     * Given a point on a path, find the fraction along the path that it is found
-     * @param point the point that will be interpolated.
-     * @return a number between 0 and 1
-     */
-    private Double reverseInterp(Position point) {
-        for (int i = 0; i < pathPoints.size()-1; i++) {
-            if ((point.x>= pathPoints.get(i).x && point.x<= pathPoints.get(i+1).x || point.x>= pathPoints.get(i+1).x && point.x<= pathPoints.get(i).x) &&
-                    (point.y>= pathPoints.get(i).y && point.y<= pathPoints.get(i+1).y || point.y>= pathPoints.get(i+1).y && point.y<= pathPoints.get(i).y))
-            {
-                float dx  = point.x - pathPoints.get(i).x;
-                float dy = point.y - pathPoints.get(i).y;
-                return pathFractions.get(i) + Math.sqrt(dx*dx + dy*dy)/pathLength;
-            }
+        for (int entrance = 0; entrance < entranceCount; entrance++) {
+            int i = nearestSegment[entrance];
+            if (i < 0) continue;
+            int landmark = nearestLandmark[entrance];
+            double frac = (pathDistances[i] + landmarks.getOffset(landmark))/pathLength;
+            descriptions.add(new Description(landmarks.getEntranceShop(entrance), landmarks.getEntranceNumber(entrance),
+                    landmarks.getX(landmark), landmarks.getY(landmark), landmarks.getDistance(landmark), frac));
         }
-        throw new IndexOutOfBoundsException("supplied point does not lie on the path");
+        Collections.sort(descriptions);
     }
 
 
     /**
      * The distance between a point and a line segment
      * http://stackoverflow.com/a/6853926/5890940
+     * @param closest set to the x and y of the closest point on the segment
+     * @return the distance, NaN if the segment has no length
      */
-    private Double[] pointToSegment(Position point, Position segmentEnd1, Position segmentEnd2)
+    static double pointToSegment(float pointX, float pointY, float end1X, float end1Y, float end2X, float end2Y, float[] closest)
     {
-        float A = point.x - segmentEnd1.x;
-        float B = point.y - segmentEnd1.y;
-        float C = segmentEnd2.x - segmentEnd1.x;
-        float D = segmentEnd2.y - segmentEnd1.y;
+        float A = pointX - end1X;
+        float B = pointY - end1Y;
+        float C = end2X - end1X;
+        float D = end2Y - end1Y;
 
         float dot = A * C + B * D;
         float len_sq = C * C + D * D;
@@ -154,20 +192,22 @@ public class Route {
         float xx, yy;
 
         if (param < 0) {
-            xx = segmentEnd1.x;
-            yy = segmentEnd1.y;
+            xx = end1X;
+            yy = end1Y;
         }
         else if (param > 1) {
-            xx = segmentEnd2.x;
-            yy = segmentEnd2.y;
+            xx = end2X;
+            yy = end2Y;
         } else {
-            xx = segmentEnd1.x + param * C;
-            yy = segmentEnd1.y + param * D;
+            xx = end1X + param * C;
+            yy = end1Y + param * D;
         }
 
-        float dx = point.x - xx;
-        float dy = point.y - yy;
-        return new Double[]{Math.sqrt(dx * dx + dy * dy), (double)xx, (double)yy};
+        float dx = pointX - xx;
+        float dy = pointY - yy;
+        closest[0] = xx;
+        closest[1] = yy;
+        return Math.sqrt(dx * dx + dy * dy);
     }
 
 
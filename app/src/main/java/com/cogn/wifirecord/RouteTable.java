@@ -0,0 +1,158 @@
+package com.cogn.wifirecord;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The shortest distance between every pair of nodes in a {@link Graph}, and the next node to go to
+ * on the way, so a route can be read off without searching.
+ *
+ * Row i holds the distances from node i to every node and is filled from one search, so rows can
+ * be worked out on different threads.  Distances are kept as floats and next nodes as shorts, which
+ * is why only graphs of up to {@link #MAX_NODES} nodes get a table.
+ */
+public class RouteTable {
+    public static final int MAX_NODES = 2048;
+
+    private static final int MAGIC = 0x31545257; // "WRT1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+
+    private final int nodeCount;
+    private FloatBuffer distances;
+    // -1 where the node can't be reached
+    private ShortBuffer nextNodes;
+
+    RouteTable(int nodeCount) {
+        if (nodeCount > MAX_NODES)
+            throw new IllegalArgumentException("Too many nodes for a route table: " + nodeCount);
+        this.nodeCount = nodeCount;
+        distances = FloatBuffer.allocate(nodeCount * nodeCount);
+        nextNodes = ShortBuffer.allocate(nodeCount * nodeCount);
+    }
+
+    /**
+     * Fills the row of a node from a search started at it.
+     * @param dist the distance to each node, Double.MAX_VALUE if it can't be reached
+     * @param next the node after the start on the way to each node, -1 if there is none
+     */
+    void setRow(int from, double[] dist, int[] next) {
+        int row = from * nodeCount;
+        for (int to = 0; to < nodeCount; to++) {
+            distances.put(row + to, dist[to] == Double.MAX_VALUE ? Float.MAX_VALUE : (float)dist[to]);
+            nextNodes.put(row + to, (short)next[to]);
+        }
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the length of the shortest route, Float.MAX_VALUE if there isn't one
+     */
+    public float getDistance(int from, int to) {
+        return distances.get(from * nodeCount + to);
+    }
+
+    /**
+     * @return the node after from on the shortest route to to, to itself if they are next to
+     * each other and -1 if there is no route
+     */
+    public int getNextNode(int from, int to) {
+        return nextNodes.get(from * nodeCount + to);
+    }
+
+    /**
+     * Writes the table to a file that can be opened with {@link #map(File, long, int)}.
+     * @param sourceKey identifies the graph the table was made from, so a stale file can be spotted
+     */
+    public void write(File file, long sourceKey) throws IOException {
+        long bytes = fileSize(nodeCount);
+        // a file of its own, so writers of the same file never touch each other's partial copy
+        File partial = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        RandomAccessFile out = new RandomAccessFile(partial, "rw");
+        boolean written = false;
+        try {
+            out.setLength(bytes);
+            MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(sourceKey).putInt(nodeCount).putInt(0);
+            FloatBuffer distanceView = buffer.asFloatBuffer();
+            FloatBuffer distanceValues = distances.duplicate();
+            distanceValues.rewind();
+            distanceView.put(distanceValues);
+            buffer.position(buffer.position() + 4 * distanceView.position());
+            ShortBuffer nextView = buffer.asShortBuffer();
+            ShortBuffer nextValues = nextNodes.duplicate();
+            nextValues.rewind();
+            nextView.put(nextValues);
+            buffer.force();
+            written = true;
+        } finally {
+            out.close();
+            if (!written) partial.delete();
+        }
+        if (!partial.renameTo(file)) {
+            file.delete();
+            if (!partial.renameTo(file)) {
+                partial.delete();
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    private static long fileSize(int nodeCount) {
+        return HEADER_BYTES + 6L * nodeCount * nodeCount;
+    }
+
+    /**
+     * Opens a table written by {@link #write(File, long)} without reading its contents.
+     * @param sourceKey the key the file must have been written with
+     * @param nodeCount the number of nodes the graph has now
+     * @return the table, or null if the file is missing, damaged or was written for another graph
+     */
+    public static RouteTable map(File file, long sourceKey, int nodeCount) {
+        if (nodeCount > MAX_NODES || !file.isFile() || file.length() != fileSize(nodeCount)) return null;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                // the mapping stays valid once the channel is closed
+                MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != sourceKey
+                        || buffer.getInt() != nodeCount) return null;
+                buffer.getInt();
+                RouteTable table = new RouteTable(nodeCount, null, null);
+                int cells = nodeCount * nodeCount;
+                ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+                slice.limit(4 * cells);
+                table.distances = slice.asFloatBuffer();
+                buffer.position(buffer.position() + 4 * cells);
+                slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+                slice.limit(2 * cells);
+                table.nextNodes = slice.asShortBuffer();
+                return table;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private RouteTable(int nodeCount, FloatBuffer distances, ShortBuffer nextNodes) {
+        this.nodeCount = nodeCount;
+        this.distances = distances;
+        this.nextNodes = nextNodes;
+    }
+}
@@ -0,0 +1,131 @@
+package com.cogn.wifirecord;
+
+import java.util.Arrays;
+
+/**
+ * The shortest routes from every node of a {@link Graph} to one shop, so the route can be kept up
+ * to date as the located position moves without searching again.
+ *
+ * Every node knows the next node on its way to the nearest entrance.  A new route follows those
+ * from the new position until it joins the last route and keeps the rest of that, so finding it
+ * takes time in proportion to how much of the route changed.  A position that snaps to the same
+ * node as last time gets the same Route back.
+ */
+public class RouteTree {
+    private final Graph graph;
+    // the next node towards the shop, -1 at the entrances and nodes that can't reach one
+    private final int[] next;
+    private final double[] dist;
+
+    // the last route from the shop back to the position, so the part that is kept stays put
+    private int[] backwards;
+    private int length;
+    // where each node is in backwards, -1 if it isn't on the last route
+    private final int[] onRoute;
+    private Route route;
+
+    RouteTree(Graph graph, int[] next, double[] dist) {
+        this.graph = graph;
+        this.next = next;
+        this.dist = dist;
+        backwards = new int[16];
+        onRoute = new int[next.length];
+        Arrays.fill(onRoute, -1);
+    }
+
+    /**
+     * @return the length of the shortest route from the node nearest the position, in px with the
+     * same allowance for changing level as the edges, Double.MAX_VALUE if the shop can't be reached
+     */
+    public double getDistance(Position position) {
+        return dist[graph.nearestNode(position)];
+    }
+
+    /**
+     * @return the length of the shortest route from the matched point, going whichever way along
+     * its edge is shorter, Double.MAX_VALUE if the shop can't be reached
+     */
+    public double getDistance(MapMatch match) {
+        return Math.min(match.offset + dist[match.from], match.length - match.offset + dist[match.to]);
+    }
+
+    /**
+     * @return the graph the tree was made on, whose matches it takes
+     */
+    public Graph getGraph() {
+        return graph;
+    }
+
+    /**
+     * @return the shortest route from the node nearest the position to the shop, with descriptions,
+     * or just the node if the shop can't be reached from it
+     */
+    public Route getRoute(Position position) {
+        return getRoute(graph.nearestNode(position));
+    }
+
+    /**
+     * @return the shortest route to the shop from whichever end of the matched edge it is shorter
+     * to go by, rather than from the nearest node, which may be behind
+     */
+    public Route getRoute(MapMatch match) {
+        boolean viaTo = match.length - match.offset + dist[match.to] < match.offset + dist[match.from];
+        return getRoute(viaTo ? match.to : match.from);
+    }
+
+    private synchronized Route getRoute(int start) {
+        if (route != null && length > 0 && backwards[length - 1] == start) return route;
+
+        if (dist[start] == Double.MAX_VALUE) {
+            truncate(0);
+        } else {
+            // walk towards the shop until the last route is joined or an entrance is reached
+            int join = start;
+            int walked = 0;
+            while (onRoute[join] < 0 && next[join] >= 0) {
+                join = next[join];
+                walked++;
+            }
+            if (onRoute[join] >= 0) {
+                truncate(onRoute[join] + 1);
+            } else {
+                truncate(0);
+                add(join);
+            }
+            // the walked nodes go on in reverse, nearest the join first
+            int[] walk = new int[walked];
+            for (int node = start, i = walked - 1; i >= 0; node = next[node], i--) {
+                walk[i] = node;
+            }
+            for (int node : walk) {
+                add(node);
+            }
+        }
+
+        int[] path;
+        if (length == 0) {
+            path = new int[]{start};
+        } else {
+            path = new int[length];
+            for (int i = 0; i < length; i++) {
+                path[i] = backwards[length - 1 - i];
+            }
+        }
+        route = graph.makeRoute(path, path.length);
+        route.createDescription();
+        return route;
+    }
+
+    private void truncate(int newLength) {
+        for (int i = newLength; i < length; i++) {
+            onRoute[backwards[i]] = -1;
+        }
+        length = newLength;
+    }
+
+    private void add(int node) {
+        if (length == backwards.length) backwards = Arrays.copyOf(backwards, length * 2);
+        onRoute[node] = length;
+        backwards[length++] = node;
+    }
+}
@@ -0,0 +1,52 @@
+package com.cogn.wifirecord;
+
+/**
+ * One scan as it is written to a recording: the time since recording started and the level of
+ * every mac seen.  A record can instead hold a line of text such as the DEVICE header.
+ * Records are not changed once made, so they can be handed between threads.
+ */
+public class ScanRecord {
+    private final long offset;
+    private final int[] macIds;
+    private final int[] levels;
+    private final String text;
+
+    /**
+     * @param macIds ids of the macs seen, the record keeps the array so it must not be changed afterwards
+     * @param levels rssi of each mac in dBm, in the same order
+     */
+    public ScanRecord(long offset, int[] macIds, int[] levels) {
+        if (macIds.length != levels.length)
+            throw new IllegalArgumentException("Every mac needs a level");
+        this.offset = offset;
+        this.macIds = macIds;
+        this.levels = levels;
+        this.text = null;
+    }
+
+    private ScanRecord(String text) {
+        this.offset = 0;
+        this.macIds = new int[0];
+        this.levels = new int[0];
+        this.text = text;
+    }
+
+    /**
+     * A line of text, without the line end, e.g. "DEVICE,brand,model"
+     */
+    public static ScanRecord textLine(String text) {
+        return new ScanRecord(text);
+    }
+
+    public boolean isText() { return text != null; }
+
+    public String getText() { return text; }
+
+    public long getOffset() { return offset; }
+
+    public int size() { return macIds.length; }
+
+    public int getMacId(int index) { return macIds[index]; }
+
+    public int getLevel(int index) { return levels[index]; }
+}
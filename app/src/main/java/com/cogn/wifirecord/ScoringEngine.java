@@ -0,0 +1,301 @@
+package com.cogn.wifirecord;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Scores a list of locations and finds the best one, splitting the list into chunks that are
+ * scored on a shared pool of worker threads when there is enough work to be worth it.
+ *
+ * The amount of work is estimated as the number of readings that will be compared.  Below
+ * {@link #setMinChunkWork(int)} readings everything is scored on the calling thread, so small
+ * centers never pay for the hand-over between threads.
+ *
+ * The engine keeps the best {@link #setTopK(int)} locations of a pass in small heaps.  Once a
+ * chunk has K locations, the K-th best score is handed to the scorer as a cut off, so a location
+ * that can no longer reach it can stop being scored early.
+ *
+ * An engine is not thread safe, each one should only be used by a single caller at a time.
+ * Engines share one pool of workers, sized to the cores once and never shut down.
+ */
+public class ScoringEngine {
+    private static final int DEFAULT_MIN_CHUNK_WORK = 50000;
+    // the callers score a chunk each, so one core is left for them
+    private static final int POOL_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static ExecutorService pool;
+
+    /**
+     * Scores a single location.  Must be safe to call from several threads at once.
+     */
+    public interface LocationScorer {
+        /**
+         * @param cutOff once the location is known to score below this, the scorer may stop and
+         *               return any value below cutOff.  Negative infinity when every score is needed.
+         */
+        float score(int location, float cutOff);
+    }
+
+    private final int maxChunks;
+    private final Chunk[] chunks;
+    private int minChunkWork = DEFAULT_MIN_CHUNK_WORK;
+    private int topK = 1;
+    // set when the caller is interrupted, the chunks still running stop at their next location
+    private volatile boolean abandoned;
+
+    private int bestIndex;
+    private float bestScore;
+    private int topCount;
+    private int[] topIndexes;
+    private float[] topScores;
+
+    public ScoringEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxThreads the most threads, including the caller, that one scoring pass will use.
+     *                   Chunks beyond the size of the shared pool wait in its queue.
+     */
+    public ScoringEngine(int maxThreads) {
+        maxChunks = Math.max(1, maxThreads);
+        chunks = new Chunk[maxChunks];
+        for (int i = 0; i < maxChunks; i++) {
+            chunks[i] = new Chunk();
+        }
+        setTopK(1);
+    }
+
+    /**
+     * Sets how many of the best locations are kept.  Zero keeps only the best but scores every
+     * location in full, with no early stopping.
+     */
+    public void setTopK(int k) {
+        topK = Math.max(0, k);
+        int capacity = Math.max(1, topK);
+        for (Chunk chunk : chunks) {
+            chunk.heapIndexes = new int[capacity];
+            chunk.heapScores = new float[capacity];
+        }
+        topIndexes = new int[capacity * maxChunks];
+        topScores = new float[capacity * maxChunks];
+        topCount = 0;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    /**
+     * @param minChunkWork the fewest readings to compare in one chunk before splitting the work
+     */
+    public void setMinChunkWork(int minChunkWork) {
+        this.minChunkWork = Math.max(1, minChunkWork);
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(POOL_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "fingerprint-scoring");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Scores the locations and writes each score to scoresOut at the index of the location.
+     * @param locations indexes of the locations to score
+     * @param count number of entries of locations to use
+     * @param work estimate of the total number of readings that will be compared
+     * @return the index of the best scoring location, -1 if none was scored.
+     *         Ties go to the lowest index, NaN scores are never the best.
+     *         If the caller is interrupted the chunks are stopped, the top list is left empty,
+     *         -1 is returned with the interrupt flag still set and scoresOut is incomplete.
+     */
+    public int score(int[] locations, int count, long work, float[] scoresOut, LocationScorer scorer) {
+        int nChunks = (int)Math.min(maxChunks, Math.max(1, work / minChunkWork));
+        nChunks = Math.min(nChunks, Math.max(1, count));
+        // an interrupted pass leaves this set, whichever way this pass is run
+        abandoned = false;
+        if (nChunks == 1) {
+            chunks[0].set(locations, 0, count, scoresOut, scorer, null);
+            chunks[0].run();
+            return mergeChunks(1);
+        }
+
+        ExecutorService executor = getPool();
+        CountDownLatch done = new CountDownLatch(nChunks - 1);
+        int from = 0;
+        for (int c = 0; c < nChunks; c++) {
+            int to = (int)((long)count * (c + 1) / nChunks);
+            chunks[c].set(locations, from, to, scoresOut, scorer, c == 0 ? null : done);
+            if (c > 0) executor.execute(chunks[c]);
+            from = to;
+        }
+        // The caller scores the first chunk while the workers do the rest
+        chunks[0].run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            abandon(done);
+            return -1;
+        }
+
+        return mergeChunks(nChunks);
+    }
+
+    /**
+     * Stops the chunks of an interrupted pass and waits for the ones already running, so none of
+     * them is still writing to the chunks or the scores when the next pass starts.
+     */
+    private void abandon(CountDownLatch done) {
+        abandoned = true;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // keep waiting, the flag is set again below
+            }
+        }
+        Thread.currentThread().interrupt();
+        topCount = 0;
+        bestIndex = -1;
+        bestScore = Float.NaN;
+    }
+
+    /**
+     * Combines the heaps of the chunks into the overall top locations, best first.
+     */
+    private int mergeChunks(int nChunks) {
+        topCount = 0;
+        for (int c = 0; c < nChunks; c++) {
+            Chunk chunk = chunks[c];
+            for (int h = 0; h < chunk.heapSize; h++) {
+                // insertion sort, the lists are only a few entries long
+                int pos = topCount++;
+                while (pos > 0 && isBetter(chunk.heapScores[h], chunk.heapIndexes[h], topScores[pos - 1], topIndexes[pos - 1])) {
+                    topScores[pos] = topScores[pos - 1];
+                    topIndexes[pos] = topIndexes[pos - 1];
+                    pos--;
+                }
+                topScores[pos] = chunk.heapScores[h];
+                topIndexes[pos] = chunk.heapIndexes[h];
+            }
+        }
+        topCount = Math.min(topCount, Math.max(1, topK));
+        bestIndex = topCount > 0 ? topIndexes[0] : -1;
+        bestScore = topCount > 0 ? topScores[0] : Float.NaN;
+        return bestIndex;
+    }
+
+    public int getBestIndex() {
+        return bestIndex;
+    }
+
+    public float getBestScore() {
+        return bestScore;
+    }
+
+    /**
+     * @return the number of locations in the top list of the latest pass, at most the top K.
+     */
+    public int getTopCount() {
+        return topCount;
+    }
+
+    /**
+     * @param rank 0 for the best location
+     */
+    public int getTopIndex(int rank) {
+        return topIndexes[rank];
+    }
+
+    public float getTopScore(int rank) {
+        return topScores[rank];
+    }
+
+    private static boolean isBetter(float score, int index, float bestScore, int bestIndex) {
+        if (index < 0 || Float.isNaN(score)) return false;
+        if (bestIndex < 0) return true;
+        return score > bestScore || (score == bestScore && index < bestIndex);
+    }
+
+    private class Chunk implements Runnable {
+        private int[] locations;
+        private int from;
+        private int to;
+        private float[] scoresOut;
+        private LocationScorer scorer;
+        private CountDownLatch done;
+        // min-heap of the best locations of this chunk, the root is the worst of them
+        private int[] heapIndexes;
+        private float[] heapScores;
+        private int heapSize;
+
+        void set(int[] locations, int from, int to, float[] scoresOut, LocationScorer scorer, CountDownLatch done) {
+            this.locations = locations;
+            this.from = from;
+            this.to = to;
+            this.scoresOut = scoresOut;
+            this.scorer = scorer;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                heapSize = 0;
+                int capacity = heapIndexes.length;
+                boolean cutOffAllowed = topK > 0;
+                for (int i = from; i < to && !abandoned; i++) {
+                    int location = locations[i];
+                    float cutOff = cutOffAllowed && heapSize == capacity ? heapScores[0] : Float.NEGATIVE_INFINITY;
+                    float score = scorer.score(location, cutOff);
+                    scoresOut[location] = score;
+                    offer(location, score, capacity);
+                }
+            } finally {
+                if (done != null) done.countDown();
+            }
+        }
+
+        private void offer(int location, float score, int capacity) {
+            if (Float.isNaN(score)) return;
+            if (heapSize < capacity) {
+                int pos = heapSize++;
+                while (pos > 0) {
+                    int parent = (pos - 1) / 2;
+                    if (!isBetter(heapScores[parent], heapIndexes[parent], score, location)) break;
+                    heapScores[pos] = heapScores[parent];
+                    heapIndexes[pos] = heapIndexes[parent];
+                    pos = parent;
+                }
+                heapScores[pos] = score;
+                heapIndexes[pos] = location;
+            } else if (isBetter(score, location, heapScores[0], heapIndexes[0])) {
+                // replace the worst and sift it down
+                int pos = 0;
+                while (true) {
+                    int child = 2 * pos + 1;
+                    if (child >= heapSize) break;
+                    if (child + 1 < heapSize && isBetter(heapScores[child], heapIndexes[child], heapScores[child + 1], heapIndexes[child + 1])) {
+                        child++;
+                    }
+                    if (!isBetter(score, location, heapScores[child], heapIndexes[child])) break;
+                    heapScores[pos] = heapScores[child];
+                    heapIndexes[pos] = heapIndexes[child];
+                    pos = child;
+                }
+                heapScores[pos] = score;
+                heapIndexes[pos] = location;
+            }
+        }
+    }
+}
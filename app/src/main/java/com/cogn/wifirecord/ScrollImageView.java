@@ -15,7 +15,6 @@ import android.view.View;
 import android.view.WindowManager;
 
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
 
@@ -313,7 +312,7 @@ public class ScrollImageView extends View {
 
     private boolean onTouchEventRecord(MotionEvent event) {
         if (event.getAction() == MotionEvent.ACTION_DOWN) {
-            startClickTime = Calendar.getInstance().getTimeInMillis();
+            startClickTime = Clock.MONOTONIC.millis();
             originalTouchX = event.getX();
             originalTouchY = event.getY();
             latestTouchX = event.getX();
@@ -321,7 +320,7 @@ public class ScrollImageView extends View {
             return true;
         }
         else if (event.getAction()==MotionEvent.ACTION_UP){
-            long clickDuration = Calendar.getInstance().getTimeInMillis() - startClickTime;
+            long clickDuration = Clock.MONOTONIC.millis() - startClickTime;
             float x = event.getX();
             float y = event.getY();
             float imageX = latestTouchX -mTotalX;
@@ -10,6 +10,8 @@ public class Shop {
     String name;
     List<Position> entranceLocations;
     List<String> entranceNames;
+    // the mall graph node nearest each entrance
+    int[] entranceNodes;
 
     public List<Position> getEntranceLocations() {
         return entranceLocations;
@@ -19,6 +21,17 @@ public class Shop {
         return entranceNames;
     }
 
+    /**
+     * @return the mall graph node nearest each entrance, null until the graph has attached them
+     */
+    public int[] getEntranceNodes() {
+        return entranceNodes;
+    }
+
+    public void setEntranceNodes(int[] entranceNodes) {
+        this.entranceNodes = entranceNodes;
+    }
+
     public Shop(){
         entranceLocations = new ArrayList<>();
         entranceNames = new ArrayList<>();
@@ -16,6 +16,12 @@ import java.util.Set;
 public class ShopDirectory {
     private Map<String, List<Shop>> directory;
     private List<Shop> allShops;
+
+    // every shop entrance by position, numbered in the order of allShops and their entrances,
+    // made when first needed
+    private SpatialGrid entranceGrid;
+    private Shop[] entranceShops;
+    private int[] entranceNumbers;
     
     public ShopDirectory(){
         directory = new HashMap<>();
@@ -56,6 +62,9 @@ public class ShopDirectory {
         }
         Shop shop = getShop(shopList, shopName);
         shop.add(shopName, level, x, y, entranceName);
+        synchronized (this) {
+            entranceGrid = null;
+        }
     }
 
     public Shop getShop(String category, String shopName)
@@ -83,6 +92,76 @@ public class ShopDirectory {
         return allShops;
     }
 
+    public synchronized int getEntranceCount() {
+        indexEntrances();
+        return entranceShops.length;
+    }
+
+    public synchronized Shop getEntranceShop(int entrance) {
+        indexEntrances();
+        return entranceShops[entrance];
+    }
+
+    /**
+     * @return which of its shop's entrances the entrance is
+     */
+    public synchronized int getEntranceNumber(int entrance) {
+        indexEntrances();
+        return entranceNumbers[entrance];
+    }
+
+    public synchronized Position getEntranceLocation(int entrance) {
+        indexEntrances();
+        return entranceShops[entrance].entranceLocations.get(entranceNumbers[entrance]);
+    }
+
+    /**
+     * Finds the entrances on a level that may lie within a box.  Results are overwritten by the
+     * next query, so hold the directory's lock until they have been read.
+     * @return the number found, read them with {@link #getEntranceResult(int)}
+     */
+    public synchronized int queryEntrances(int level, float minX, float minY, float maxX, float maxY) {
+        indexEntrances();
+        return entranceGrid.query(level, minX, minY, maxX, maxY);
+    }
+
+    public synchronized int getEntranceResult(int index) {
+        return entranceGrid.getResult(index);
+    }
+
+    private void indexEntrances() {
+        if (entranceGrid != null) return;
+        int count = 0;
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (Shop shop : allShops) {
+            for (Position entrance : shop.entranceLocations) {
+                count++;
+                minX = Math.min(minX, entrance.x);
+                minY = Math.min(minY, entrance.y);
+                maxX = Math.max(maxX, entrance.x);
+                maxY = Math.max(maxY, entrance.y);
+            }
+        }
+        entranceShops = new Shop[count];
+        entranceNumbers = new int[count];
+        SpatialGrid grid = new SpatialGrid(SpatialGrid.suggestCellSize(maxX - minX, maxY - minY, count, 4));
+        int entrance = 0;
+        for (Shop shop : allShops) {
+            for (int i = 0; i < shop.entranceLocations.size(); i++) {
+                Position location = shop.entranceLocations.get(i);
+                entranceShops[entrance] = shop;
+                entranceNumbers[entrance] = i;
+                grid.add(entrance, location.level, location.x, location.y);
+                entrance++;
+            }
+        }
+        grid.build();
+        entranceGrid = grid;
+    }
+
     /**
      * Returns an existing shop or adds a new one to the list and returns that
      */
@@ -1,16 +1,20 @@
 package com.cogn.wifirecord;
 
+import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.util.Xml;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -35,6 +39,11 @@ public class ShoppingCenter {
     private ConnectionPoints connectionPoints;
     private ShopDirectory shopDirectory;
     private Graph mallGraph;
+    // started by the first loadRouting, later calls leave it to finish
+    private Thread routingLoader;
+    // one per center path, so a center made again waits for the build of the one before it and
+    // reads its file rather than building a second copy
+    private static final Map<String, Object> routingLocks = new HashMap<>();
 
     private String wifiFingerPrintFilename;
     private String wifiMacsFilename;
@@ -66,6 +75,7 @@ public class ShoppingCenter {
 
         mallGraph = new Graph();
         mallGraph.loadFromFile(getStreamFromFilename(mallGraphFilename, appResources), pxPerM);
+        mallGraph.attachEntrances(shopDirectory);
 
     }
 
@@ -224,6 +234,110 @@ public class ShoppingCenter {
         return getStreamFromFilename(wifiFingerPrintFilename, appResources);
     }
 
+    /**
+     * The WIFI fingerprints, mapped from the compiled copy in the app's files when it was made
+     * from the assets of this install.  Otherwise the summary is parsed and compiled for next time.
+     * Candidate pruning is set from the location settings.
+     */
+    public WifiFingerprintInfo loadWifiFingerPrints(Context context) {
+        // assets can only change when the app is installed or updated
+        long sourceKey = 0;
+        try {
+            sourceKey = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+        }
+        File compiled = new File(context.getFilesDir(), path + "_summary.bin");
+        FingerprintStore store = FingerprintStore.map(compiled, sourceKey);
+        if (store == null) {
+            store = FingerprintStore.readSummary(getWifiFingerPrints(context.getResources()));
+            try {
+                store.write(compiled, sourceKey);
+            } catch (IOException e) {
+                Log.d("ShoppingCenter", "Could not compile the fingerprints: " + e.getMessage());
+            }
+        }
+        WifiFingerprintInfo fingerprintInfo = new WifiFingerprintInfo(connectionPoints, store);
+        SharedPreferences appPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        fingerprintInfo.setCandidatePruning(Integer.parseInt(appPreferences.getString(
+                context.getString(R.string.key_location_candidate_macs), "0")));
+        return fingerprintInfo;
+    }
+
+    /**
+     * Gets the mall graph ready to find routes without searching the whole graph.  Graphs small
+     * enough get a table of every route, bigger ones a contraction hierarchy.  Either is read from
+     * the app's files when it was made from the same graph file, otherwise it is worked out and
+     * saved for next time.
+     * Building either can take seconds, so it is done on another thread and the graph is given
+     * the result when it is ready.  Until then routes are searched for on the graph itself.
+     * Does nothing if this center is already loading or has loaded its routing.
+     */
+    public synchronized void loadRouting(Context context) {
+        if (routingLoader != null) return;
+        final File filesDir = context.getFilesDir();
+        final Object lock = routingLock(path);
+        routingLoader = new Thread(new Runnable() {
+            public void run() {
+                synchronized (lock) {
+                    if (mallGraph.getNodeCount() <= RouteTable.MAX_NODES) {
+                        loadRouteTable(filesDir);
+                    } else {
+                        loadContractionHierarchy(filesDir);
+                    }
+                }
+            }
+        }, "routing");
+        routingLoader.setPriority(Thread.MIN_PRIORITY);
+        routingLoader.start();
+    }
+
+    private static Object routingLock(String path) {
+        synchronized (routingLocks) {
+            Object lock = routingLocks.get(path);
+            if (lock == null) {
+                lock = new Object();
+                routingLocks.put(path, lock);
+            }
+            return lock;
+        }
+    }
+
+    private void loadRouteTable(File filesDir) {
+        long sourceKey = mallGraph.getSourceKey();
+        File compiled = new File(filesDir, path + "_routes.bin");
+        RouteTable table = RouteTable.map(compiled, sourceKey, mallGraph.getNodeCount());
+        if (table == null) {
+            try {
+                table = mallGraph.buildRouteTable(Runtime.getRuntime().availableProcessors());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                table.write(compiled, sourceKey);
+            } catch (IOException e) {
+                Log.d("ShoppingCenter", "Could not save the route table: " + e.getMessage());
+            }
+        }
+        mallGraph.setRouteTable(table);
+    }
+
+    private void loadContractionHierarchy(File filesDir) {
+        long sourceKey = mallGraph.getSourceKey();
+        File compiled = new File(filesDir, path + "_hierarchy.bin");
+        ContractionHierarchy hierarchy = ContractionHierarchy.read(compiled, sourceKey, mallGraph.getNodeCount());
+        if (hierarchy == null) {
+            hierarchy = mallGraph.buildContractionHierarchy();
+            try {
+                hierarchy.write(compiled, sourceKey);
+            } catch (IOException e) {
+                Log.d("ShoppingCenter", "Could not save the contraction hierarchy: " + e.getMessage());
+            }
+        }
+        mallGraph.setContractionHierarchy(hierarchy);
+    }
+
     public InputStream getMacInputStream(Resources appResources) {
         return getStreamFromFilename(wifiMacsFilename, appResources);
     }
@@ -0,0 +1,229 @@
+package com.cogn.wifirecord;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the items on each level of a center, used to find everything inside a box
+ * without visiting every item.
+ *
+ * Items are points or boxes identified by an int id.  Add them all, call {@link #build()}, then
+ * query.  A box item is stored in every cell it overlaps but is reported only once per query.
+ * Query results are held in the grid and overwritten by the next query, so a grid must only be
+ * queried from one thread at a time.
+ */
+public class SpatialGrid {
+    private final float cellSize;
+
+    // items as added, before build()
+    private int itemCount;
+    private int[] itemIds;
+    private int[] itemLevels;
+    private float[] itemBoxes; // minX, minY, maxX, maxY per item
+
+    private int[] levels;
+    private LevelGrid[] grids;
+    private int maxId;
+
+    private int[] results;
+    private int resultCount;
+    private int[] seenStamp;
+    private int stamp;
+
+    public SpatialGrid(float cellSize) {
+        if (!(cellSize > 0))
+            throw new IllegalArgumentException("Cell size must be positive, not " + cellSize);
+        this.cellSize = cellSize;
+        itemIds = new int[64];
+        itemLevels = new int[64];
+        itemBoxes = new float[64 * 4];
+        results = new int[64];
+        levels = new int[0];
+        grids = new LevelGrid[0];
+        maxId = -1;
+    }
+
+    /**
+     * A cell size that puts roughly the requested number of evenly spread items in each cell.
+     */
+    public static float suggestCellSize(float width, float height, int itemCount, int itemsPerCell) {
+        if (itemCount <= 0 || width <= 0 || height <= 0) return Math.max(1, Math.max(width, height));
+        return Math.max(1, (float)Math.sqrt(width * height * itemsPerCell / itemCount));
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public void add(int id, int level, float x, float y) {
+        add(id, level, x, y, x, y);
+    }
+
+    public void add(int id, int level, float minX, float minY, float maxX, float maxY) {
+        if (itemCount == itemIds.length) {
+            int capacity = itemCount * 2;
+            itemIds = Arrays.copyOf(itemIds, capacity);
+            itemLevels = Arrays.copyOf(itemLevels, capacity);
+            itemBoxes = Arrays.copyOf(itemBoxes, capacity * 4);
+        }
+        itemIds[itemCount] = id;
+        itemLevels[itemCount] = level;
+        itemBoxes[4 * itemCount] = Math.min(minX, maxX);
+        itemBoxes[4 * itemCount + 1] = Math.min(minY, maxY);
+        itemBoxes[4 * itemCount + 2] = Math.max(minX, maxX);
+        itemBoxes[4 * itemCount + 3] = Math.max(minY, maxY);
+        itemCount++;
+        maxId = Math.max(maxId, id);
+    }
+
+    /**
+     * Buckets the added items into cells.  Call once after all items have been added.
+     */
+    public void build() {
+        int[] sortedLevels = Arrays.copyOf(itemLevels, itemCount);
+        Arrays.sort(sortedLevels);
+        int nLevels = 0;
+        for (int i = 0; i < itemCount; i++) {
+            if (nLevels == 0 || sortedLevels[nLevels - 1] != sortedLevels[i]) {
+                sortedLevels[nLevels++] = sortedLevels[i];
+            }
+        }
+        levels = Arrays.copyOf(sortedLevels, nLevels);
+        grids = new LevelGrid[nLevels];
+        for (int l = 0; l < nLevels; l++) {
+            grids[l] = new LevelGrid(levels[l]);
+        }
+        seenStamp = new int[maxId + 1];
+
+        itemIds = null;
+        itemLevels = null;
+        itemBoxes = null;
+        itemCount = 0;
+    }
+
+    /**
+     * @return the levels that have at least one item, in increasing order
+     */
+    public int[] getLevels() {
+        return levels;
+    }
+
+    /**
+     * Finds the items on a level stored in the cells covered by the query box.  This can include
+     * items just outside the box, callers check the exact distance themselves.
+     * @return the number of items found, read them with {@link #getResult(int)}
+     */
+    public int query(int level, float minX, float minY, float maxX, float maxY) {
+        resultCount = 0;
+        int l = Arrays.binarySearch(levels, level);
+        if (l < 0) return 0;
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(seenStamp, 0);
+            stamp = 0;
+        }
+        stamp++;
+        grids[l].query(minX, minY, maxX, maxY);
+        return resultCount;
+    }
+
+    /**
+     * Finds the items on a level that may lie within a distance of a point.
+     */
+    public int queryRadius(int level, float x, float y, float radius) {
+        return query(level, x - radius, y - radius, x + radius, y + radius);
+    }
+
+    public int getResult(int index) {
+        return results[index];
+    }
+
+    private void addResult(int id) {
+        if (seenStamp[id] == stamp) return;
+        seenStamp[id] = stamp;
+        if (resultCount == results.length) {
+            results = Arrays.copyOf(results, resultCount * 2);
+        }
+        results[resultCount++] = id;
+    }
+
+    private class LevelGrid {
+        private float originX;
+        private float originY;
+        private int columns;
+        private int rows;
+        // items of cell c are cellItems[cellStart[c]] to cellItems[cellStart[c+1]-1]
+        private int[] cellStart;
+        private int[] cellItems;
+
+        LevelGrid(int level) {
+            float minX = Float.MAX_VALUE;
+            float minY = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (int i = 0; i < itemCount; i++) {
+                if (itemLevels[i] != level) continue;
+                minX = Math.min(minX, itemBoxes[4 * i]);
+                minY = Math.min(minY, itemBoxes[4 * i + 1]);
+                maxX = Math.max(maxX, itemBoxes[4 * i + 2]);
+                maxY = Math.max(maxY, itemBoxes[4 * i + 3]);
+            }
+            originX = minX;
+            originY = minY;
+            columns = (int)((maxX - minX) / cellSize) + 1;
+            rows = (int)((maxY - minY) / cellSize) + 1;
+
+            cellStart = new int[columns * rows + 1];
+            for (int pass = 0; pass < 2; pass++) {
+                int[] fill = pass == 0 ? null : Arrays.copyOf(cellStart, columns * rows);
+                for (int i = 0; i < itemCount; i++) {
+                    if (itemLevels[i] != level) continue;
+                    int c0 = column(itemBoxes[4 * i]);
+                    int r0 = row(itemBoxes[4 * i + 1]);
+                    int c1 = column(itemBoxes[4 * i + 2]);
+                    int r1 = row(itemBoxes[4 * i + 3]);
+                    for (int r = r0; r <= r1; r++) {
+                        for (int c = c0; c <= c1; c++) {
+                            if (pass == 0) {
+                                cellStart[r * columns + c + 1]++;
+                            } else {
+                                cellItems[fill[r * columns + c]++] = itemIds[i];
+                            }
+                        }
+                    }
+                }
+                if (pass == 0) {
+                    for (int c = 0; c < columns * rows; c++) {
+                        cellStart[c + 1] += cellStart[c];
+                    }
+                    cellItems = new int[cellStart[columns * rows]];
+                }
+            }
+        }
+
+        private int column(float x) {
+            return Math.max(0, Math.min(columns - 1, (int)((x - originX) / cellSize)));
+        }
+
+        private int row(float y) {
+            return Math.max(0, Math.min(rows - 1, (int)((y - originY) / cellSize)));
+        }
+
+        void query(float minX, float minY, float maxX, float maxY) {
+            if (maxX < originX || maxY < originY ||
+                    minX > originX + columns * cellSize || minY > originY + rows * cellSize) {
+                return;
+            }
+            int c0 = column(minX);
+            int r0 = row(minY);
+            int c1 = column(maxX);
+            int r1 = row(maxY);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    int cell = r * columns + c;
+                    for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                        addResult(cellItems[i]);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.cogn.wifirecord;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes records in the text format: OFFSET,ms lines each followed by one macId,rssi line per
+ * mac, and text records as lines of their own.
+ */
+public class TextRecordingOutput extends RecordingOutput {
+    private final Writer out;
+
+    public TextRecordingOutput(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(ScanRecord record) throws IOException {
+        if (record.isText()) {
+            out.write(record.getText());
+            out.write('\n');
+            return;
+        }
+        out.write("OFFSET,");
+        out.write(Long.toString(record.getOffset()));
+        out.write('\n');
+        for (int i = 0; i < record.size(); i++) {
+            out.write(Integer.toString(record.getMacId(i)));
+            out.write(',');
+            out.write(Integer.toString(record.getLevel(i)));
+            out.write('\n');
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,74 @@
+package com.cogn.wifirecord;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads a recording in the text format.  An OFFSET line and the macId,rssi lines after it make
+ * one scan record, any other line is a text record.  Reading lines that can't be parsed are skipped.
+ * OFFSET is matched in any case, as older recordings were read.
+ */
+public class TextRecordingReader extends RecordingReader {
+    private final BufferedReader in;
+    private String pendingLine;
+    private int[] macIds = new int[64];
+    private int[] levels = new int[64];
+
+    public TextRecordingReader(Reader reader) {
+        in = reader instanceof BufferedReader ? (BufferedReader)reader : new BufferedReader(reader);
+    }
+
+    @Override
+    public ScanRecord next() throws IOException {
+        String line = pendingLine != null ? pendingLine : in.readLine();
+        pendingLine = null;
+        if (line == null) return null;
+        if (!isOffsetLine(line)) {
+            return ScanRecord.textLine(line);
+        }
+        long offset = Long.parseLong(line.substring(7).trim());
+        int count = 0;
+        while ((line = in.readLine()) != null) {
+            int comma = line.indexOf(',');
+            if (comma < 0 || isOffsetLine(line) || !isNumber(line, 0, comma)) {
+                pendingLine = line;
+                break;
+            }
+            try {
+                int macId = Integer.parseInt(line.substring(0, comma));
+                int level = Math.round(Float.parseFloat(line.substring(comma + 1)));
+                if (count == macIds.length) {
+                    macIds = Arrays.copyOf(macIds, count * 2);
+                    levels = Arrays.copyOf(levels, count * 2);
+                }
+                macIds[count] = macId;
+                levels[count] = level;
+                count++;
+            } catch (NumberFormatException nfe) {
+                // skip the damaged line, as the old reader did
+            }
+        }
+        return new ScanRecord(offset, Arrays.copyOf(macIds, count), Arrays.copyOf(levels, count));
+    }
+
+    private static boolean isOffsetLine(String line) {
+        return line.regionMatches(true, 0, "OFFSET,", 0, 7);
+    }
+
+    private static boolean isNumber(String line, int start, int end) {
+        if (start < end && line.charAt(start) == '-') start++;
+        if (start >= end) return false;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,85 +1,215 @@
 package com.cogn.wifirecord;
 
-import android.content.Context;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 
 /**
  * A list of averages readings at various locations.
  * Becomes stateful once it is being used keeping track of the current distances to a selected point
  *
+ * Every location in reach is scored unless candidate pruning is turned on, which is opt-in
+ * through {@link #setCandidatePruning(int)} and the location settings.
  */
 public class WifiFingerprintInfo {
     private static final float UNSCORED = -20000f;
+    private static final int DEFAULT_TOP_K = 5;
+    // Weights used when scoring, shared with IncrementalScorer
+    static final float W1 = 1;
+    static final float W2 = 2;
+    static final float W3 = 2;
+    static final float TOL = 10;
+    static final float MULT = 20;
+    static final float P_CUT_OFF = 0.9f; // minimum summary probability before we penalize if the mac is missing from the observation
     private ConnectionPoints connectionPoints;
-    private List<ReadingSummary> summaryList;
-    private HashSet<Integer> validMacs;
+    private FingerprintStore store;
+    private ObservationSummary mapObservation;
+    private float[] scoreToLatest;
+    // sum of the weights of the strong macs at each location, the divisor of the score
+    private float[] totalWeighting;
+    private SpatialGrid locationGrid;
     private int nearestConnectionIndex;
     private int currentIndex;
+    // origin and speed of the latest updateDistances, distances are only worked out when needed
+    private int distanceFromIndex = -1;
+    private float pxPerM;
+    private float walkingPace;
+
+    // Candidate pruning: only locations where one of the strongest observed macs has a high p are scored.
+    // It can change which location is best, so it is off until turned on with setCandidatePruning.
+    private int candidateMacCount = 0;
+    private float candidateMinP = 0.5f;
+    private int minCandidates = 1;
+    private int[] strongest;
+    private int[] candidates;
+    private int candidateCount;
+    private int[] candidateStamp;
+    private int stamp;
+    // locations that were given a score in the latest update, all others are UNSCORED
+    private int[] scored;
+    private int scoredCount;
+    private long scoringWork;
+    private int bestScoreIndex = -1;
+
+    private ScoringEngine scoringEngine;
+    private ScoringEngine.LocationScorer locationScorer;
+    private ObservationSummary scoringObservation;
+    private IncrementalScorer scoringIncremental;
 
     /**
      * Open a file and read the contents into a new WifiFingerprintInfo
      */
     public WifiFingerprintInfo(ConnectionPoints connectionPoints, InputStream summaryResourceStream)
+    {
+        this(connectionPoints, FingerprintStore.readSummary(summaryResourceStream));
+    }
+
+    /**
+     * Uses fingerprints that are already loaded, for example mapped from a compiled file.
+     */
+    public WifiFingerprintInfo(ConnectionPoints connectionPoints, FingerprintStore store)
     {
         this.connectionPoints = connectionPoints;
-        summaryList = new ArrayList<>();
-        validMacs = new HashSet<>();
-        BufferedReader in = new BufferedReader(new InputStreamReader(summaryResourceStream));
-        try {
-            String str;
-            ReadingSummary summary = null;
-            while ((str = in.readLine()) != null) {
-                String[] cols = str.split(",");
-                if (cols[0].equalsIgnoreCase("LOCATION")) {
-                    float x = Float.parseFloat(cols[2]);
-                    float y = Float.parseFloat(cols[3]);
-                    int level = (int)Float.parseFloat(cols[1]);
-                    summary = new ReadingSummary(x, y, level);
-                    summaryList.add(summary);
-                } else if (cols.length==4)  {
-                    int id = Integer.parseInt(cols[0]);
-                    float p = Float.parseFloat(cols[1]);
-                    float mu = Float.parseFloat(cols[2]);
-                    float sigma = Float.parseFloat(cols[3]);
-                    summary.add(id, p, mu, sigma);
-                    validMacs.add(id);
+        this.store = store;
+        mapObservation = new ObservationSummary();
+        scoreToLatest = new float[store.size()];
+        locationGrid = buildLocationGrid(store);
+        candidates = new int[store.size()];
+        candidateStamp = new int[store.size()];
+        scored = new int[store.size()];
+        Arrays.fill(scoreToLatest, UNSCORED);
+        strongest = new int[candidateMacCount];
+
+        totalWeighting = new float[store.size()];
+        for (int i = 0; i < store.size(); i++) {
+            for (int entry = store.getRowStart(i); entry < store.getRowEnd(i); entry++) {
+                float p = store.getP(entry);
+                if (p>=P_CUT_OFF) {
+                    totalWeighting[i] += W2 * p;
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+
+        scoringEngine = new ScoringEngine();
+        scoringEngine.setTopK(DEFAULT_TOP_K);
+        locationScorer = new ScoringEngine.LocationScorer() {
+            @Override
+            public float score(int location, float cutOff) {
+                if (scoringIncremental != null) return scoringIncremental.getScore(location);
+                return getScore(location, scoringObservation, cutOff);
+            }
+        };
+    }
+
+    /**
+     * Sets how many of the best locations each update keeps, see {@link #getTopIndex(int)}.
+     * Locations that cannot make it into the top k stop being scored early and are left with a
+     * partial score that is still better than their full one.  Zero scores every location in full.
+     */
+    public void setTopK(int k) {
+        scoringEngine.setTopK(k);
+    }
+
+    /**
+     * @return the number of locations in the top list of the latest update
+     */
+    public int getTopCount() {
+        return scoringEngine.getTopCount();
+    }
+
+    /**
+     * Index of a location in the top list of the latest update, for example for weighted k nearest
+     * neighbour positioning.
+     * @param rank 0 for the best location
+     */
+    public int getTopIndex(int rank) {
+        return scoringEngine.getTopIndex(rank);
+    }
+
+    public float getTopScore(int rank) {
+        return scoringEngine.getTopScore(rank);
+    }
+
+    /**
+     * The engine that scores the selected locations, possibly on several threads.
+     */
+    public ScoringEngine getScoringEngine() {
+        return scoringEngine;
+    }
+
+    /**
+     * A scorer that keeps the scores of every location up to date as the observation changes.
+     * Use one per queue of scans with the updateScores overloads that take it.
+     */
+    public IncrementalScorer newIncrementalScorer() {
+        return new IncrementalScorer(store, totalWeighting);
+    }
+
+    /**
+     * @return true if the scorer was made by this instance and can be used with it
+     */
+    public boolean canUse(IncrementalScorer scorer) {
+        return scorer != null && scorer.isFor(store);
+    }
+
+    private static SpatialGrid buildLocationGrid(FingerprintStore store) {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < store.size(); i++) {
+            minX = Math.min(minX, store.getX(i));
+            minY = Math.min(minY, store.getY(i));
+            maxX = Math.max(maxX, store.getX(i));
+            maxY = Math.max(maxY, store.getY(i));
+        }
+        SpatialGrid grid = new SpatialGrid(SpatialGrid.suggestCellSize(maxX - minX, maxY - minY, store.size(), 4));
+        for (int i = 0; i < store.size(); i++) {
+            grid.add(i, store.getLevel(i), store.getX(i), store.getY(i));
+        }
+        grid.build();
+        return grid;
+    }
+
+    /**
+     * Restricts scoring to the locations that share a strong mac with the observation.  Off by
+     * default.  Unlike top-k scoring this is lossy: the best location may not be a candidate.
+     * @param strongestMacs number of the strongest observed macs used to find candidates, 0 scores every location
+     * @param minP the p a mac must have at a location for that location to be a candidate
+     * @param minCandidates if fewer candidates than this are found every location is scored instead
+     */
+    public void setCandidatePruning(int strongestMacs, float minP, int minCandidates) {
+        candidateMinP = minP;
+        this.minCandidates = minCandidates;
+        setCandidatePruning(strongestMacs);
+    }
+
+    /**
+     * Turns candidate pruning on or off, keeping the p and the fewest candidates already set.
+     * @param strongestMacs number of the strongest observed macs used to find candidates, 0 scores every location
+     */
+    public void setCandidatePruning(int strongestMacs) {
+        candidateMacCount = strongestMacs;
+        strongest = new int[Math.max(0, strongestMacs)];
     }
 
     public List<Float> getXList(int level) {
         List<Float> xList = new ArrayList<>();
-        for (ReadingSummary summary : summaryList) {
-            if (summary.level==level)
-                xList.add(summary.x);
+        for (int i = 0; i < store.size(); i++) {
+            if (store.getLevel(i)==level)
+                xList.add(store.getX(i));
         }
         return xList;
     }
 
     public List<Float> getYList(int level) {
         List<Float> yList = new ArrayList<>();
-        for (ReadingSummary summary : summaryList) {
-            if (summary.level==level)
-                yList.add(summary.y);
+        for (int i = 0; i < store.size(); i++) {
+            if (store.getLevel(i)==level)
+                yList.add(store.getY(i));
         }
         return yList;
     }
@@ -94,13 +224,70 @@ public class WifiFingerprintInfo {
      */
     public void updateScores(HashMap<Integer, List<Float>> testSummary, double elapsedTimeMS, float marginForErrorMS)
     {
+        mapObservation.set(testSummary);
+        updateScores(mapObservation, elapsedTimeMS, marginForErrorMS);
+    }
+
+    /**
+     * Same as {@link #updateScores(HashMap, double, float)} for an observation that is already summarised.
+     * Only the locations in reach of the current location are visited, found through the location grid
+     * on the current level and through the nearest connection point on the other levels.
+     */
+    public void updateScores(ObservationSummary testSummary, double elapsedTimeMS, float marginForErrorMS)
+    {
+        updateScores(testSummary, null, elapsedTimeMS, marginForErrorMS);
+    }
+
+    /**
+     * Same as {@link #updateScores(ObservationSummary, double, float)} but the scores are read from
+     * an incremental scorer, which only has to look at the macs that changed since its last update.
+     * @param incremental made by {@link #newIncrementalScorer()}, or null to compare every location in full
+     */
+    public void updateScores(ObservationSummary testSummary, IncrementalScorer incremental, double elapsedTimeMS, float marginForErrorMS)
+    {
+        if (distanceFromIndex < 0) {
+            // No current location yet, everything is in reach
+            updateScores(testSummary, incremental);
+            return;
+        }
+        testSummary.markKnown(store);
+        if (incremental != null) incremental.update(testSummary);
+        clearScores();
         double range = (elapsedTimeMS + marginForErrorMS)/1000;
-        for (ReadingSummary summary : summaryList) {
-            if (summary.timeToCurrent<=range) {
-                summary.scoreToLatest = getScore(summary.stats, testSummary);
-            } else
-            {
-                summary.scoreToLatest = UNSCORED;
+        boolean pruned = collectCandidates(testSummary);
+        float rangePx = (float)(range * walkingPace * pxPerM);
+
+        int levelFrom = getLevelAt(distanceFromIndex);
+        float xFrom = getXAt(distanceFromIndex);
+        float yFrom = getYAt(distanceFromIndex);
+        selectInRange(range, pruned, levelFrom, xFrom, yFrom, rangePx);
+
+        if (nearestConnectionIndex >= 0) {
+            float dx0 = connectionPoints.getX(nearestConnectionIndex, levelFrom) - xFrom;
+            float dy0 = connectionPoints.getY(nearestConnectionIndex, levelFrom) - yFrom;
+            float remainingPx = rangePx - (float) Math.sqrt(dx0 * dx0 + dy0 * dy0) - pxPerM * 10.0f;
+            if (remainingPx >= 0) {
+                for (int levelTo : locationGrid.getLevels()) {
+                    if (levelTo == levelFrom) continue;
+                    selectInRange(range, pruned, levelTo,
+                            connectionPoints.getX(nearestConnectionIndex, levelTo),
+                            connectionPoints.getY(nearestConnectionIndex, levelTo), remainingPx);
+                }
+            }
+        }
+        scoreSelected(testSummary, incremental);
+    }
+
+    /**
+     * Selects the locations on one level around a point that can be reached within the range.
+     */
+    private void selectInRange(double range, boolean pruned, int level, float x, float y, float radiusPx) {
+        int found = locationGrid.queryRadius(level, x, y, radiusPx);
+        for (int r = 0; r < found; r++) {
+            int i = locationGrid.getResult(r);
+            if (pruned && candidateStamp[i] != stamp) continue;
+            if (getTimeToCurrent(i)<=range) {
+                select(i);
             }
         }
     }
@@ -110,9 +297,107 @@ public class WifiFingerprintInfo {
      * @param testSummary Map of macId int with a list of [p, mu, sigma] for the observation
      */
     public void updateScores(HashMap<Integer, List<Float>> testSummary) {
-        for (ReadingSummary summary : summaryList) {
-            summary.scoreToLatest = getScore(summary.stats, testSummary);
+        mapObservation.set(testSummary);
+        updateScores(mapObservation);
+    }
+
+    /**
+     * Update all scores
+     * @param testSummary the wifi details of the observation
+     */
+    public void updateScores(ObservationSummary testSummary) {
+        updateScores(testSummary, (IncrementalScorer)null);
+    }
+
+    /**
+     * Update all scores, reading them from an incremental scorer
+     * @param incremental made by {@link #newIncrementalScorer()}, or null to compare every location in full
+     */
+    public void updateScores(ObservationSummary testSummary, IncrementalScorer incremental) {
+        testSummary.markKnown(store);
+        if (incremental != null) incremental.update(testSummary);
+        clearScores();
+        if (collectCandidates(testSummary)) {
+            for (int c = 0; c < candidateCount; c++) {
+                select(candidates[c]);
+            }
+        } else {
+            for (int i = 0; i < store.size(); i++) {
+                select(i);
+            }
         }
+        scoreSelected(testSummary, incremental);
+    }
+
+    /**
+     * Adds a location to the ones that will be scored by {@link #scoreSelected(ObservationSummary, IncrementalScorer)}
+     */
+    private void select(int index) {
+        scored[scoredCount++] = index;
+        scoringWork += store.getRowEnd(index) - store.getRowStart(index);
+    }
+
+    private void scoreSelected(ObservationSummary testSummary, IncrementalScorer incremental) {
+        scoringObservation = testSummary;
+        scoringIncremental = incremental;
+        // an incremental score is a single lookup
+        scoringWork = incremental != null ? scoredCount : scoringWork + (long)scoredCount * testSummary.size();
+        bestScoreIndex = scoringEngine.score(scored, scoredCount, scoringWork, scoreToLatest, locationScorer);
+        scoringObservation = null;
+        scoringIncremental = null;
+    }
+
+    /**
+     * Returns the locations scored in the previous update to UNSCORED.
+     */
+    private void clearScores() {
+        for (int i = 0; i < scoredCount; i++) {
+            scoreToLatest[scored[i]] = UNSCORED;
+        }
+        scoredCount = 0;
+        scoringWork = 0;
+        bestScoreIndex = -1;
+    }
+
+    /**
+     * Uses the inverted index to find the locations at which one of the strongest observed macs
+     * has a high p.  Call {@link ObservationSummary#markKnown(FingerprintStore)} first.
+     * @return false if pruning is off or too few candidates were found, in which case every location should be scored.
+     */
+    private boolean collectCandidates(ObservationSummary obs) {
+        candidateCount = 0;
+        if (candidateMacCount <= 0) return false;
+
+        // the strongest observed macs that are part of the fingerprints, strongest first
+        int nStrongest = 0;
+        for (int o = 0; o < obs.size(); o++) {
+            if (!obs.isKnown(o)) continue;
+            int pos = nStrongest < strongest.length ? nStrongest++ : strongest.length;
+            while (pos > 0 && obs.getMu(strongest[pos - 1]) < obs.getMu(o)) {
+                if (pos < strongest.length) strongest[pos] = strongest[pos - 1];
+                pos--;
+            }
+            if (pos < strongest.length) strongest[pos] = o;
+        }
+
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(candidateStamp, 0);
+            stamp = 0;
+        }
+        stamp++;
+        for (int s = 0; s < nStrongest; s++) {
+            int column = obs.getColumn(strongest[s]);
+            for (int i = store.getColumnStart(column); i < store.getColumnEnd(column); i++) {
+                int entry = store.getColumnEntry(i);
+                if (store.getP(entry) < candidateMinP) break;
+                int location = store.getLocationOfEntry(entry);
+                if (candidateStamp[location] != stamp) {
+                    candidateStamp[location] = stamp;
+                    candidates[candidateCount++] = location;
+                }
+            }
+        }
+        return candidateCount >= minCandidates;
     }
 
     public void setCurrent(int index)
@@ -121,30 +406,36 @@ public class WifiFingerprintInfo {
         nearestConnectionIndex = connectionPoints.IndexOfClosest(getLevelAt(index), getXAt(index), getYAt(index));
     }
 
-    /** Finds the distance between the point at the current index and all other points.
+    /** Sets the point that distances are measured from.
+     * The distances themselves are only worked out for the locations that are visited.
      */
     public void updateDistances(int index, float pxPerM, float walkingPace)
     {
-        float xFrom = getXAt(index);
-        float yFrom = getYAt(index);
-        int levelFrom = getLevelAt(index);
-        for (ReadingSummary summary : summaryList){
-            float xTo = summary.x;
-            float yTo = summary.y;
-            int levelTo = summary.level;
-            if (levelFrom == levelTo) {
-                summary.distToCurrent = Math.sqrt((xFrom - xTo) * (xFrom - xTo) + (yFrom - yTo) * (yFrom - yTo));
-                summary.timeToCurrent = (summary.distToCurrent/pxPerM) / walkingPace;
-            } else {
-                float dx0 = connectionPoints.getX(nearestConnectionIndex, levelFrom) - xFrom;
-                float dy0 = connectionPoints.getY(nearestConnectionIndex, levelFrom) - yFrom;
-                float dx1 = connectionPoints.getX(nearestConnectionIndex, levelTo) - xTo;
-                float dy1 = connectionPoints.getY(nearestConnectionIndex, levelTo) - yTo;
-                summary.distToCurrent = Math.sqrt(dx0 * dx0 + dy0 * dy0) + Math.sqrt(dx1 * dx1 + dy1 * dy1) + pxPerM*10.0;
-                summary.timeToCurrent = (summary.distToCurrent/pxPerM) / walkingPace;
-            }
-        }
+        distanceFromIndex = index;
+        this.pxPerM = pxPerM;
+        this.walkingPace = walkingPace;
+    }
 
+    /**
+     * Walking distance in px from the point set by {@link #updateDistances(int, float, float)},
+     * going through the nearest connection point when the levels differ.
+     */
+    private double getDistToCurrent(int index) {
+        float xFrom = getXAt(distanceFromIndex);
+        float yFrom = getYAt(distanceFromIndex);
+        int levelFrom = getLevelAt(distanceFromIndex);
+        float xTo = store.getX(index);
+        float yTo = store.getY(index);
+        int levelTo = store.getLevel(index);
+        if (levelFrom == levelTo) {
+            return Math.sqrt((xFrom - xTo) * (xFrom - xTo) + (yFrom - yTo) * (yFrom - yTo));
+        } else {
+            float dx0 = connectionPoints.getX(nearestConnectionIndex, levelFrom) - xFrom;
+            float dy0 = connectionPoints.getY(nearestConnectionIndex, levelFrom) - yFrom;
+            float dx1 = connectionPoints.getX(nearestConnectionIndex, levelTo) - xTo;
+            float dy1 = connectionPoints.getY(nearestConnectionIndex, levelTo) - yTo;
+            return Math.sqrt(dx0 * dx0 + dy0 * dy0) + Math.sqrt(dx1 * dx1 + dy1 * dy1) + pxPerM*10.0;
+        }
     }
 
     /**
@@ -160,9 +451,9 @@ public class WifiFingerprintInfo {
         List<String> scores = new ArrayList<>();
         float maxScore = -1e9f;
         float score;
-        for (ReadingSummary summary : summaryList) {
-            if (summary.level==levelID) {
-                score = summary.scoreToLatest;
+        for (int i = 0; i < store.size(); i++) {
+            if (store.getLevel(i)==levelID) {
+                score = scoreToLatest[i];
                 if (score>maxScore){
                     maxScore = score;
                 }
@@ -181,88 +472,123 @@ public class WifiFingerprintInfo {
 
     /**
      * Measures how different the two observations are.
+     * Both the stored location and the observation are sorted by mac id so they are walked together.
+     * Call {@link ObservationSummary#markKnown(FingerprintStore)} on the observation first.
      *
-     * @param recordedSummary The wifi details of a recorded observation
+     * Every term only lowers the score and the divisor is known up front, so the score so far is
+     * an upper bound.  Once it drops below the cut off the location is abandoned.
+     *
+     * @param location index of the recorded location in the store
      * @param obsSummary The wifi details of a current observation
-     * @return a value representing how close the two observations are.  Zero is the maximum
+     * @param cutOff the score below which the exact value is not needed
+     * @return a value representing how close the two observations are.  Zero is the maximum.
+     *         If the location was abandoned, a value below the cut off and no higher than
+     *         UNSCORED, so the partial score is never shown as a real one.
      */
-    private float getScore(Map<Integer, List<Float>> recordedSummary, Map<Integer, List<Float>> obsSummary) {
+    private float getScore(int location, ObservationSummary obsSummary, float cutOff) {
         float score = 0;
-        float w1 = 1;
-        float w2 = 2;
-        float w3 = 2;
-        float tol = 10;
-        float mult = 20;
-        float pCutOff = 0.9f; // minimum summary probability before we penalize if the mac is missing from the observation
-        float totalWeighting = 0;
-        for (Map.Entry<Integer, List<Float>> recordedEntry : recordedSummary.entrySet()) {
-            float recordedMean = recordedEntry.getValue().get(1);
-            float p = recordedEntry.getValue().get(0);
-            if (p>=pCutOff) {
-                totalWeighting += w2 * p;
-            }
-            if (obsSummary.containsKey(recordedEntry.getKey())) {
-                // in fingerprint and in obs
-                float obsMean = obsSummary.get(recordedEntry.getKey()).get(1);
-                float d = Math.abs(recordedMean - obsMean);
-                d = Math.max(0, d-tol);
-                score -= w1 * d * p;
-            } else {
-                // in fingerprint but not in obs
-                if ((recordedMean > -90) && (p>=pCutOff)) {
-                    float d = Math.abs(-90 - recordedMean);
-                    d = Math.max(0, d-tol);
-                    score -= w2 * p * d;
+        float weighting = totalWeighting[location];
+        // the score is abandoned once the penalty passes this floor
+        float scoreFloor = weighting > 0 ? cutOff * weighting / MULT : Float.NEGATIVE_INFINITY;
+        int entry = store.getRowStart(location);
+        int end = store.getRowEnd(location);
+        int obsIndex = 0;
+        int obsSize = obsSummary.size();
+        while (entry < end || obsIndex < obsSize) {
+            int recordedMac = entry < end ? store.getMacId(entry) : Integer.MAX_VALUE;
+            int obsMac = obsIndex < obsSize ? obsSummary.getMacId(obsIndex) : Integer.MAX_VALUE;
+            if (recordedMac <= obsMac) {
+                float recordedMean = store.getMu(entry);
+                float p = store.getP(entry);
+                if (recordedMac == obsMac) {
+                    // in fingerprint and in obs
+                    float obsMean = obsSummary.getMu(obsIndex);
+                    float d = Math.abs(recordedMean - obsMean);
+                    d = Math.max(0, d-TOL);
+                    score -= W1 * d * p;
+                    obsIndex++;
+                } else {
+                    // in fingerprint but not in obs
+                    if ((recordedMean > -90) && (p>=P_CUT_OFF)) {
+                        float d = Math.abs(-90 - recordedMean);
+                        d = Math.max(0, d-TOL);
+                        score -= W2 * p * d;
+                    }
                 }
-            }
-        }
-        for (Map.Entry<Integer, List<Float>> obsEntry : obsSummary.entrySet()) {
-            if (!recordedSummary.containsKey(obsEntry.getKey()) && validMacs.contains(obsEntry.getKey()) ){
-                //in obs but not fingerprint
-                float obsP = obsEntry.getValue().get(0);
-                float obsMean = obsEntry.getValue().get(1);
-                if (obsMean > -90) {
-                    float d = Math.abs(-90 - obsMean);
-                    d = Math.max(0, d-tol);
-                    score -= w3 * obsP * d;
+                entry++;
+            } else {
+                if (obsSummary.isKnown(obsIndex)) {
+                    //in obs but not fingerprint
+                    float obsP = obsSummary.getP(obsIndex);
+                    float obsMean = obsSummary.getMu(obsIndex);
+                    if (obsMean > -90) {
+                        float d = Math.abs(-90 - obsMean);
+                        d = Math.max(0, d-TOL);
+                        score -= W3 * obsP * d;
+                    }
                 }
+                obsIndex++;
             }
+            if (score < scoreFloor) return Math.min(UNSCORED, MULT*score/weighting);
         }
-        return mult*score/totalWeighting;
+        return MULT*score/weighting;
+
+    }
 
+    /**
+     * @return the number of locations compared with the observation in the latest update
+     */
+    public int getScoredCount() {
+        return scoredCount;
     }
 
+    /**
+     * @param i from 0 to {@link #getScoredCount()}
+     * @return the index of a location compared with the observation in the latest update
+     */
+    public int getScoredIndex(int i) {
+        return scored[i];
+    }
+
+    /**
+     * The best location of the latest update, found while scoring.
+     * When nothing could be scored the first location is returned, as all are equally UNSCORED.
+     */
     public int getBestScoreIndex() {
-        float maxScore = -1e9f;
-        int maxIndex = -1;
-        for (int i = 0; i<summaryList.size(); i++) {
-            ReadingSummary locationSummary = summaryList.get(i);
-            if (locationSummary.scoreToLatest >maxScore){
-                maxIndex = i;
-                maxScore = locationSummary.scoreToLatest;
-            }
-        }
-        return maxIndex;
+        if (bestScoreIndex >= 0) return bestScoreIndex;
+        return store.size() > 0 ? 0 : -1;
     }
 
+    /**
+     * @return the score of the location in the latest update, UNSCORED or below if it wasn't
+     * scored or was abandoned for being out of the running
+     */
     public float getScoreAt(int index) {
-        return summaryList.get(index).scoreToLatest;
+        return scoreToLatest[index];
     }
 
     public float getXAt(int index) {
-        return summaryList.get(index).x;
+        return store.getX(index);
     }
 
     public float getYAt(int index) {
-        return summaryList.get(index).y;
+        return store.getY(index);
     }
 
     public int getLevelAt(int index) {
-        return summaryList.get(index).level;
+        return store.getLevel(index);
     }
 
+    /**
+     * Time in s to walk to a location from the point set by {@link #updateDistances(int, float, float)}
+     */
     public double getTimeToCurrent(int index) {
-        return summaryList.get(index).timeToCurrent;
+        if (distanceFromIndex < 0) return 0;
+        return (getDistToCurrent(index)/pxPerM) / walkingPace;
+    }
+
+    public int size() {
+        return store.size();
     }
 
 
@@ -276,30 +602,4 @@ public class WifiFingerprintInfo {
 
         public ScoresAndBest(){}
     }
-
-
-    /**
-     * The average of readings at a single point.
-     */
-    public class ReadingSummary{
-        public float x;
-        public float y;
-        public int level;
-        public Map<Integer, List<Float>> stats;
-        public float scoreToLatest;
-        public double distToCurrent;
-        public double timeToCurrent;
-
-        public ReadingSummary(float x, float y, int level)
-        {
-            this.x = x;
-            this.y = y;
-            this.level = level;
-            stats = new HashMap<>();
-        }
-
-        public void add(int id, float p, float mu, float sigma) {
-            stats.put(id, Arrays.asList(p, mu, sigma));
-        }
-    }
 }
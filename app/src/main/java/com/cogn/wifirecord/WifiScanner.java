@@ -28,4 +28,9 @@ public class WifiScanner implements ProvidesWifiScan {
         return result;
 
     }
+
+    @Override
+    public Clock getClock() {
+        return Clock.MONOTONIC;
+    }
 }
@@ -9,13 +9,10 @@ import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 
@@ -36,19 +33,44 @@ public class WifiStrengthRecorder {
     private long scanBase = 0;
     private RecordActivity callingActivity;
 
+    private Clock clock;
+    private Clock dateClock;
     private boolean isRecording = false;
+    private boolean binaryRecording;
+    private boolean compressRecording;
 
 
     public WifiStrengthRecorder(String location, WifiManager wifiManager, RecordActivity recordActivity)
     {
+        this(location, wifiManager, recordActivity, Clock.MONOTONIC, Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock times the scans and dates the recording, such as a virtual clock in tests
+     */
+    public WifiStrengthRecorder(String location, WifiManager wifiManager, RecordActivity recordActivity, Clock clock)
+    {
+        this(location, wifiManager, recordActivity, clock, clock);
+    }
+
+    /**
+     * @param clock times the scans, their offsets are from it
+     * @param dateClock dates the recording
+     */
+    public WifiStrengthRecorder(String location, WifiManager wifiManager, RecordActivity recordActivity, Clock clock, Clock dateClock)
+    {
+        this.clock = clock;
+        this.dateClock = dateClock;
         callingActivity = recordActivity;
         this.wifiManager = wifiManager;
 
         String deviceName = PreferenceManager.getDefaultSharedPreferences(recordActivity).getString(recordActivity.getString(R.string.key_general_device_name), "");
-        String readingFilename = location.toLowerCase().trim() + "_" + callingActivity.sessionStartTime + "_" + deviceName + "_readings.txt";
+        binaryRecording = PreferenceManager.getDefaultSharedPreferences(recordActivity).getBoolean(recordActivity.getString(R.string.key_general_binary_recordings), false);
+        compressRecording = PreferenceManager.getDefaultSharedPreferences(recordActivity).getBoolean(recordActivity.getString(R.string.key_general_compress_recordings), false);
+        String readingFilename = location.toLowerCase().trim() + "_" + callingActivity.sessionStartTime + "_" + deviceName + "_readings" + DataReadWrite.recordingExtension(binaryRecording);
         String macsFilename = location.toLowerCase().trim() + "_" + callingActivity.sessionStartTime + "_" + deviceName + "_macs.txt";
 
-        macLookup = new MacLookup(location, macsFilename);
+        macLookup = new MacLookup(location, macsFilename, clock);
         File folder = new File(Environment.getExternalStorageDirectory(), "WifiRecord/"+location);
         if (!folder.exists()) {
             folder.mkdirs();
@@ -63,10 +85,9 @@ public class WifiStrengthRecorder {
     private void MakeFile(){
         if (!file.exists()) {
             try {
-                file.createNewFile();
-                BufferedWriter filewriter = new BufferedWriter(new FileWriter(file, true));
-                filewriter.write("DEVICE," + android.os.Build.BRAND + "," + android.os.Build.MODEL + "\n");
-                filewriter.close();
+                RecordingOutput out = RecordingOutput.open(file, binaryRecording, compressRecording);
+                out.write(ScanRecord.textLine("DEVICE," + android.os.Build.BRAND + "," + android.os.Build.MODEL));
+                out.close();
 
             } catch (IOException ioe)
             {
@@ -124,16 +145,13 @@ public class WifiStrengthRecorder {
      */
     public void MakeRecording(float x, float y, int level, int N, int delay) {
         MakeFile();
-        Calendar c = Calendar.getInstance();
         SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        Date startTime = c.getTime();
-        startTimeMillis = c.getTimeInMillis();
-        String formattedDate = df.format(startTime);
-        Integer macID;
+        startTimeMillis = clock.millis();
+        String formattedDate = df.format(new Date(dateClock.millis()));
         try {
-            BufferedWriter filewriter = new BufferedWriter(new FileWriter(file, true));
+            RecordingOutput out = RecordingOutput.open(file, binaryRecording, compressRecording);
             Log.d(TAG, "NEW" + "," + String.format("%.1f", x) + "," + String.format("%.1f", y) + "," + level + "," + formattedDate + "\n");
-            filewriter.write("NEW" + "," + String.format("%.1f", x) + "," + String.format("%.1f", y) + "," + level + "," + formattedDate + "\n");
+            out.write(ScanRecord.textLine("NEW" + "," + String.format("%.1f", x) + "," + String.format("%.1f", y) + "," + level + "," + formattedDate));
 
             int counter = 0;
             long offset;
@@ -143,29 +161,37 @@ public class WifiStrengthRecorder {
                 UpdateProgressOnUIThread("" + (counter+1) + " of " + N);
                 scanned = wifiManager.getScanResults();
                 if (HaveChanged(oldScanned, scanned)) {
-                    offset = Calendar.getInstance().getTimeInMillis() - startTimeMillis;
+                    offset = clock.millis() - startTimeMillis;
                     Log.d(TAG, "OFFSET," + offset+"\n");
-                    filewriter.write("OFFSET," + offset+"\n");
                     oldScanned = new ArrayList<Integer>();
-                    for (ScanResult scan : scanned) {
-                        macID = macLookup.getId(scan.BSSID, scan.SSID);
-                        Log.d(TAG, macID + "," + scan.level+"\n");
-                        filewriter.write(macID + "," + scan.level+"\n");
+                    int[] macIDs = new int[scanned.size()];
+                    int[] levels = new int[scanned.size()];
+                    for (int i = 0; i < scanned.size(); i++) {
+                        ScanResult scan = scanned.get(i);
+                        macIDs[i] = macLookup.getId(scan.BSSID, scan.SSID);
+                        levels[i] = scan.level;
+                        Log.d(TAG, macIDs[i] + "," + scan.level+"\n");
                         oldScanned.add(scan.level);
                     }
+                    macLookup.endBatch();
+                    out.write(new ScanRecord(offset, macIDs, levels));
                     counter++;
                 }
-                try { Thread.sleep(100); }
+                try { clock.sleep(100); }
                 catch (InterruptedException e) {
                     e.printStackTrace();
                 }
                 wifiManager.startScan();
             }
             SetScanFinished();
-            filewriter.close();
+            // the macs go out before the readings that refer to them
+            macLookup.flush();
+            out.close();
         } catch (IOException e) {
             Log.e(TAG, "could not make file", e);
             return;
+        } finally {
+            macLookup.close();
         }
     }
 
@@ -184,22 +210,23 @@ public class WifiStrengthRecorder {
         @Override
         public void onReceive(Context context, Intent intent) {
             List<ScanResult> scanned = wifiManager.getScanResults();
-            long offset = Calendar.getInstance().getTimeInMillis() - startTimeMillis;
-            Integer macID;
-
-            BufferedWriter filewriter = null;
+            long offset = clock.millis() - startTimeMillis;
             try {
-                filewriter = new BufferedWriter(new FileWriter(file, true));
+                RecordingOutput out = RecordingOutput.open(file, binaryRecording, compressRecording);
                 Log.d(TAG, "OFFSET," + offset+"\n");
-                filewriter.write("OFFSET," + offset+"\n");
-                for (ScanResult scan : scanned) {
+                int[] macIDs = new int[scanned.size()];
+                int[] levels = new int[scanned.size()];
+                for (int i = 0; i < scanned.size(); i++) {
+                    ScanResult scan = scanned.get(i);
                     if (scanBase == 0) scanBase = scan.timestamp;
-                    macID = macLookup.getId(scan.BSSID, scan.SSID);
-                    Log.d(TAG, macID + "," + scan.level+"\n");
+                    macIDs[i] = macLookup.getId(scan.BSSID, scan.SSID);
+                    levels[i] = scan.level;
+                    Log.d(TAG, macIDs[i] + "," + scan.level+"\n");
                     Log.d(TAG, "age of scan" + (scan.timestamp - scanBase));
-                    filewriter.write(macID + "," + scan.level+"\n");
                 }
-                filewriter.close();
+                macLookup.endBatch();
+                out.write(new ScanRecord(offset, macIDs, levels));
+                out.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
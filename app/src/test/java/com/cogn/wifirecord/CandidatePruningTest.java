@@ -0,0 +1,145 @@
+package com.cogn.wifirecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * With candidate pruning on, the locations scored must be the ones where one of the strongest
+ * observed macs has a high p, found here by checking every location.
+ */
+public class CandidatePruningTest {
+    private FingerprintStore store;
+    private ConnectionPoints connectionPoints;
+
+    @Before
+    public void setUp() throws IOException {
+        store = GreenstoneData.load();
+        connectionPoints = GreenstoneData.connectionPoints();
+    }
+
+    /**
+     * The locations where one of the k strongest known macs of the observation has at least minP.
+     */
+    private TreeSet<Integer> bruteForceCandidates(final ObservationSummary obs, int k, float minP) {
+        obs.markKnown(store);
+        List<Integer> known = new ArrayList<>();
+        for (int o = 0; o < obs.size(); o++) {
+            if (obs.isKnown(o)) known.add(o);
+        }
+        // strongest first, ties to the lower mac id
+        Collections.sort(known, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byMu = Float.compare(obs.getMu(b), obs.getMu(a));
+                return byMu != 0 ? byMu : Integer.compare(a, b);
+            }
+        });
+        TreeSet<Integer> candidates = new TreeSet<>();
+        for (int s = 0; s < Math.min(k, known.size()); s++) {
+            int macId = obs.getMacId(known.get(s));
+            for (int location = 0; location < store.size(); location++) {
+                for (int entry = store.getRowStart(location); entry < store.getRowEnd(location); entry++) {
+                    if (store.getMacId(entry) == macId && store.getP(entry) >= minP) candidates.add(location);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static TreeSet<Integer> scored(WifiFingerprintInfo info) {
+        TreeSet<Integer> scored = new TreeSet<>();
+        for (int i = 0; i < info.getScoredCount(); i++) {
+            assertTrue("scored twice", scored.add(info.getScoredIndex(i)));
+        }
+        return scored;
+    }
+
+    private TreeSet<Integer> everyLocation() {
+        TreeSet<Integer> all = new TreeSet<>();
+        for (int location = 0; location < store.size(); location++) all.add(location);
+        return all;
+    }
+
+    @Test
+    public void candidatesMatchBruteForce() {
+        WifiFingerprintInfo info = new WifiFingerprintInfo(connectionPoints, store);
+        Random random = new Random(6);
+        int pruned = 0;
+        for (int k : new int[]{1, 3, 5}) {
+            for (float minP : new float[]{0.3f, 0.5f, 0.9f}) {
+                info.setCandidatePruning(k, minP, 1);
+                for (int round = 0; round < 60; round++) {
+                    ObservationSummary obs = GreenstoneData.noisyObservation(store, random.nextInt(store.size()), random);
+                    TreeSet<Integer> expected = bruteForceCandidates(obs, k, minP);
+                    info.updateScores(obs);
+                    if (expected.isEmpty()) {
+                        assertEquals(everyLocation(), scored(info));
+                    } else {
+                        assertEquals("top " + k + " macs, p >= " + minP, expected, scored(info));
+                        if (expected.size() < store.size()) pruned++;
+                    }
+                }
+            }
+        }
+        // the pruning really left locations out
+        assertTrue(pruned > 100);
+    }
+
+    @Test
+    public void tooFewCandidatesScoresEverything() {
+        WifiFingerprintInfo info = new WifiFingerprintInfo(connectionPoints, store);
+        Random random = new Random(7);
+        for (int round = 0; round < 100; round++) {
+            ObservationSummary obs = GreenstoneData.noisyObservation(store, random.nextInt(store.size()), random);
+            TreeSet<Integer> expected = bruteForceCandidates(obs, 2, 0.9f);
+            // one short of the candidates found, then exactly as many
+            info.setCandidatePruning(2, 0.9f, expected.size() + 1);
+            info.updateScores(obs);
+            assertEquals(everyLocation(), scored(info));
+            info.setCandidatePruning(2, 0.9f, Math.max(1, expected.size()));
+            info.updateScores(obs);
+            assertEquals(expected.isEmpty() ? everyLocation() : expected, scored(info));
+        }
+    }
+
+    @Test
+    public void inRangeOnlySelectsCandidates() {
+        WifiFingerprintInfo info = new WifiFingerprintInfo(connectionPoints, store);
+        info.setCandidatePruning(3, 0.5f, 1);
+        WifiFingerprintInfo full = new WifiFingerprintInfo(connectionPoints, store);
+        Random random = new Random(8);
+        int selected = 0;
+        int leftOut = 0;
+        for (int step = 0; step < 300; step++) {
+            int current = random.nextInt(store.size());
+            ObservationSummary obs = GreenstoneData.noisyObservation(store, random.nextInt(store.size()), random);
+            TreeSet<Integer> candidates = bruteForceCandidates(obs, 3, 0.5f);
+            for (WifiFingerprintInfo each : new WifiFingerprintInfo[]{info, full}) {
+                each.setCurrent(current);
+                each.updateDistances(current, 10, 2);
+                each.updateScores(obs, 5000, 1000);
+            }
+            TreeSet<Integer> expected = scored(full);
+            if (!candidates.isEmpty()) {
+                leftOut += expected.size();
+                expected.retainAll(candidates);
+                leftOut -= expected.size();
+            }
+            assertEquals("step " + step, expected, scored(info));
+            selected += expected.size();
+        }
+        assertTrue(selected > 0);
+        assertTrue(leftOut > 0);
+    }
+}
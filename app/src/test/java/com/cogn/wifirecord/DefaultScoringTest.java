@@ -0,0 +1,66 @@
+package com.cogn.wifirecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Scoring with the default settings must pick the same locations as scoring every location in
+ * full, on observations made from the greenstone fingerprints.
+ */
+public class DefaultScoringTest {
+    private FingerprintStore store;
+    private ConnectionPoints connectionPoints;
+
+    @Before
+    public void setUp() throws IOException {
+        store = GreenstoneData.load();
+        connectionPoints = GreenstoneData.connectionPoints();
+    }
+
+    @Test
+    public void defaultSettingsMatchFullScan() {
+        WifiFingerprintInfo defaults = new WifiFingerprintInfo(connectionPoints, store);
+        WifiFingerprintInfo full = new WifiFingerprintInfo(connectionPoints, store);
+        full.setTopK(0);
+        full.setCandidatePruning(0, 0, 0);
+        Random random = new Random(2);
+        for (int round = 0; round < 3; round++) {
+            for (int location = 0; location < store.size(); location++) {
+                ObservationSummary obs = GreenstoneData.noisyObservation(store, location, random);
+                defaults.updateScores(obs);
+                full.updateScores(obs);
+                int best = full.getBestScoreIndex();
+                assertEquals("observation from location " + location, best, defaults.getBestScoreIndex());
+                assertEquals(full.getScoreAt(best), defaults.getScoreAt(best), 0);
+            }
+        }
+    }
+
+    @Test
+    public void defaultSettingsMatchFullScanInRange() {
+        WifiFingerprintInfo defaults = new WifiFingerprintInfo(connectionPoints, store);
+        WifiFingerprintInfo full = new WifiFingerprintInfo(connectionPoints, store);
+        full.setTopK(0);
+        full.setCandidatePruning(0, 0, 0);
+        Random random = new Random(3);
+        int current = 0;
+        for (int step = 0; step < 500; step++) {
+            int location = random.nextInt(store.size());
+            ObservationSummary obs = GreenstoneData.noisyObservation(store, location, random);
+            for (WifiFingerprintInfo info : new WifiFingerprintInfo[]{defaults, full}) {
+                info.setCurrent(current);
+                info.updateDistances(current, 10, 2);
+                info.updateScores(obs, 5000, 1000);
+            }
+            int best = full.getBestScoreIndex();
+            assertEquals(best, defaults.getBestScoreIndex());
+            assertEquals(full.getScoreAt(best), defaults.getScoreAt(best), 0);
+            current = best;
+        }
+    }
+}
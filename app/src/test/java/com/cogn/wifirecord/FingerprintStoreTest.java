@@ -0,0 +1,103 @@
+package com.cogn.wifirecord;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * A store written to a compiled file and mapped back must have the same columns as the store
+ * it was written from.
+ */
+public class FingerprintStoreTest {
+    private static final long SOURCE_KEY = 0x1234567890abcdefL;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void assertSameColumns(FingerprintStore expected, FingerprintStore actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getEntryCount(), actual.getEntryCount());
+        for (int location = 0; location < expected.size(); location++) {
+            assertEquals(expected.getX(location), actual.getX(location), 0);
+            assertEquals(expected.getY(location), actual.getY(location), 0);
+            assertEquals(expected.getLevel(location), actual.getLevel(location));
+            assertEquals(expected.getRowStart(location), actual.getRowStart(location));
+            assertEquals(expected.getRowEnd(location), actual.getRowEnd(location));
+        }
+        for (int entry = 0; entry < expected.getEntryCount(); entry++) {
+            assertEquals(expected.getMacId(entry), actual.getMacId(entry));
+            assertEquals(expected.getP(entry), actual.getP(entry), 0);
+            assertEquals(expected.getMu(entry), actual.getMu(entry), 0);
+            assertEquals(expected.getSigma(entry), actual.getSigma(entry), 0);
+            assertEquals(expected.getLocationOfEntry(entry), actual.getLocationOfEntry(entry));
+            int column = expected.indexOfMac(expected.getMacId(entry));
+            assertEquals(column, actual.indexOfMac(actual.getMacId(entry)));
+            assertEquals(expected.getColumnStart(column), actual.getColumnStart(column));
+            assertEquals(expected.getColumnEnd(column), actual.getColumnEnd(column));
+        }
+        for (int position = 0; position < expected.getEntryCount(); position++) {
+            assertEquals(expected.getColumnEntry(position), actual.getColumnEntry(position));
+        }
+        for (int macId = -5; macId < 2000; macId++) {
+            assertEquals(expected.indexOfMac(macId), actual.indexOfMac(macId));
+        }
+    }
+
+    private FingerprintStore writeAndMap(FingerprintStore store) throws IOException {
+        File file = folder.newFile();
+        store.write(file, SOURCE_KEY);
+        FingerprintStore mapped = FingerprintStore.map(file, SOURCE_KEY);
+        assertNotNull(mapped);
+        return mapped;
+    }
+
+    @Test
+    public void greenstoneRoundTrip() throws IOException {
+        FingerprintStore store = GreenstoneData.load();
+        assertSameColumns(store, writeAndMap(store));
+    }
+
+    @Test
+    public void randomRoundTrip() throws IOException {
+        Random random = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            FingerprintStore store = new FingerprintStore();
+            int locations = random.nextInt(200);
+            for (int location = 0; location < locations; location++) {
+                store.addLocation(random.nextFloat() * 1000, random.nextFloat() * 1000, random.nextInt(3));
+                int readings = random.nextInt(30);
+                for (int reading = 0; reading < readings; reading++) {
+                    store.addReading(random.nextInt(300), random.nextFloat(), -30 - random.nextFloat() * 70,
+                            random.nextFloat() * 10);
+                }
+            }
+            store.finish();
+            assertSameColumns(store, writeAndMap(store));
+        }
+    }
+
+    @Test
+    public void staleOrDamagedFileIsNotMapped() throws IOException {
+        FingerprintStore store = GreenstoneData.load();
+        File file = folder.newFile();
+        store.write(file, SOURCE_KEY);
+        assertNull(FingerprintStore.map(file, SOURCE_KEY + 1));
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        try {
+            truncate.setLength(file.length() - 4);
+        } finally {
+            truncate.close();
+        }
+        assertNull(FingerprintStore.map(file, SOURCE_KEY));
+        assertNull(FingerprintStore.map(new File(folder.getRoot(), "missing"), SOURCE_KEY));
+    }
+}
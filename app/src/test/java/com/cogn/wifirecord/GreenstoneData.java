@@ -0,0 +1,47 @@
+package com.cogn.wifirecord;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * The greenstone fingerprints from the app's assets, and observations made from them, for the
+ * scoring tests.
+ */
+class GreenstoneData {
+    static final String SUMMARY = "src/main/assets/greenstone/greenstone_summary.txt";
+
+    private GreenstoneData() {}
+
+    static FingerprintStore load() throws IOException {
+        InputStream in = new FileInputStream(SUMMARY);
+        try {
+            return FingerprintStore.readSummary(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    static ConnectionPoints connectionPoints() {
+        ConnectionPoints connectionPoints = new ConnectionPoints();
+        connectionPoints.add(0, 530, 320, 1,570, 660);
+        connectionPoints.add(0, 1020, 425, 1,1100, 690);
+        return connectionPoints;
+    }
+
+    /**
+     * The fingerprint of a location with noise on every mean, some macs dropped and an unknown
+     * mac added, as a real scan would be.
+     */
+    static ObservationSummary noisyObservation(FingerprintStore store, int location, Random random) {
+        ObservationSummary obs = new ObservationSummary();
+        for (int entry = store.getRowStart(location); entry < store.getRowEnd(location); entry++) {
+            if (random.nextFloat() < 0.2f) continue;
+            obs.add(store.getMacId(entry), store.getP(entry),
+                    store.getMu(entry) + (float)random.nextGaussian() * 6, store.getSigma(entry));
+        }
+        obs.add(100000 + random.nextInt(100), 1.0f, -60 - random.nextInt(30), 0);
+        return obs;
+    }
+}
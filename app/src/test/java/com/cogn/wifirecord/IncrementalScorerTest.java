@@ -0,0 +1,115 @@
+package com.cogn.wifirecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The incremental scores must follow the full comparison over long runs of changing
+ * observations, past the point where the sums are rebuilt.
+ */
+public class IncrementalScorerTest {
+    // more updates than IncrementalScorer rebuilds after, so the rebuild is covered twice
+    private static final int UPDATES = 1200;
+
+    private FingerprintStore store;
+    private WifiFingerprintInfo full;
+    private List<Integer> knownMacs;
+
+    @Before
+    public void setUp() throws IOException {
+        store = GreenstoneData.load();
+        full = new WifiFingerprintInfo(GreenstoneData.connectionPoints(), store);
+        full.setTopK(0);
+        full.setCandidatePruning(0, 0, 0);
+        TreeSet<Integer> macs = new TreeSet<>();
+        for (int entry = 0; entry < store.getEntryCount(); entry++) {
+            macs.add(store.getMacId(entry));
+        }
+        knownMacs = new ArrayList<>(macs);
+    }
+
+    /**
+     * Changes, drops and adds a few macs, known and unknown, as the next scan would.
+     */
+    private void step(Map<Integer, float[]> macs, Random random) {
+        for (Integer mac : new ArrayList<>(macs.keySet())) {
+            float roll = random.nextFloat();
+            if (roll < 0.05f) {
+                macs.remove(mac);
+            } else if (roll < 0.3f) {
+                float[] values = macs.get(mac);
+                values[0] = random.nextFloat();
+                values[1] = -40 - random.nextInt(60);
+            }
+        }
+        int added = random.nextInt(4);
+        for (int i = 0; i < added; i++) {
+            int mac = random.nextInt(5) == 0 ? 100000 + random.nextInt(50) : knownMacs.get(random.nextInt(knownMacs.size()));
+            macs.put(mac, new float[]{random.nextFloat(), -40 - random.nextInt(60)});
+        }
+    }
+
+    private static ObservationSummary toSummary(Map<Integer, float[]> macs) {
+        ObservationSummary obs = new ObservationSummary();
+        for (Map.Entry<Integer, float[]> mac : macs.entrySet()) {
+            obs.add(mac.getKey(), mac.getValue()[0], mac.getValue()[1], 0);
+        }
+        return obs;
+    }
+
+    private void assertMatchesFull(IncrementalScorer scorer, String message) {
+        for (int location = 0; location < store.size(); location++) {
+            float expected = full.getScoreAt(location);
+            assertEquals(message + ", location " + location, expected, scorer.getScore(location),
+                    1e-3f * Math.max(1, Math.abs(expected)));
+        }
+    }
+
+    @Test
+    public void matchesFullScoreOverRandomSequences() {
+        for (long seed = 1; seed <= 3; seed++) {
+            Random random = new Random(seed);
+            IncrementalScorer scorer = full.newIncrementalScorer();
+            Map<Integer, float[]> macs = new TreeMap<>();
+            for (int update = 0; update < UPDATES; update++) {
+                if (random.nextInt(200) == 0) macs.clear();
+                step(macs, random);
+                ObservationSummary obs = toSummary(macs);
+                full.updateScores(obs);
+                scorer.update(obs);
+                assertMatchesFull(scorer, "seed " + seed + ", update " + update);
+            }
+        }
+    }
+
+    @Test
+    public void matchesFullScoreThroughFingerprintInfo() {
+        WifiFingerprintInfo incremental = new WifiFingerprintInfo(GreenstoneData.connectionPoints(), store);
+        incremental.setTopK(0);
+        incremental.setCandidatePruning(0, 0, 0);
+        IncrementalScorer scorer = incremental.newIncrementalScorer();
+        Random random = new Random(5);
+        Map<Integer, float[]> macs = new TreeMap<>();
+        for (int update = 0; update < UPDATES; update++) {
+            step(macs, random);
+            ObservationSummary obs = toSummary(macs);
+            full.updateScores(obs);
+            incremental.updateScores(obs, scorer);
+            for (int location = 0; location < store.size(); location++) {
+                float expected = full.getScoreAt(location);
+                assertEquals("update " + update + ", location " + location, expected, incremental.getScoreAt(location),
+                        1e-3f * Math.max(1, Math.abs(expected)));
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.cogn.wifirecord;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The map must hold whatever a HashMap would, through growth and clears.
+ */
+public class LongIntMapTest {
+    private static final int MISSING = Integer.MIN_VALUE;
+
+    private static void assertSame(Map<Long, Integer> expected, LongIntMap actual, Random random) {
+        assertEquals(expected.size(), actual.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertTrue(actual.containsKey(entry.getKey()));
+            assertEquals((int)entry.getValue(), actual.get(entry.getKey(), MISSING));
+        }
+        for (int i = 0; i < 1000; i++) {
+            long key = random.nextLong();
+            if (!expected.containsKey(key)) {
+                assertFalse(actual.containsKey(key));
+                assertEquals(MISSING, actual.get(key, MISSING));
+            }
+        }
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(3);
+        for (int expectedSize : new int[]{0, 1, 100}) {
+            LongIntMap map = new LongIntMap(expectedSize);
+            Map<Long, Integer> reference = new HashMap<>();
+            for (int round = 0; round < 3; round++) {
+                int puts = random.nextInt(5000);
+                for (int i = 0; i < puts; i++) {
+                    long key;
+                    switch (random.nextInt(4)) {
+                        case 0: key = random.nextLong(); break;
+                        // packed macs, and keys that collide in the low bits
+                        case 1: key = random.nextLong() & 0xFFFFFFFFFFFFL; break;
+                        case 2: key = (long)random.nextInt(64) << 40; break;
+                        default: key = random.nextInt(50) - 25; break;
+                    }
+                    int value = random.nextInt();
+                    map.put(key, value);
+                    reference.put(key, value);
+                }
+                assertSame(reference, map, random);
+                map.clear();
+                reference.clear();
+                assertSame(reference, map, random);
+            }
+        }
+    }
+
+    @Test
+    public void zeroAndNegativeKeys() {
+        LongIntMap map = new LongIntMap();
+        assertFalse(map.containsKey(0));
+        map.put(0, 5);
+        map.put(-1, 6);
+        map.put(Long.MIN_VALUE, 7);
+        map.put(0, 8);
+        assertEquals(3, map.size());
+        assertEquals(8, map.get(0, MISSING));
+        assertEquals(6, map.get(-1, MISSING));
+        assertEquals(7, map.get(Long.MIN_VALUE, MISSING));
+        assertEquals(MISSING, map.get(Long.MAX_VALUE, MISSING));
+    }
+}
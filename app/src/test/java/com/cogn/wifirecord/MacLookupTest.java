@@ -0,0 +1,104 @@
+package com.cogn.wifirecord;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Ids of macs must survive the trip through the macs file, and lookups by packed mac must give
+ * the line a search of the list would.
+ */
+public class MacLookupTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MacLookup locating(String lines) {
+        return new MacLookup(new ByteArrayInputStream(lines.getBytes(UTF8)));
+    }
+
+    @Test
+    public void parsesMacs() {
+        assertEquals(0x0123456789abL, MacLookup.parseMac("01:23:45:67:89:ab"));
+        assertEquals(0x0123456789abL, MacLookup.parseMac("01-23-45-67-89-AB"));
+        assertEquals(0xffffffffffffL, MacLookup.parseMac("ff:ff:ff:ff:ff:ff"));
+        assertEquals(0, MacLookup.parseMac("00:00:00:00:00:00"));
+        assertEquals(-1, MacLookup.parseMac("01:23:45:67:89"));
+        assertEquals(-1, MacLookup.parseMac("01:23:45:67:89:ab:cd"));
+        assertEquals(-1, MacLookup.parseMac("01:23:45:67:89:ag"));
+        assertEquals(-1, MacLookup.parseMac(""));
+    }
+
+    @Test
+    public void locatingIdsAreLines() {
+        MacLookup lookup = locating("01:23:45:67:89:ab,home\n"
+                + "not a mac,other\n"
+                + "ff:ee:dd:cc:bb:aa,shop\n"
+                + "01:23:45:67:89:ab,again\n");
+        assertEquals(0, (int)lookup.getId("01:23:45:67:89:ab", "home"));
+        // the same mac written another way, and a mac listed twice keeps its first line
+        assertEquals(0, (int)lookup.getId("01-23-45-67-89-AB", "home"));
+        assertEquals(1, (int)lookup.getId("not a mac", "other"));
+        assertEquals(2, (int)lookup.getId("ff:ee:dd:cc:bb:aa", "shop"));
+        assertEquals("ff:ee:dd:cc:bb:aa", lookup.getMac(2));
+        assertEquals(-1, (int)lookup.getID("00:00:00:00:00:01"));
+
+        // new macs are kept out of the range of the summary's ids
+        int unknown = lookup.getId("00:00:00:00:00:01", "new");
+        assertEquals(10004, unknown);
+        assertEquals(unknown, (int)lookup.getId("00:00:00:00:00:01", "new"));
+        assertEquals(10005, (int)lookup.getId("still not a mac", "new"));
+    }
+
+    @Test
+    public void recordedMacsReadBack() throws IOException {
+        File file = new File(folder.getRoot(), "sub/macs.txt");
+        Clock.Virtual clock = new Clock.Virtual(System.currentTimeMillis());
+        MacLookup recording = new MacLookup(file, clock);
+        recording.setFlushInterval(5000);
+        String[] macs = new String[300];
+        for (int i = 0; i < macs.length; i++) {
+            macs[i] = String.format("%02x:%02x:00:11:22:%02x", i / 256, i % 256, i % 7);
+            assertEquals(i, (int)recording.getId(macs[i], "ssid" + i));
+        }
+        assertEquals(7, (int)recording.getId(macs[7], "ssid7"));
+        recording.endBatch();
+        // the first batch goes out at once, later ones wait for the interval
+        assertEquals(macs.length, Files.readAllLines(file.toPath(), UTF8).size());
+        assertEquals(macs.length, (int)recording.getId("aa:bb:cc:dd:ee:ff", "late"));
+        clock.advance(4999);
+        recording.endBatch();
+        assertEquals(macs.length, Files.readAllLines(file.toPath(), UTF8).size());
+        clock.advance(1);
+        recording.endBatch();
+        assertEquals(macs.length + 1, Files.readAllLines(file.toPath(), UTF8).size());
+        recording.close();
+
+        MacLookup reopened = new MacLookup(file, clock);
+        for (int i = 0; i < macs.length; i++) {
+            assertEquals(i, (int)reopened.getID(macs[i]));
+            assertEquals(macs[i], reopened.getMac(i));
+        }
+        assertEquals(macs.length, (int)reopened.getId("AA-BB-CC-DD-EE-FF", "late"));
+        assertEquals(macs.length + 1, (int)reopened.getId("00:00:00:00:00:02", "next"));
+        reopened.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), UTF8);
+        assertEquals(macs.length + 2, lines.size());
+        assertEquals("00:00:00:00:00:02,next," + (macs.length + 1), lines.get(macs.length + 1));
+        MacLookup locating = new MacLookup(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+        for (int i = 0; i < macs.length; i++) {
+            assertEquals(i, (int)locating.getID(macs[i]));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.cogn.wifirecord;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The summary kept from running totals must equal one worked out again from the scans in the
+ * window, and the weighted summary must fold in each scan once.
+ */
+public class ReadingsQueueTest {
+    private static final float TOLERANCE = 1e-3f;
+
+    private final RecordForLocationPersistent locator = new RecordForLocationPersistent();
+
+    /**
+     * The readings of the scans in the window, each scan a map of mac to its latest reading.
+     */
+    private static class Window {
+        final int maxLength;
+        final List<Map<Integer, Float>> scans = new ArrayList<>();
+
+        Window(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        void addNew() {
+            if (scans.size() == maxLength) scans.remove(0);
+            scans.add(new LinkedHashMap<Integer, Float>());
+        }
+
+        void updateEnd(int mac, float reading) {
+            scans.get(scans.size() - 1).put(mac, reading);
+        }
+
+        /**
+         * p, mu and the population sigma of each mac, sorted by mac
+         */
+        TreeMap<Integer, float[]> summary() {
+            TreeMap<Integer, List<Float>> readings = new TreeMap<>();
+            for (Map<Integer, Float> scan : scans) {
+                for (Map.Entry<Integer, Float> reading : scan.entrySet()) {
+                    if (!readings.containsKey(reading.getKey())) readings.put(reading.getKey(), new ArrayList<Float>());
+                    readings.get(reading.getKey()).add(reading.getValue());
+                }
+            }
+            TreeMap<Integer, float[]> summary = new TreeMap<>();
+            for (Map.Entry<Integer, List<Float>> mac : readings.entrySet()) {
+                double mean = 0;
+                for (float reading : mac.getValue()) mean += reading;
+                mean /= mac.getValue().size();
+                double variance = 0;
+                for (float reading : mac.getValue()) variance += (reading - mean) * (reading - mean);
+                variance /= mac.getValue().size();
+                summary.put(mac.getKey(), new float[]{(float)mac.getValue().size() / scans.size(),
+                        (float)mean, (float)Math.sqrt(variance)});
+            }
+            return summary;
+        }
+    }
+
+    private static void assertSummary(String message, TreeMap<Integer, float[]> expected, ObservationSummary actual) {
+        assertEquals(message, expected.size(), actual.size());
+        int i = 0;
+        for (Map.Entry<Integer, float[]> mac : expected.entrySet()) {
+            assertEquals(message, (int)mac.getKey(), actual.getMacId(i));
+            assertEquals(message + " p of " + mac.getKey(), mac.getValue()[0], actual.getP(i), TOLERANCE);
+            assertEquals(message + " mu of " + mac.getKey(), mac.getValue()[1], actual.getMu(i), TOLERANCE);
+            assertEquals(message + " sigma of " + mac.getKey(), mac.getValue()[2], actual.getSigma(i), TOLERANCE);
+            i++;
+        }
+    }
+
+    @Test
+    public void summaryMatchesWindow() {
+        Random random = new Random(1);
+        for (int maxLength : new int[]{1, 3, 20}) {
+            RecordForLocationPersistent.ReadingsQueue queue = locator.new ReadingsQueue(maxLength);
+            Window window = new Window(maxLength);
+            ObservationSummary summary = new ObservationSummary();
+            for (int scan = 0; scan < 2000; scan++) {
+                if (random.nextInt(500) == 0) {
+                    queue.clear();
+                    window.scans.clear();
+                }
+                queue.addNew(scan * 1000L);
+                window.addNew();
+                int readings = random.nextInt(30);
+                for (int r = 0; r < readings; r++) {
+                    // few macs, so they come and go and are sometimes read twice in a scan
+                    int mac = random.nextInt(40) * 7;
+                    float reading = -40 - random.nextInt(60) + random.nextFloat();
+                    queue.updateEnd(mac, reading);
+                    window.updateEnd(mac, reading);
+                }
+                queue.getSummary(summary);
+                assertEquals(window.scans.size(), queue.size());
+                assertSummary("window of " + maxLength + " after scan " + scan, window.summary(), summary);
+            }
+        }
+    }
+
+    @Test
+    public void ewmaFoldsEachScanOnce() {
+        float alpha = 0.3f;
+        Random random = new Random(2);
+        RecordForLocationPersistent.ReadingsQueue queue = locator.new ReadingsQueue(5);
+        queue.setEwmaAlpha(alpha);
+        Window window = new Window(5);
+        // the weighted mean and variance of each mac over every closed scan
+        Map<Integer, double[]> closed = new HashMap<>();
+        ObservationSummary summary = new ObservationSummary();
+        for (int scan = 0; scan < 500; scan++) {
+            if (!window.scans.isEmpty()) {
+                for (Map.Entry<Integer, Float> reading : window.scans.get(window.scans.size() - 1).entrySet()) {
+                    closed.put(reading.getKey(), fold(closed.get(reading.getKey()), reading.getValue(), alpha));
+                }
+            }
+            queue.addNew(scan * 1000L);
+            window.addNew();
+            for (int mac = 0; mac < 10; mac++) {
+                if (random.nextInt(4) == 0) continue;
+                // a reading replaced later in the same scan must not count
+                if (random.nextInt(3) == 0) queue.updateEnd(mac, -100 + random.nextInt(20));
+                float reading = -60 + (float)random.nextGaussian() * 5;
+                queue.updateEnd(mac, reading);
+                window.updateEnd(mac, reading);
+            }
+
+            TreeMap<Integer, float[]> expected = window.summary();
+            for (Map.Entry<Integer, float[]> mac : expected.entrySet()) {
+                double[] ewma = closed.get(mac.getKey());
+                Float latest = window.scans.get(window.scans.size() - 1).get(mac.getKey());
+                if (latest != null) ewma = fold(ewma, latest, alpha);
+                mac.getValue()[1] = (float)ewma[0];
+                mac.getValue()[2] = (float)Math.sqrt(ewma[1]);
+            }
+            // macs that leave the window are forgotten
+            for (int mac = 0; mac < 10; mac++) {
+                if (!expected.containsKey(mac)) closed.remove(mac);
+            }
+            queue.getSummary(summary);
+            assertSummary("after scan " + scan, expected, summary);
+        }
+    }
+
+    private static double[] fold(double[] ewma, float reading, float alpha) {
+        if (ewma == null) return new double[]{reading, 0};
+        double diff = reading - ewma[0];
+        return new double[]{ewma[0] + alpha * diff, (1 - alpha) * (ewma[1] + alpha * diff * diff)};
+    }
+}
@@ -0,0 +1,55 @@
+package com.cogn.wifirecord;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts readings and path files between the text and the binary format, for the offline tools.
+ * Kept with the unit tests so it stays out of the app, run main from the unit test classpath.
+ *
+ * Usage: RecordingConverter [-z] input output
+ * The output is binary if its name ends in .bin and text otherwise, the input can be either.
+ * With -z the blocks of a binary output are compressed.
+ */
+public class RecordingConverter {
+
+    /**
+     * Copies every record of one recording to another.
+     * @return the number of records copied
+     */
+    public static int convert(File input, File output, boolean binary) throws IOException {
+        return convert(input, output, binary, false);
+    }
+
+    public static int convert(File input, File output, boolean binary, boolean compress) throws IOException {
+        if (output.exists() && !output.delete())
+            throw new IOException("Could not replace " + output);
+        RecordingReader reader = RecordingReader.open(input);
+        RecordingOutput out = RecordingOutput.open(output, binary, compress);
+        int count = 0;
+        try {
+            ScanRecord record;
+            while ((record = reader.next()) != null) {
+                out.write(record);
+                count++;
+            }
+        } finally {
+            reader.close();
+            out.close();
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean compress = args.length == 3 && args[0].equals("-z");
+        if (args.length != (compress ? 3 : 2)) {
+            System.err.println("Usage: RecordingConverter [-z] input output");
+            System.exit(1);
+        }
+        String input = args[args.length - 2];
+        File output = new File(args[args.length - 1]);
+        boolean binary = output.getName().endsWith(DataReadWrite.BINARY_EXTENSION);
+        int count = convert(new File(input), output, binary, compress);
+        System.out.println("Converted " + count + " records from " + input + " to " + output);
+    }
+}
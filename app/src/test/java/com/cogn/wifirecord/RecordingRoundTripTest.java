@@ -0,0 +1,202 @@
+package com.cogn.wifirecord;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recordings written in the text format, the binary format and the compressed binary format must
+ * read back the same, in order and from any point through the index.
+ */
+public class RecordingRoundTripTest {
+    private static final int SCANS = 1500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A path file: the header lines then scans at irregular times, some empty, with the odd text
+     * line in between.
+     */
+    private static List<ScanRecord> makeRecording(long seed) {
+        Random random = new Random(seed);
+        List<ScanRecord> records = new ArrayList<>();
+        records.add(ScanRecord.textLine("DEVICE,brand,model"));
+        records.add(ScanRecord.textLine("DESCRIPTION,A TO B"));
+        records.add(ScanRecord.textLine("DIRECTION,-1"));
+        long offset = 0;
+        for (int scan = 0; scan < SCANS; scan++) {
+            offset += random.nextInt(10) == 0 ? random.nextInt(100000) : random.nextInt(3000);
+            int count = random.nextInt(20) == 0 ? 0 : random.nextInt(60);
+            int[] macIds = new int[count];
+            int[] levels = new int[count];
+            for (int i = 0; i < count; i++) {
+                macIds[i] = random.nextInt(10) == 0 ? random.nextInt(Integer.MAX_VALUE) : random.nextInt(300);
+                levels[i] = -30 - random.nextInt(70);
+            }
+            records.add(new ScanRecord(offset, macIds, levels));
+            if (random.nextInt(200) == 0) records.add(ScanRecord.textLine("NOTE," + scan));
+        }
+        return records;
+    }
+
+    /**
+     * Writes the records in a few sessions, as a recording that is stopped and started again.
+     */
+    private static void write(File file, List<ScanRecord> records, boolean binary, boolean compress) throws IOException {
+        int sessionLength = records.size() / 3 + 1;
+        for (int start = 0; start < records.size(); start += sessionLength) {
+            RecordingOutput out = RecordingOutput.open(file, binary, compress);
+            for (int i = start; i < Math.min(records.size(), start + sessionLength); i++) {
+                out.write(records.get(i));
+            }
+            out.close();
+        }
+    }
+
+    private static List<ScanRecord> scansOf(List<ScanRecord> records) {
+        List<ScanRecord> scans = new ArrayList<>();
+        for (ScanRecord record : records) {
+            if (!record.isText()) scans.add(record);
+        }
+        return scans;
+    }
+
+    private static void assertSameRecord(String message, ScanRecord expected, ScanRecord actual) {
+        assertEquals(message, expected.isText(), actual.isText());
+        if (expected.isText()) {
+            assertEquals(message, expected.getText(), actual.getText());
+            return;
+        }
+        assertEquals(message, expected.getOffset(), actual.getOffset());
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message, expected.getMacId(i), actual.getMacId(i));
+            assertEquals(message, expected.getLevel(i), actual.getLevel(i));
+        }
+    }
+
+    private static void assertReadsBack(List<ScanRecord> records, File file) throws IOException {
+        RecordingReader reader = RecordingReader.open(file);
+        for (int i = 0; i < records.size(); i++) {
+            assertSameRecord("record " + i, records.get(i), reader.next());
+        }
+        assertNull(reader.next());
+        reader.close();
+
+        List<ScanRecord> scans = scansOf(records);
+        long[] times = new long[scans.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = scans.get(i).getOffset();
+        }
+        for (RecordingIndex index : new RecordingIndex[]{RecordingIndex.open(file), RecordingIndex.open(new FileInputStream(file))}) {
+            assertEquals(scans.size(), index.size());
+            for (int i = 0; i < scans.size(); i++) {
+                assertEquals(times[i], index.getTime(i));
+                assertEquals(Arrays.binarySearch(times, times[i] + 1), index.search(times[i] + 1));
+            }
+            // forwards, backwards and jumping about, each moving the window
+            for (int i = 0; i < scans.size(); i++) {
+                assertSameRecord("scan " + i, scans.get(i), index.getScan(i));
+            }
+            for (int i = scans.size() - 1; i >= 0; i--) {
+                assertSameRecord("scan " + i, scans.get(i), index.getScan(i));
+            }
+            Random random = new Random(5);
+            for (int n = 0; n < 500; n++) {
+                int i = random.nextInt(scans.size());
+                assertSameRecord("scan " + i, scans.get(i), index.getScan(i));
+            }
+        }
+    }
+
+    @Test
+    public void textRoundTrip() throws IOException {
+        List<ScanRecord> records = makeRecording(1);
+        File file = folder.newFile("test_path.txt");
+        write(file, records, false, false);
+        assertReadsBack(records, file);
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        List<ScanRecord> records = makeRecording(2);
+        File file = folder.newFile("test_path.bin");
+        write(file, records, true, false);
+        assertReadsBack(records, file);
+    }
+
+    @Test
+    public void compressedRoundTrip() throws IOException {
+        List<ScanRecord> records = makeRecording(3);
+        File file = folder.newFile("test_path.bin");
+        write(file, records, true, true);
+        assertReadsBack(records, file);
+
+        File uncompressed = folder.newFile("plain_path.bin");
+        write(uncompressed, records, true, false);
+        assertTrue(file.length() < uncompressed.length());
+    }
+
+    @Test
+    public void appendKeepsCompression() throws IOException {
+        List<ScanRecord> records = makeRecording(4);
+        File file = folder.newFile("test_path.bin");
+        RecordingOutput out = RecordingOutput.open(file, true, true);
+        out.write(records.get(0));
+        out.close();
+        // asking for no compression on an existing compressed file keeps it compressed
+        out = RecordingOutput.open(file, true, false);
+        for (int i = 1; i < records.size(); i++) {
+            out.write(records.get(i));
+        }
+        out.close();
+        assertReadsBack(records, file);
+    }
+
+    @Test
+    public void offsetInAnyCase() throws IOException {
+        File file = folder.newFile("old_path.txt");
+        Files.write(file.toPath(), ("DEVICE,brand,model\n"
+                + "offset,100\n3,-50\n4,-60\n"
+                + "Offset,250\n"
+                + "OFFSET,400\n5,-70\n").getBytes("UTF-8"));
+        List<ScanRecord> records = new ArrayList<>();
+        records.add(ScanRecord.textLine("DEVICE,brand,model"));
+        records.add(new ScanRecord(100, new int[]{3, 4}, new int[]{-50, -60}));
+        records.add(new ScanRecord(250, new int[0], new int[0]));
+        records.add(new ScanRecord(400, new int[]{5}, new int[]{-70}));
+        assertReadsBack(records, file);
+    }
+
+    @Test
+    public void convertBetweenFormats() throws IOException {
+        List<ScanRecord> records = makeRecording(6);
+        File text = folder.newFile("test_path.txt");
+        write(text, records, false, false);
+        File binary = new File(folder.getRoot(), "test_path.bin");
+        File compressed = new File(folder.getRoot(), "test_path_z.bin");
+        File back = new File(folder.getRoot(), "test_path_back.txt");
+
+        assertEquals(records.size(), RecordingConverter.convert(text, binary, true));
+        assertReadsBack(records, binary);
+        assertEquals(records.size(), RecordingConverter.convert(binary, compressed, true, true));
+        assertReadsBack(records, compressed);
+        assertEquals(records.size(), RecordingConverter.convert(compressed, back, false));
+        assertArrayEquals(Files.readAllBytes(text.toPath()), Files.readAllBytes(back.toPath()));
+    }
+}
@@ -0,0 +1,307 @@
+package com.cogn.wifirecord;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays recorded paths through the {@link LocationEstimator} off the device, as fast as the
+ * CPU allows.  Time comes from a {@link Clock.Virtual}: the locator's polling loop is stepped
+ * every delayMS of recording time and sees the same scans the {@link OfflineWifiScanner} would hand out at that moment, so
+ * the decisions are those of a replay on the phone with no time lost to scoring.
+ *
+ * Each path is written out as a trajectory csv in the output folder, one row per new scan,
+ * and the speed of each replay is printed.  Paths are replayed in parallel, each with its own
+ * {@link WifiFingerprintInfo} over one shared {@link FingerprintStore}.
+ *
+ * It is kept with the unit tests so it stays out of the app.  {@link ReplayHarnessTest} runs it on
+ * made up greenstone paths, and main can be run from the unit test classpath for real recordings.
+ *
+ * Usage: ReplayHarness -summary file -pxPerM value [options] path...
+ * <pre>
+ *   -macs file        macs of the summary, each path is then mapped through the macs file recorded with it
+ *   -connection l0,x0,y0,l1,x1,y1   a connection between levels, can be repeated
+ *   -param name=value overrides one of the location settings, named as in {@link RecordForLocationPersistent.Parameters}
+ *   -out folder       where the trajectories go, the current folder by default
+ *   -threads n        number of paths replayed at once, one per core by default
+ * </pre>
+ */
+public class ReplayHarness {
+    private final FingerprintStore store;
+    private final ConnectionPoints connectionPoints;
+    private final RecordForLocationPersistent.Parameters params;
+    private final MacLookup summaryMacs;
+    private final File outFolder;
+
+    public ReplayHarness(FingerprintStore store, ConnectionPoints connectionPoints,
+                         RecordForLocationPersistent.Parameters params, MacLookup summaryMacs, File outFolder) {
+        this.store = store;
+        this.connectionPoints = connectionPoints;
+        this.params = params;
+        this.summaryMacs = summaryMacs;
+        this.outFolder = outFolder;
+    }
+
+    /**
+     * The settings the app starts with.
+     */
+    public static RecordForLocationPersistent.Parameters defaultParameters(float pxPerM) {
+        return new RecordForLocationPersistent().new Parameters(pxPerM, 2.0f, 0.0f, 3, 5, 20, true, 5.0f, 3000);
+    }
+
+    /**
+     * Speed of one replay.
+     */
+    public static class Result {
+        public String path;
+        public int scans;
+        public int ticks;
+        public long recordingMS;
+        public long elapsedNanos;
+        // time taken by each new scan, in ns
+        public long[] scanNanos;
+
+        public double scansPerSecond() {
+            return scans / (elapsedNanos / 1e9);
+        }
+
+        public double speedUp() {
+            return recordingMS / (elapsedNanos / 1e6);
+        }
+
+        public long percentile(double fraction) {
+            if (scanNanos.length == 0) return 0;
+            long[] sorted = scanNanos.clone();
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, (int)(fraction * sorted.length))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d scans, %d ticks, %.0f scans/s, %.0fx real time, scan latency us p50 %.1f p90 %.1f p99 %.1f max %.1f",
+                    path, scans, ticks, scansPerSecond(), speedUp(),
+                    percentile(0.5) / 1e3, percentile(0.9) / 1e3, percentile(0.99) / 1e3, percentile(1) / 1e3);
+        }
+    }
+
+    /**
+     * Replays one path and writes its trajectory.
+     */
+    public Result replay(File path) throws IOException {
+        RecordingIndex recording = RecordingIndex.open(path);
+        String name = path.getName();
+        MacLookup pathMacs = null;
+        if (summaryMacs != null) {
+            File macsFile = new File(path.getParentFile(), name.substring(0, name.length() - 4).replace("path", "macs") + DataReadWrite.TEXT_EXTENSION);
+            pathMacs = new MacLookup(new FileInputStream(macsFile));
+        }
+        LocationEstimator estimator = new LocationEstimator(params, new WifiFingerprintInfo(connectionPoints, store));
+        File trajectory = new File(outFolder, name.substring(0, name.length() - 4) + "_trajectory.csv");
+        Writer out = new BufferedWriter(new FileWriter(trajectory));
+        out.write("offset,scan,bestFitIndex,bestFitX,bestFitY,bestFitLevel,bestFitScore,currentX,currentY,radius\n");
+
+        Result result = new Result();
+        result.path = path.getPath();
+        result.recordingMS = recording.size() > 0 ? recording.getTime(recording.size() - 1) : 0;
+        long[] scanNanos = new long[recording.size()];
+        int[] macs = new int[64];
+        float[] levels = new float[64];
+        int count = 0;
+        float[] oldLevels = null;
+        int oldCount = 0;
+        int lastIndex = -1;
+        Clock.Virtual clock = new Clock.Virtual(0);
+        long start = System.nanoTime();
+        try {
+            for (long offset = 0; offset <= result.recordingMS; offset = clock.millis()) {
+                result.ticks++;
+                // the scan OfflineWifiScanner.getScanResults returns at this time
+                int index = recording.search(offset);
+                if (index <= 0) index = -index;
+                index = Math.min(index, recording.size() - 1);
+                boolean changed = false;
+                if (index != lastIndex) {
+                    ScanRecord record = recording.getScan(index);
+                    if (record.size() > macs.length) {
+                        macs = new int[record.size()];
+                        levels = new float[record.size()];
+                    }
+                    count = toReading(record, pathMacs, macs, levels);
+                    changed = oldLevels == null || !sameLevels(oldLevels, oldCount, levels, count);
+                    lastIndex = index;
+                }
+                if (changed) {
+                    oldLevels = Arrays.copyOf(levels, count);
+                    oldCount = count;
+                    long before = System.nanoTime();
+                    estimator.addScan(offset, macs, levels, count);
+                    // the scanner can hand out a scan again when the time lands on one exactly
+                    if (result.scans == scanNanos.length) scanNanos = Arrays.copyOf(scanNanos, 2 * scanNanos.length + 1);
+                    scanNanos[result.scans++] = System.nanoTime() - before;
+                    out.write(offset + "," + index + "," + estimator.getBestFitIndex() + ","
+                            + estimator.getBestFitX() + "," + estimator.getBestFitY() + ","
+                            + estimator.getBestFitLevel() + "," + estimator.getBestFitScore() + ","
+                            + estimator.getCurrentX() + "," + estimator.getCurrentY() + ","
+                            + estimator.getRadius() + "\n");
+                } else {
+                    estimator.noNewScan(offset);
+                }
+                clock.sleep(estimator.delayMS);
+            }
+        } finally {
+            out.close();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.scanNanos = Arrays.copyOf(scanNanos, result.scans);
+        return result;
+    }
+
+    /**
+     * Puts the readings of a scan in mac order, mapped to the macs of the summary, as the
+     * SparseArray of the offline scanner would hold them.
+     * @return the number of readings
+     */
+    private int toReading(ScanRecord record, MacLookup pathMacs, int[] macs, float[] levels) {
+        int count = 0;
+        for (int i = 0; i < record.size(); i++) {
+            int macId = record.getMacId(i);
+            if (pathMacs != null) {
+                Integer id = summaryMacs.getID(pathMacs.getMac(macId));
+                if (id == null) continue;
+                macId = id;
+            }
+            // insert in order, a repeated mac keeps the latest reading
+            int position = Arrays.binarySearch(macs, 0, count, macId);
+            if (position >= 0) {
+                levels[position] = record.getLevel(i);
+            } else {
+                position = -position - 1;
+                System.arraycopy(macs, position, macs, position + 1, count - position);
+                System.arraycopy(levels, position, levels, position + 1, count - position);
+                macs[position] = macId;
+                levels[position] = record.getLevel(i);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // same test as RecordForLocation.haveChanged
+    private static boolean sameLevels(float[] oldLevels, int oldCount, float[] levels, int count) {
+        if (oldCount != count) return false;
+        for (int i = 0; i < count; i++) {
+            if (Math.abs(oldLevels[i] - levels[i]) > 1e-9) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replays the paths on a number of threads.
+     * @return the results in the order of the paths
+     */
+    public List<Result> replayAll(List<File> paths, int threads) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (final File path : paths) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws IOException {
+                        return replay(path);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void setParameter(RecordForLocationPersistent.Parameters params, String setting) {
+        int equals = setting.indexOf('=');
+        if (equals < 0) throw new IllegalArgumentException("Expected name=value, got " + setting);
+        String name = setting.substring(0, equals);
+        String value = setting.substring(equals + 1);
+        switch (name) {
+            case "walkingPace": params.walkingPace = Float.parseFloat(value); break;
+            case "errorAccomodationM": params.errorAccomodationM = Float.parseFloat(value); break;
+            case "lengthMovingObs": params.lengthMovingObs = Integer.parseInt(value); break;
+            case "minLengthStationaryObs": params.minLengthStationaryObs = Integer.parseInt(value); break;
+            case "maxLengthStationaryObs": params.maxLengthStationaryObs = Integer.parseInt(value); break;
+            case "updateForSamePos": params.updateForSamePos = Boolean.parseBoolean(value); break;
+            case "stickyMinImprovement": params.stickyMinImprovement = Float.parseFloat(value); break;
+            case "stickyMaxTime": params.stickyMaxTime = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("Unknown setting " + name);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File summary = null;
+        File macs = null;
+        float pxPerM = 0;
+        File outFolder = new File(".");
+        int threads = Runtime.getRuntime().availableProcessors();
+        ConnectionPoints connectionPoints = new ConnectionPoints();
+        List<String> settings = new ArrayList<>();
+        List<File> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-summary")) summary = new File(args[++i]);
+            else if (arg.equals("-macs")) macs = new File(args[++i]);
+            else if (arg.equals("-pxPerM")) pxPerM = Float.parseFloat(args[++i]);
+            else if (arg.equals("-out")) outFolder = new File(args[++i]);
+            else if (arg.equals("-threads")) threads = Integer.parseInt(args[++i]);
+            else if (arg.equals("-param")) settings.add(args[++i]);
+            else if (arg.equals("-connection")) {
+                String[] cols = args[++i].split(",");
+                connectionPoints.add(Integer.parseInt(cols[0]), Float.parseFloat(cols[1]), Float.parseFloat(cols[2]),
+                        Integer.parseInt(cols[3]), Float.parseFloat(cols[4]), Float.parseFloat(cols[5]));
+            }
+            else paths.add(new File(arg));
+        }
+        if (summary == null || pxPerM <= 0 || paths.isEmpty()) {
+            System.err.println("Usage: ReplayHarness -summary file -pxPerM value [-macs file] [-connection l0,x0,y0,l1,x1,y1]"
+                    + " [-param name=value] [-out folder] [-threads n] path...");
+            System.exit(1);
+        }
+        RecordForLocationPersistent.Parameters params = defaultParameters(pxPerM);
+        for (String setting : settings) {
+            setParameter(params, setting);
+        }
+        FingerprintStore store = FingerprintStore.readSummary(new FileInputStream(summary));
+        MacLookup summaryMacs = macs == null ? null : new MacLookup(new FileInputStream(macs));
+        outFolder.mkdirs();
+
+        ReplayHarness harness = new ReplayHarness(store, connectionPoints, params, summaryMacs, outFolder);
+        long start = System.nanoTime();
+        List<Result> results = harness.replayAll(paths, threads);
+        long elapsed = System.nanoTime() - start;
+        int scans = 0;
+        for (Result result : results) {
+            System.out.println(result);
+            scans += result.scans;
+        }
+        System.out.printf("%d paths, %d scans in %.1fms on %d threads, %.0f scans/s%n",
+                results.size(), scans, elapsed / 1e6, threads, scans / (elapsed / 1e9));
+    }
+}
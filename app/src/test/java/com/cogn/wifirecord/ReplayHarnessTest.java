@@ -0,0 +1,118 @@
+package com.cogn.wifirecord;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays paths made from the greenstone fingerprints.  Replay runs on a virtual clock, so the
+ * same path must give the same trajectory however many are replayed at once.
+ */
+public class ReplayHarnessTest {
+    private static final float GREENSTONE_PX_PER_M = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FingerprintStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        store = GreenstoneData.load();
+    }
+
+    /**
+     * A path that scans every second, staying a few scans at each of a series of locations.
+     * @return the number of scans written
+     */
+    private int writePath(File file, boolean binary, long seed) throws IOException {
+        Random random = new Random(seed);
+        RecordingOutput out = RecordingOutput.open(file, binary);
+        out.write(ScanRecord.textLine("DEVICE,test,jvm"));
+        out.write(ScanRecord.textLine("DESCRIPTION,TEST"));
+        out.write(ScanRecord.textLine("DIRECTION,1"));
+        int scans = 0;
+        for (int stop = 0; stop < 20; stop++) {
+            int location = random.nextInt(store.size());
+            for (int repeat = 0; repeat < 4; repeat++) {
+                int count = store.getRowEnd(location) - store.getRowStart(location);
+                int[] macs = new int[count];
+                int[] levels = new int[count];
+                for (int i = 0; i < count; i++) {
+                    int entry = store.getRowStart(location) + i;
+                    macs[i] = store.getMacId(entry);
+                    levels[i] = Math.round(store.getMu(entry) + (float)random.nextGaussian() * 4);
+                }
+                out.write(new ScanRecord(1000L * scans + 37, macs, levels));
+                scans++;
+            }
+        }
+        out.close();
+        return scans;
+    }
+
+    private ReplayHarness harness(File outFolder) {
+        return new ReplayHarness(store, GreenstoneData.connectionPoints(),
+                ReplayHarness.defaultParameters(GREENSTONE_PX_PER_M), null, outFolder);
+    }
+
+    private static byte[] trajectory(File outFolder, File path) throws IOException {
+        String name = path.getName();
+        return Files.readAllBytes(new File(outFolder, name.substring(0, name.length() - 4) + "_trajectory.csv").toPath());
+    }
+
+    @Test
+    public void replaysAtRecordingTime() throws IOException {
+        File path = folder.newFile("test_path.txt");
+        int scans = writePath(path, false, 1);
+        File outFolder = folder.newFolder("out");
+        ReplayHarness.Result result = harness(outFolder).replay(path);
+        assertEquals(1000L * (scans - 1) + 37, result.recordingMS);
+        // the locator polls every delayMS of recording time and sees each scan as it is reached
+        assertTrue(result.ticks > scans);
+        assertTrue(result.scans > scans / 2 && result.scans <= scans);
+        List<String> lines = Files.readAllLines(new File(outFolder, "test_path_trajectory.csv").toPath());
+        assertEquals(result.scans + 1, lines.size());
+    }
+
+    @Test
+    public void replaysScansOnTheTicks() throws IOException {
+        File path = folder.newFile("test_path.txt");
+        RecordingOutput out = RecordingOutput.open(path, false);
+        for (int scan = 0; scan < 50; scan++) {
+            out.write(new ScanRecord(100L * scan, new int[]{store.getMacId(0)}, new int[]{-50 - scan % 2}));
+        }
+        out.close();
+        // times that land on a scan can hand out one scan more than once
+        ReplayHarness.Result result = harness(folder.newFolder("out")).replay(path);
+        assertEquals(result.scans, result.scanNanos.length);
+    }
+
+    @Test
+    public void replayIsRepeatable() throws Exception {
+        File[] paths = new File[4];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = folder.newFile("test" + i + "_path" + (i % 2 == 0 ? ".txt" : ".bin"));
+            writePath(paths[i], i % 2 != 0, 10 + i);
+        }
+        File serialFolder = folder.newFolder("serial");
+        File parallelFolder = folder.newFolder("parallel");
+        harness(serialFolder).replayAll(Arrays.asList(paths), 1);
+        harness(parallelFolder).replayAll(Arrays.asList(paths), 4);
+        for (File path : paths) {
+            assertArrayEquals(path.getName(), trajectory(serialFolder, path), trajectory(parallelFolder, path));
+        }
+    }
+}
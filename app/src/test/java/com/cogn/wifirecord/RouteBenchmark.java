@@ -0,0 +1,146 @@
+package com.cogn.wifirecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times routes found by searching the graph against routes from a contraction hierarchy, on mall
+ * graph files and on a made up grid of corridors the size of a campus.  Kept with the unit tests
+ * so it stays out of the app, run main from the unit test classpath.
+ *
+ * Times are for {@link Graph#getRoute(Position, Position)}, which also finds the nodes nearest
+ * the two points, and for the hierarchy query on its own.
+ */
+public class RouteBenchmark {
+
+    /**
+     * A graph file of corridors on a grid, 20 px apart with a few missing, and lifts between the
+     * levels every 10 corridors.
+     */
+    static String gridGraph(int size, int levels, long seed) {
+        Random random = new Random(seed);
+        int count = levels * size * size;
+        // whether the corridor to the next node down and to the right is there
+        boolean[] down = new boolean[count];
+        boolean[] right = new boolean[count];
+        for (int key = 0; key < count; key++) {
+            down[key] = random.nextInt(10) > 0;
+            right[key] = random.nextInt(10) > 0;
+        }
+        StringBuilder json = new StringBuilder("{");
+        for (int level = 0; level < levels; level++) {
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    int key = (level * size + i) * size + j;
+                    StringBuilder to = new StringBuilder();
+                    if (i + 1 < size && down[key]) appendTo(to, key + size);
+                    if (j + 1 < size && right[key]) appendTo(to, key + 1);
+                    if (i > 0 && down[key - size]) appendTo(to, key - size);
+                    if (j > 0 && right[key - 1]) appendTo(to, key - 1);
+                    if (i % 10 == 5 && j % 10 == 5) {
+                        if (level > 0) appendTo(to, key - size * size);
+                        if (level + 1 < levels) appendTo(to, key + size * size);
+                    }
+                    if (json.length() > 1) json.append(',');
+                    json.append('"').append(key).append("\":{\"x\":").append(j * 20 + random.nextInt(5))
+                            .append(",\"y\":").append(i * 20 + random.nextInt(5))
+                            .append(",\"level\":").append(level)
+                            .append(",\"to\":[").append(to).append("]}");
+                }
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    private static void appendTo(StringBuilder to, int key) {
+        if (to.length() > 0) to.append(',');
+        to.append(key);
+    }
+
+    private static void run(String name, InputStream in, int queries) {
+        Graph graph = new Graph();
+        graph.loadFromFile(in, 1);
+        int n = graph.getNodeCount();
+        long start = System.nanoTime();
+        ContractionHierarchy hierarchy = graph.buildContractionHierarchy();
+        long built = System.nanoTime() - start;
+
+        Random random = new Random(1);
+        int[] from = new int[queries];
+        int[] to = new int[queries];
+        Position[] fromPositions = new Position[queries];
+        Position[] toPositions = new Position[queries];
+        for (int i = 0; i < queries; i++) {
+            from[i] = random.nextInt(n);
+            to[i] = random.nextInt(n);
+            fromPositions[i] = graph.getNodePosition(from[i]);
+            toPositions[i] = graph.getNodePosition(to[i]);
+        }
+
+        // the first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            graph.setContractionHierarchy(null);
+            double[] lengths = new double[queries];
+            graph.setAStar(false);
+            long dijkstra = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                lengths[i] = graph.getRoute(fromPositions[i], toPositions[i]).getPathLength();
+            }
+            dijkstra = System.nanoTime() - dijkstra;
+            graph.setAStar(true);
+            long aStar = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                graph.getRoute(fromPositions[i], toPositions[i]);
+            }
+            aStar = System.nanoTime() - aStar;
+            graph.setContractionHierarchy(hierarchy);
+            int mismatches = 0;
+            long withHierarchy = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                double length = graph.getRoute(fromPositions[i], toPositions[i]).getPathLength();
+                if (Math.abs(length - lengths[i]) > 1e-6 * Math.max(1, lengths[i])) mismatches++;
+            }
+            withHierarchy = System.nanoTime() - withHierarchy;
+            long query = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                hierarchy.findPath(from[i], new int[]{to[i]});
+            }
+            query = System.nanoTime() - query;
+            if (round == 0) continue;
+            System.out.printf("%s: %d nodes, hierarchy built in %.0fms%n", name, n, built / 1e6);
+            System.out.printf("  per route: Dijkstra %.1fus, A* %.1fus, hierarchy %.1fus (query alone %.1fus), %d/%d lengths differ%n",
+                    dijkstra / 1e3 / queries, aStar / 1e3 / queries, withHierarchy / 1e3 / queries, query / 1e3 / queries,
+                    mismatches, queries);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int gridSize = 100;
+        int levels = 2;
+        int queries = 1000;
+        List<File> graphs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-grid")) gridSize = Integer.parseInt(args[++i]);
+            else if (arg.equals("-levels")) levels = Integer.parseInt(args[++i]);
+            else if (arg.equals("-queries")) queries = Integer.parseInt(args[++i]);
+            else graphs.add(new File(arg));
+        }
+        if (graphs.isEmpty() && gridSize <= 0) {
+            System.err.println("Usage: RouteBenchmark [-grid size] [-levels n] [-queries n] graph.json...");
+            System.exit(1);
+        }
+        for (File file : graphs) {
+            run(file.getName(), new FileInputStream(file), queries);
+        }
+        if (gridSize > 0) {
+            String grid = gridGraph(gridSize, levels, 1);
+            run(gridSize + "x" + gridSize + " grid on " + levels + " levels", new ByteArrayInputStream(grid.getBytes("UTF-8")), queries);
+        }
+    }
+}
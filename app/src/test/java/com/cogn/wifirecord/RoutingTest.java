@@ -0,0 +1,231 @@
+package com.cogn.wifirecord;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Routes from A*, the route table and the contraction hierarchy must be as short as the ones
+ * Dijkstra's search finds, between points and to shops with several entrances.
+ */
+public class RoutingTest {
+    private static final int QUERIES = 400;
+    private static final long SOURCE_KEY = 42;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Graph graph;
+    private ShopDirectory shopDirectory;
+    private Position[] from;
+    private Position[] to;
+    private double[] dijkstraDistances;
+    private double[] dijkstraShopDistances;
+
+    @Before
+    public void setUp() throws UnsupportedEncodingException {
+        graph = new Graph();
+        String grid = RouteBenchmark.gridGraph(16, 3, 2);
+        graph.loadFromFile(new ByteArrayInputStream(grid.getBytes("UTF-8")), 1);
+
+        Random random = new Random(9);
+        shopDirectory = new ShopDirectory();
+        for (int shop = 0; shop < 40; shop++) {
+            // a third each of shops with one, two and three entrances
+            int entrances = 1 + shop % 3;
+            for (int entrance = 0; entrance < entrances; entrance++) {
+                // entrances sit off the corridors, on any level
+                Position node = graph.getNodePosition(random.nextInt(graph.getNodeCount()));
+                shopDirectory.add("shops", "shop" + shop, "entrance" + entrance, node.level,
+                        node.x + random.nextInt(7) - 3, node.y + random.nextInt(7) - 3);
+            }
+        }
+        graph.attachEntrances(shopDirectory);
+
+        from = new Position[QUERIES];
+        to = new Position[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            from[i] = jitter(graph.getNodePosition(random.nextInt(graph.getNodeCount())), random);
+            to[i] = jitter(graph.getNodePosition(random.nextInt(graph.getNodeCount())), random);
+        }
+
+        graph.setAStar(false);
+        dijkstraDistances = new double[QUERIES];
+        dijkstraShopDistances = new double[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            dijkstraDistances[i] = graph.getRouteDistance(from[i], to[i]);
+            assertRouteLength(dijkstraDistances[i], graph.getRoute(from[i], to[i]));
+            Shop shop = shop(i);
+            double nearest = Double.MAX_VALUE;
+            for (Position entrance : shop.getEntranceLocations()) {
+                nearest = Math.min(nearest, graph.getRouteDistance(from[i], entrance));
+            }
+            dijkstraShopDistances[i] = nearest;
+        }
+    }
+
+    private static Position jitter(Position position, Random random) {
+        return new Position(position.x + random.nextFloat() * 2 - 1, position.y + random.nextFloat() * 2 - 1, position.level);
+    }
+
+    private Shop shop(int query) {
+        List<Shop> shops = shopDirectory.getAllShops();
+        return shops.get(query % shops.size());
+    }
+
+    /**
+     * The length of a route along the graph, with the same allowance for changing level as the
+     * edges, or the single node when nothing can be reached.
+     */
+    private static void assertRouteLength(double expected, Route route) {
+        if (expected == Double.MAX_VALUE) {
+            assertEquals(1, route.size());
+            return;
+        }
+        double length = 0;
+        for (int i = 1; i < route.size(); i++) {
+            length += route.get(i - 1).getDistanceTo(route.get(i));
+        }
+        assertEquals(expected, length, 1e-6 * Math.max(1, expected));
+    }
+
+    private void assertMatchesDijkstra(String searchName) {
+        int reachable = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            String message = searchName + ", query " + i;
+            double expected = dijkstraDistances[i];
+            double distance = graph.getRouteDistance(from[i], to[i]);
+            if (expected == Double.MAX_VALUE) {
+                assertEquals(message, Double.MAX_VALUE, distance, 0);
+            } else {
+                reachable++;
+                assertEquals(message, expected, distance, 1e-6 * Math.max(1, expected));
+            }
+            assertRouteLength(expected, graph.getRoute(from[i], to[i]));
+
+            Shop shop = shop(i);
+            Route toShop = graph.getRoute(from[i], shop);
+            assertRouteLength(dijkstraShopDistances[i], toShop);
+            if (dijkstraShopDistances[i] != Double.MAX_VALUE) {
+                // the route ends on the node of one of the entrances
+                Position end = toShop.get(toShop.size() - 1);
+                boolean atEntrance = false;
+                for (int node : shop.getEntranceNodes()) {
+                    Position entrance = graph.getNodePosition(node);
+                    atEntrance |= entrance.x == end.x && entrance.y == end.y && entrance.level == end.level;
+                }
+                assertTrue(message, atEntrance);
+            }
+        }
+        // most of the grid is connected, so the routes are really being compared
+        assertTrue(reachable > QUERIES / 2);
+    }
+
+    @Test
+    public void aStarMatchesDijkstra() {
+        graph.setAStar(true);
+        assertMatchesDijkstra("A*");
+    }
+
+    @Test
+    public void routeTableMatchesDijkstra() throws InterruptedException {
+        graph.setRouteTable(graph.buildRouteTable(3));
+        assertMatchesDijkstra("route table");
+    }
+
+    @Test
+    public void routeTableBuildKeepsTheCallersPriority() throws InterruptedException {
+        final RouteTable[] built = new RouteTable[1];
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    built[0] = graph.buildRouteTable(3);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        loader.setPriority(Thread.MIN_PRIORITY);
+        loader.start();
+        int workersSeen = 0;
+        while (loader.isAlive()) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (!thread.getName().equals("route-table")) continue;
+                workersSeen++;
+                assertEquals(Thread.MIN_PRIORITY, thread.getPriority());
+            }
+        }
+        loader.join();
+        assertTrue(workersSeen > 0);
+        graph.setRouteTable(built[0]);
+        assertMatchesDijkstra("route table built in the background");
+    }
+
+    @Test
+    public void contractionHierarchyMatchesDijkstra() {
+        graph.setContractionHierarchy(graph.buildContractionHierarchy());
+        assertMatchesDijkstra("contraction hierarchy");
+    }
+
+    /**
+     * Two centers loading at once both save the same file, neither may lose the other's copy.
+     */
+    private void writeAtOnce(final Object routing, final File file) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final IOException[] failed = new IOException[1];
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 5; i++) {
+                            if (routing instanceof RouteTable) ((RouteTable)routing).write(file, SOURCE_KEY);
+                            else ((ContractionHierarchy)routing).write(file, SOURCE_KEY);
+                        }
+                    } catch (IOException e) {
+                        failed[0] = e;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        if (failed[0] != null) throw new AssertionError(failed[0]);
+        // no partial copies are left behind
+        assertEquals(1, file.getParentFile().list().length);
+    }
+
+    @Test
+    public void writersOfOneFileKeepIt() throws InterruptedException, IOException {
+        File tableFile = new File(folder.newFolder(), "center_routes.bin");
+        writeAtOnce(graph.buildRouteTable(2), tableFile);
+        graph.setRouteTable(RouteTable.map(tableFile, SOURCE_KEY, graph.getNodeCount()));
+        assertMatchesDijkstra("saved route table");
+
+        graph.setRouteTable(null);
+        File hierarchyFile = new File(folder.newFolder(), "center_hierarchy.bin");
+        writeAtOnce(graph.buildContractionHierarchy(), hierarchyFile);
+        graph.setContractionHierarchy(ContractionHierarchy.read(hierarchyFile, SOURCE_KEY, graph.getNodeCount()));
+        assertMatchesDijkstra("saved contraction hierarchy");
+    }
+}
@@ -0,0 +1,182 @@
+package com.cogn.wifirecord;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The top list of a pass, split over threads and cut off early, must be the one a serial scan
+ * of every full score gives.
+ */
+public class ScoringEngineTest {
+
+    /**
+     * Scores from a table.  Below the cut off it gives up and returns a value between the full
+     * score and the cut off, as a partial score would be.
+     */
+    private static class TableScorer implements ScoringEngine.LocationScorer {
+        final float[] scores;
+        final AtomicInteger abandoned = new AtomicInteger();
+
+        TableScorer(float[] scores) {
+            this.scores = scores;
+        }
+
+        @Override
+        public float score(int location, float cutOff) {
+            float score = scores[location];
+            if (score < cutOff) {
+                abandoned.incrementAndGet();
+                return (score + cutOff) / 2;
+            }
+            return score;
+        }
+    }
+
+    /**
+     * The locations ordered best first, ties to the lowest index, NaN left out.
+     */
+    private static List<Integer> serialTop(final float[] scores, int[] locations, int count, int k) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (!Float.isNaN(scores[locations[i]])) order.add(locations[i]);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byScore = Float.compare(scores[b], scores[a]);
+                return byScore != 0 ? byScore : Integer.compare(a, b);
+            }
+        });
+        return order.subList(0, Math.min(order.size(), Math.max(1, k)));
+    }
+
+    private static void assertTop(String message, List<Integer> expected, float[] scores, ScoringEngine engine, int best) {
+        assertEquals(message, expected.isEmpty() ? -1 : expected.get(0), best);
+        assertEquals(message, expected.size(), engine.getTopCount());
+        for (int rank = 0; rank < expected.size(); rank++) {
+            assertEquals(message + " rank " + rank, (int)expected.get(rank), engine.getTopIndex(rank));
+            assertEquals(message + " rank " + rank, scores[expected.get(rank)], engine.getTopScore(rank), 0);
+        }
+    }
+
+    @Test
+    public void topMatchesSerialScan() {
+        Random random = new Random(1);
+        for (int threads : new int[]{1, 2, 3, 8}) {
+            for (int k : new int[]{0, 1, 5, 20}) {
+                ScoringEngine engine = new ScoringEngine(threads);
+                engine.setTopK(k);
+                engine.setMinChunkWork(1);
+                for (int pass = 0; pass < 50; pass++) {
+                    int n = 1 + random.nextInt(500);
+                    float[] scores = new float[n];
+                    for (int i = 0; i < n; i++) {
+                        // coarse values for plenty of ties, and the odd NaN
+                        scores[i] = random.nextInt(50) == 0 ? Float.NaN : -random.nextInt(40) * 2.5f;
+                    }
+                    int[] locations = new int[n];
+                    int count = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (random.nextInt(4) > 0) locations[count++] = i;
+                    }
+                    TableScorer scorer = new TableScorer(scores);
+                    float[] scoresOut = new float[n];
+                    int best = engine.score(locations, count, count, scoresOut, scorer);
+                    String message = threads + " threads, top " + k + ", pass " + pass;
+                    assertTop(message, serialTop(scores, locations, count, k), scores, engine, best);
+                    if (k == 0) assertEquals(message, 0, scorer.abandoned.get());
+                    for (int i = 0; i < count; i++) {
+                        int location = locations[i];
+                        // a location is either scored in full or left below the K-th best
+                        assertTrue(message, Float.isNaN(scores[location]) || scoresOut[location] == scores[location]
+                                || scoresOut[location] < engine.getTopScore(engine.getTopCount() - 1));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fingerprintTopMatchesFullScan() throws IOException {
+        FingerprintStore store = GreenstoneData.load();
+        ConnectionPoints connectionPoints = GreenstoneData.connectionPoints();
+        WifiFingerprintInfo topK = new WifiFingerprintInfo(connectionPoints, store);
+        topK.setTopK(5);
+        topK.getScoringEngine().setMinChunkWork(1);
+        WifiFingerprintInfo full = new WifiFingerprintInfo(connectionPoints, store);
+        full.setTopK(0);
+        Random random = new Random(4);
+        int[] all = new int[store.size()];
+        float[] fullScores = new float[store.size()];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+        for (int round = 0; round < 200; round++) {
+            ObservationSummary obs = GreenstoneData.noisyObservation(store, random.nextInt(store.size()), random);
+            topK.updateScores(obs);
+            full.updateScores(obs);
+            for (int i = 0; i < fullScores.length; i++) fullScores[i] = full.getScoreAt(i);
+            List<Integer> expected = serialTop(fullScores, all, all.length, 5);
+            assertEquals(expected.get(0).intValue(), topK.getBestScoreIndex());
+            assertEquals(expected.size(), topK.getTopCount());
+            for (int rank = 0; rank < expected.size(); rank++) {
+                assertEquals(expected.get(rank).intValue(), topK.getTopIndex(rank));
+                assertEquals(fullScores[expected.get(rank)], topK.getTopScore(rank), 0);
+            }
+        }
+    }
+
+    @Test
+    public void interruptStopsThePass() throws InterruptedException {
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger running = new AtomicInteger();
+        int n = 400;
+        float[] scores = new float[n];
+        for (int i = 0; i < n; i++) scores[i] = -i;
+        final TableScorer table = new TableScorer(scores);
+        ScoringEngine.LocationScorer slowWorkers = new ScoringEngine.LocationScorer() {
+            @Override
+            public float score(int location, float cutOff) {
+                running.incrementAndGet();
+                try {
+                    if (Thread.currentThread() != caller) Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+                return table.score(location, cutOff);
+            }
+        };
+        ScoringEngine engine = new ScoringEngine(4);
+        engine.setTopK(3);
+        engine.setMinChunkWork(1);
+        int[] locations = new int[n];
+        for (int i = 0; i < n; i++) locations[i] = i;
+
+        caller.interrupt();
+        int best = engine.score(locations, n, n, new float[n], slowWorkers);
+        assertTrue(Thread.interrupted());
+        assertEquals(-1, best);
+        assertEquals(0, engine.getTopCount());
+        // no chunk is left writing once the pass has returned
+        assertEquals(0, running.get());
+
+        // a pass too small to split runs on the caller alone
+        engine.setMinChunkWork(1000);
+        best = engine.score(locations, 10, 10, new float[n], table);
+        assertTop("single chunk after the interrupt", serialTop(scores, locations, 10, 3), scores, engine, best);
+
+        engine.setMinChunkWork(1);
+        best = engine.score(locations, n, n, new float[n], table);
+        assertTop("after the interrupt", serialTop(scores, locations, n, 3), scores, engine, best);
+    }
+}